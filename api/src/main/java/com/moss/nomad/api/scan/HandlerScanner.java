@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.api.scan;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import com.moss.nomad.api.v1.MigrationHandler;
+
+/**
+ * Finds the migration handlers among a set of classes by reading their 
+ * class files, rather than by loading them. Only the constant pool, the
+ * access flags, the super class and the interfaces of each class are read,
+ * so no class is defined and no static initializer runs.
+ * 
+ * A handler is a concrete class that implements MigrationHandler, whether
+ * directly, through an interface that extends it, or through a super class.
+ * Only the scanned classes are followed, so a handler whose super class is
+ * somewhere else won't be found.
+ */
+public final class HandlerScanner {
+	
+	private static final int MAGIC = 0xCAFEBABE;
+	
+	private static final int ACC_INTERFACE = 0x0200;
+	private static final int ACC_ABSTRACT = 0x0400;
+	
+	private final String target;
+	private final Map<String, ClassHeader> classes;
+	
+	public HandlerScanner() {
+		this(MigrationHandler.class.getName());
+	}
+	
+	/**
+	 * Looks for implementations of the named interface instead.
+	 */
+	public HandlerScanner(String interfaceName) {
+		this.target = interfaceName.replace('.', '/');
+		this.classes = new LinkedHashMap<String, ClassHeader>();
+	}
+	
+	/**
+	 * Scans the class files in a jar, streaming through it once.
+	 */
+	public void scanJar(File file) throws IOException {
+		
+		JarInputStream in = new JarInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			for (JarEntry e = in.getNextJarEntry(); e != null; e = in.getNextJarEntry()) {
+				if (isClass(e.getName())) {
+					scan(e.getName(), in);
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Scans the class files under a directory, such as target/classes.
+	 */
+	public void scanDirectory(File dir) throws IOException {
+		
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		
+		for (File f : children) {
+			if (f.isDirectory()) {
+				scanDirectory(f);
+			}
+			else if (isClass(f.getName())) {
+				InputStream in = new BufferedInputStream(new FileInputStream(f));
+				try {
+					scan(f.getPath(), in);
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Scans one class file, reading only as much of the stream as it needs.
+	 */
+	public void scan(InputStream classFile) throws IOException {
+		scan("class file", classFile);
+	}
+	
+	/**
+	 * The names of the handlers among the classes scanned so far, in the 
+	 * order they were scanned.
+	 */
+	public List<String> handlers() {
+		
+		List<String> handlers = new ArrayList<String>();
+		
+		for (ClassHeader c : classes.values()) {
+			if ((c.access & (ACC_INTERFACE | ACC_ABSTRACT)) == 0 && implementsTarget(c, new HashSet<String>())) {
+				handlers.add(c.name.replace('/', '.'));
+			}
+		}
+		
+		return handlers;
+	}
+	
+	private boolean implementsTarget(ClassHeader c, Set<String> seen) {
+		
+		if (!seen.add(c.name)) {
+			return false;
+		}
+		
+		for (String iface : c.interfaces) {
+			
+			if (iface.equals(target)) {
+				return true;
+			}
+			
+			ClassHeader i = classes.get(iface);
+			if (i != null && implementsTarget(i, seen)) {
+				return true;
+			}
+		}
+		
+		ClassHeader superClass = c.superName == null ? null : classes.get(c.superName);
+		
+		return superClass != null && implementsTarget(superClass, seen);
+	}
+	
+	private void scan(String source, InputStream stream) throws IOException {
+		
+		DataInputStream in = new DataInputStream(stream);
+		
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a class file: " + source);
+		}
+		
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+		
+		/*
+		 * Class entries are kept as the index of their name, and only the 
+		 * names that turn out to be needed are decoded.
+		 */
+		
+		int count = in.readUnsignedShort();
+		byte[][] utf8 = new byte[count][];
+		int[] classNames = new int[count];
+		
+		for (int i = 1; i < count; i++) {
+			
+			int tag = in.readUnsignedByte();
+			
+			switch (tag) {
+				case 1: // Utf8
+					utf8[i] = new byte[in.readUnsignedShort()];
+					in.readFully(utf8[i]);
+					break;
+				case 7: // Class
+					classNames[i] = in.readUnsignedShort();
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					skip(in, 2);
+					break;
+				case 15: // MethodHandle
+					skip(in, 3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					skip(in, 4);
+					break;
+				case 5: // Long
+				case 6: // Double
+					skip(in, 8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag + " in " + source);
+			}
+		}
+		
+		int access = in.readUnsignedShort();
+		String name = className(utf8, classNames, in.readUnsignedShort());
+		
+		int superIndex = in.readUnsignedShort();
+		String superName = superIndex == 0 ? null : className(utf8, classNames, superIndex);
+		
+		String[] interfaces = new String[in.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; i++) {
+			interfaces[i] = className(utf8, classNames, in.readUnsignedShort());
+		}
+		
+		classes.put(name, new ClassHeader(name, access, superName, interfaces));
+	}
+	
+	private static String className(byte[][] utf8, int[] classNames, int index) throws IOException {
+		
+		byte[] bytes = utf8[classNames[index]];
+		
+		/*
+		 * Class file strings are in the same modified utf-8 readUTF() takes,
+		 * less the length.
+		 */
+		
+		byte[] withLength = new byte[bytes.length + 2];
+		withLength[0] = (byte)(bytes.length >> 8);
+		withLength[1] = (byte)bytes.length;
+		System.arraycopy(bytes, 0, withLength, 2, bytes.length);
+		
+		return new DataInputStream(new ByteArrayInputStream(withLength)).readUTF();
+	}
+	
+	private static void skip(DataInputStream in, int n) throws IOException {
+		in.readFully(new byte[n]);
+	}
+	
+	private static boolean isClass(String name) {
+		return name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class");
+	}
+	
+	private static final class ClassHeader {
+		
+		final String name;
+		final int access;
+		final String superName;
+		final String[] interfaces;
+		
+		ClassHeader(String name, int access, String superName, String[] interfaces) {
+			this.name = name;
+			this.access = access;
+			this.superName = superName;
+			this.interfaces = interfaces;
+		}
+	}
+}
@@ -39,34 +39,70 @@ package com.moss.nomad.api.v1;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class ClassLoaderBridge {
 	
+	/*
+	 * Each migration classloader has its own copy of this class, so this
+	 * only ever holds environments decoded for the migrations of one 
+	 * classloader. The runner hands every migration of a run the same env
+	 * array, so it's recognized by identity (arrays don't override equals),
+	 * and each adapter only decodes it once per run. Migrations sharing a
+	 * classloader therefore share the decoded environment too.
+	 * 
+	 * The map is only locked to find or add a decode. The decode itself runs
+	 * outside of it, so slow readers only hold up migrations waiting for the
+	 * same reader and env.
+	 */
+	private static final Map<byte[], Map<Class, FutureTask<Object>>> decoded = new WeakHashMap<byte[], Map<Class, FutureTask<Object>>>();
+	
+	/*
+	 * How long the phases of the last execute() on each thread took, for
+	 * the runner to pick up through timings().
+	 */
+	private static final ThreadLocal<long[]> timings = new ThreadLocal<long[]>();
+	
 	public static String execute(String className, byte[] serialEnv) {
 		
+		long[] t = new long[3];
+		timings.set(t);
+		
 		try {
+			long start = System.nanoTime();
+			
 			Class handlerClass = ClassLoaderBridge.class.getClassLoader().loadClass(className);
+			
+			long loaded = System.nanoTime();
+			t[0] = loaded - start;
 	
-			EnvReader reader;
+			Object env;
 			{
 				EnvAdapter adapter = (EnvAdapter) handlerClass.getAnnotation(EnvAdapter.class);
 				
 				if (adapter != null && adapter.value() != null) {
-					reader = (EnvReader)adapter.value().newInstance();
+					env = decode(adapter.value(), serialEnv);
 				}
 				else {
-					reader = new EnvReader<byte[]>() {
-						public byte[] read(byte[] env) throws Exception {
-							return env;
-						}
-					};
+					env = serialEnv;
 				}
 			}
 			
-			Object env = reader.read(serialEnv);
+			long ready = System.nanoTime();
+			t[1] = ready - loaded;
 			
-			MigrationHandler handler = (MigrationHandler) handlerClass.newInstance();
-			handler.execute(env);
+			try {
+				MigrationHandler handler = (MigrationHandler) handlerClass.newInstance();
+				handler.execute(env);
+			}
+			finally {
+				t[2] = System.nanoTime() - ready;
+			}
 			
 			return null;
 		}
@@ -87,6 +123,93 @@ public class ClassLoaderBridge {
 		}
 	}
 	
+	/**
+	 * The nanoseconds the last execute() on this thread spent loading the 
+	 * handler class, decoding the environment, and in the handler itself.
+	 */
+	public static long[] timings() {
+		long[] t = timings.get();
+		return t == null ? null : t.clone();
+	}
+	
+	private static Object decode(Class<? extends EnvReader> readerClass, byte[] serialEnv) throws Exception {
+		
+		FutureTask<Object> task;
+		boolean decoding = false;
+		
+		synchronized (decoded) {
+			Map<Class, FutureTask<Object>> forEnv = decoded.get(serialEnv);
+			
+			if (forEnv == null) {
+				forEnv = new HashMap<Class, FutureTask<Object>>();
+				decoded.put(serialEnv, forEnv);
+			}
+			
+			task = forEnv.get(readerClass);
+			
+			if (task == null) {
+				task = new FutureTask<Object>(new Decode(readerClass, serialEnv));
+				forEnv.put(readerClass, task);
+				decoding = true;
+			}
+		}
+		
+		if (decoding) {
+			task.run();
+		}
+		
+		try {
+			return task.get();
+		}
+		catch (ExecutionException ex) {
+			
+			/*
+			 * Failures aren't kept, the next migration tries again.
+			 */
+			
+			synchronized (decoded) {
+				Map<Class, FutureTask<Object>> forEnv = decoded.get(serialEnv);
+				if (forEnv != null && forEnv.get(readerClass) == task) {
+					forEnv.remove(readerClass);
+				}
+			}
+			
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception)ex.getCause();
+			}
+			else if (ex.getCause() instanceof Error) {
+				throw (Error)ex.getCause();
+			}
+			else {
+				throw ex;
+			}
+		}
+	}
+	
+	private static final class Decode implements Callable<Object> {
+		
+		private final Class<? extends EnvReader> readerClass;
+		
+		/*
+		 * Let go of once read, the decoded map holds envs only weakly.
+		 */
+		private byte[] serialEnv;
+		
+		Decode(Class<? extends EnvReader> readerClass, byte[] serialEnv) {
+			this.readerClass = readerClass;
+			this.serialEnv = serialEnv;
+		}
+		
+		public Object call() throws Exception {
+			
+			byte[] env = serialEnv;
+			serialEnv = null;
+			
+			EnvReader reader = readerClass.newInstance();
+			return reader.read(env);
+		}
+	}
+	
 //	public static String environmentClass(String className) {
 //
 //		try {
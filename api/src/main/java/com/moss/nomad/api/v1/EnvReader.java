@@ -37,6 +37,12 @@
  */
 package com.moss.nomad.api.v1;
 
+/**
+ * Decodes the environment for the handlers annotated with an 
+ * {@link EnvAdapter} naming it. An environment is decoded once per run for
+ * all the migrations sharing a classloader, some of which may be running at
+ * the same time, and they are all handed the same decoded object.
+ */
 public interface EnvReader<T> {
 
 	T read(byte[] env) throws Exception;
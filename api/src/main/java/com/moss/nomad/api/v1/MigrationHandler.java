@@ -39,6 +39,10 @@ package com.moss.nomad.api.v1;
 
 /**
  * This interface defines the contract for version one of the nomad api.
+ * 
+ * An environment decoded by an {@link EnvReader} is shared with the other 
+ * migrations of the run, which may be executing at the same time, so 
+ * handlers must treat it as read-only.
  */
 public interface MigrationHandler<T> {
 	
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moss.nomad.api.v1.ClassLoaderBridge;
+import com.moss.nomad.test_migration_support.v1.NodeEnvironmentAdapter;
+import com.moss.nomad.test_migration_support.v1.data.ServiceNodeEnvironment;
+
+/**
+ * Decoding a handler's environment, by itself and as the ClassLoaderBridge
+ * does it. The bridge only decodes an env array it hasn't seen, so 
+ * passing the same array again measures what the second and later 
+ * migrations of a run pay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EnvBenchmark {
+	
+	@Param({"1", "100"})
+	public int storageUnits;
+	
+	private byte[] env;
+	
+	@Setup
+	public void setup() throws Exception {
+		env = Fixtures.env(storageUnits);
+	}
+	
+	@Benchmark
+	public ServiceNodeEnvironment adapter() throws Exception {
+		return new NodeEnvironmentAdapter().read(env);
+	}
+	
+	@Benchmark
+	public void bridgeNewEnv() {
+		execute(env.clone());
+	}
+	
+	@Benchmark
+	public void bridgeSameEnv() {
+		execute(env);
+	}
+	
+	private static void execute(byte[] env) {
+		String stacktrace = ClassLoaderBridge.execute(EnvHandler.class.getName(), env);
+		if (stacktrace != null) {
+			throw new RuntimeException(stacktrace);
+		}
+	}
+}
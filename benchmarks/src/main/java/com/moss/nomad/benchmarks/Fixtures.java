@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import org.joda.time.Instant;
+
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.test_migration_support.v1.data.HostId;
+import com.moss.nomad.test_migration_support.v1.data.LocalStorageUnitInfo;
+import com.moss.nomad.test_migration_support.v1.data.ServiceNodeEnvironment;
+import com.moss.nomad.test_migration_support.v1.data.StorageUnitId;
+import com.moss.nomad.test_package_support.PackageGenerator;
+
+/**
+ * Generates the packages, histories and environments the benchmarks run
+ * against. Everything is synthetic, and seeded, so runs are comparable.
+ */
+public final class Fixtures {
+	
+	public static final String PATH = PackageGenerator.PATH;
+	
+	private Fixtures() {}
+	
+	public static File tempDir() throws Exception {
+		File dir = File.createTempFile("nomad-bench", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new RuntimeException("Cannot create directory: " + dir);
+		}
+		return dir;
+	}
+	
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Writes a package of one path with the given number of migrations to
+	 * dir, returning the file. Every migration has the same dependencies.
+	 */
+	public static File packageFile(File dir, int migrations, int dependencies, int dependencySize) throws Exception {
+		return generator(dir, migrations, dependencies, dependencySize).write();
+	}
+	
+	public static PackageGenerator generator(File dir, int migrations, int dependencies, int dependencySize) {
+		
+		PackageGenerator g = new PackageGenerator(dir);
+		g.setMigrations(migrations);
+		g.setDependencies(dependencies);
+		g.setDependencySize(dependencySize);
+		g.setOverlap(1);
+		
+		return g;
+	}
+	
+	public static MigrationHistory history(int size) {
+		
+		MigrationHistory history = new MigrationHistory();
+		
+		Instant when = new Instant(0);
+		for (int i = 0; i < size; i++) {
+			history.add(new Migration(when, PackageGenerator.def(i)));
+		}
+		
+		return history;
+	}
+	
+	/**
+	 * A ServiceNodeEnvironment with the given number of storage units, as
+	 * the runner would be handed it.
+	 */
+	public static byte[] env(int storageUnits) throws Exception {
+		
+		ServiceNodeEnvironment env = new ServiceNodeEnvironment();
+		
+		Random random = new Random(0);
+		for (int i = 0; i < storageUnits; i++) {
+			
+			LocalStorageUnitInfo unit = new LocalStorageUnitInfo();
+			unit.setHostId(new HostId());
+			unit.setId(new StorageUnitId(new UUID(random.nextLong(), random.nextLong())));
+			unit.setLocalPath("/var/lib/nomad/unit" + i);
+			unit.setName(i == 0 ? "default" : "unit" + i);
+			
+			env.add(unit);
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Marshaller m = JAXBContext.newInstance(ServiceNodeEnvironment.class).createMarshaller();
+		m.marshal(env, out);
+		
+		return out.toByteArray();
+	}
+}
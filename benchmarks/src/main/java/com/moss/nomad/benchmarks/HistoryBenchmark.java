@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.benchmarks;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.HistoryJournal;
+import com.moss.nomad.core.history.HistoryXml;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.util.Xml;
+
+/**
+ * Reading and writing histories of different sizes, as xml streamed a 
+ * migration at a time, as xml through jaxb, which is the baseline the 
+ * streaming has to beat, and as a journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryBenchmark {
+	
+	@Param({"100", "10000", "100000"})
+	public int size;
+	
+	private File dir;
+	private File xml;
+	private File journal;
+	private File written;
+	
+	private MigrationHistory history;
+	private JAXBContext context;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		dir = Fixtures.tempDir();
+		
+		history = Fixtures.history(size);
+		context = Xml.context(MigrationHistory.class);
+		
+		xml = new File(dir, "history.xml");
+		HistoryXml.write(xml, history);
+		
+		journal = new File(dir, "history.journal");
+		HistoryJournal j = new HistoryJournal(journal, Integer.MAX_VALUE);
+		try {
+			for (Migration m : history.migrations()) {
+				j.append(m);
+			}
+		}
+		finally {
+			j.close();
+		}
+		
+		written = new File(dir, "written.xml");
+	}
+	
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+	
+	@Benchmark
+	public MigrationHistory readXml() throws Exception {
+		return HistoryXml.readHistory(xml);
+	}
+	
+	@Benchmark
+	public MigrationHistory readJaxb() throws Exception {
+		return (MigrationHistory)context.createUnmarshaller().unmarshal(xml);
+	}
+	
+	/**
+	 * Just what the runner needs to know to plan a run.
+	 */
+	@Benchmark
+	public Set<MigrationDef> executedXml() throws Exception {
+		return HistoryXml.executed(xml);
+	}
+	
+	@Benchmark
+	public MigrationHistory readJournal() throws Exception {
+		HistoryJournal j = new HistoryJournal(journal);
+		try {
+			return j.read();
+		}
+		finally {
+			j.close();
+		}
+	}
+	
+	@Benchmark
+	public File writeXml() throws Exception {
+		HistoryXml.write(written, history);
+		return written;
+	}
+	
+	@Benchmark
+	public File writeJaxb() throws Exception {
+		context.createMarshaller().marshal(history, written);
+		return written;
+	}
+}
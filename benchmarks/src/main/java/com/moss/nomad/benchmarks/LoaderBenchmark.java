@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.benchmarks;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.runner.ExtractedClasspath;
+import com.moss.nomad.core.runner.Runner;
+import com.moss.nomad.test_package_support.NoopHandler;
+import com.moss.nomad.test_package_support.PackageGenerator;
+
+/**
+ * The two halves of getting a migration ready, taken apart: extracting 
+ * its classpath from the package and creating its classloader, and 
+ * creating a classloader over an extracted classpath and calling the 
+ * handler through the ClassLoaderBridge, as the runner does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoaderBenchmark {
+	
+	private static final MigrationDef DEF = PackageGenerator.def(0);
+	
+	@State(Scope.Benchmark)
+	public static class Package {
+		
+		@Param({"4", "16"})
+		public int dependencies;
+		
+		@Param({"262144"})
+		public int dependencySize;
+		
+		File dir;
+		File file;
+		
+		/*
+		 * A runner that has extracted the classpath already.
+		 */
+		Runner runner;
+		URL[] urls;
+		
+		@Setup
+		public void setup() throws Exception {
+			
+			dir = Fixtures.tempDir();
+			file = Fixtures.packageFile(dir, 1, dependencies, dependencySize);
+			
+			runner = new Runner(file);
+			
+			List<URL> list = new ArrayList<URL>();
+			ExtractedClasspath classpath = runner.extractClasspath(Fixtures.PATH, DEF);
+			try {
+				for (File f : classpath.files()) {
+					list.add(f.toURI().toURL());
+				}
+			}
+			finally {
+				classpath.release();
+			}
+			urls = list.toArray(new URL[0]);
+		}
+		
+		@TearDown
+		public void tearDown() throws Exception {
+			runner.close();
+			Fixtures.delete(dir);
+		}
+	}
+	
+	/**
+	 * A runner that hasn't extracted anything yet, for each call.
+	 */
+	@State(Scope.Thread)
+	public static class Fresh {
+		
+		Runner runner;
+		
+		@Setup(Level.Invocation)
+		public void setup(Package p) throws Exception {
+			runner = new Runner(p.file);
+		}
+		
+		@TearDown(Level.Invocation)
+		public void tearDown() throws Exception {
+			runner.close();
+		}
+	}
+	
+	@Benchmark
+	public List<File> extract(Package p, Fresh fresh) throws Exception {
+		ExtractedClasspath classpath = fresh.runner.extractClasspath(Fixtures.PATH, DEF);
+		classpath.release();
+		return classpath.files();
+	}
+	
+	@Benchmark
+	public ClassLoader loadAndExecute(Package p) throws Exception {
+		
+		URLClassLoader cl = new URLClassLoader(p.urls, null);
+		try {
+			Method bridge = cl.loadClass("com.moss.nomad.api.v1.ClassLoaderBridge").getMethod("execute", String.class, byte[].class);
+			
+			String stacktrace = (String)bridge.invoke(null, NoopHandler.class.getName(), new byte[0]);
+			if (stacktrace != null) {
+				throw new RuntimeException(stacktrace);
+			}
+			
+			return cl;
+		}
+		finally {
+			/*
+			 * Otherwise every invocation leaves the jars open.
+			 */
+			cl.close();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.test_package_support.PackageGenerator;
+
+/**
+ * Packaging a path of eight migrations that share their dependencies. 
+ * add() is where the packager resolves each migration and scans its jar
+ * for the handler, write() is where the dependencies are digested and 
+ * copied into the package.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackagerBenchmark {
+	
+	private static final int MIGRATIONS = 8;
+	
+	@Param({"1", "16", "64"})
+	public int dependencies;
+	
+	@Param({"262144"})
+	public int dependencySize;
+	
+	private File dir;
+	private PackageGenerator generator;
+	private Packager packager;
+	
+	@Setup
+	public void setup() throws Exception {
+		dir = Fixtures.tempDir();
+		generator = Fixtures.generator(dir, MIGRATIONS, dependencies, dependencySize);
+		packager = generator.packager();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		Fixtures.delete(dir);
+	}
+	
+	@Benchmark
+	public Packager add() throws Exception {
+		return generator.packager();
+	}
+	
+	/**
+	 * The package is thrown away as it's written, so disk speed doesn't 
+	 * come into it.
+	 */
+	@Benchmark
+	public long write() throws Exception {
+		Sink out = new Sink();
+		packager.write(out);
+		return out.count;
+	}
+	
+	private static final class Sink extends OutputStream {
+		
+		long count;
+		
+		public void write(int b) {
+			count++;
+		}
+		
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.benchmarks;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.packager.ContainerReader;
+import com.moss.nomad.core.packager.MigrationContainer;
+import com.moss.nomad.core.packager.MigrationPath;
+import com.moss.nomad.core.runner.ExtractionCache;
+import com.moss.nomad.core.runner.Runner;
+import com.moss.nomad.core.util.Xml;
+
+/**
+ * Opening a package, and running every migration in it against an empty
+ * history, the ways a runner can be set up to get at the classpath. 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RunnerBenchmark {
+	
+	@Param({"1", "8"})
+	public int migrations;
+	
+	@Param({"4", "16"})
+	public int dependencies;
+	
+	@Param({"262144"})
+	public int dependencySize;
+	
+	private static final long IN_MEMORY_LIMIT = 1024L * 1024 * 256;
+	
+	private File dir;
+	private File packageFile;
+	private ExtractionCache cache;
+	private Runner warm;
+	private byte[] env;
+	
+	@Setup
+	public void setup() throws Exception {
+		
+		dir = Fixtures.tempDir();
+		packageFile = Fixtures.packageFile(dir, migrations, dependencies, dependencySize);
+		cache = new ExtractionCache(new File(dir, "cache"), Long.MAX_VALUE);
+		env = new byte[0];
+		
+		warm = new Runner(packageFile);
+		warm.run(Fixtures.PATH, new MigrationHistory(), env);
+		
+		runFromCache();
+	}
+	
+	@TearDown
+	public void tearDown() throws Exception {
+		warm.close();
+		Fixtures.delete(dir);
+	}
+	
+	@Benchmark
+	public void open() throws Exception {
+		new Runner(packageFile).close();
+	}
+	
+	/**
+	 * What the runner used to do at startup, unmarshal the whole container.
+	 */
+	@Benchmark
+	public MigrationContainer readContainer() throws Exception {
+		JarFile jar = new JarFile(packageFile);
+		try {
+			InputStream in = jar.getInputStream(jar.getJarEntry(ContainerReader.CONTAINER_ENTRY));
+			try {
+				return (MigrationContainer)Xml.context(MigrationContainer.class).createUnmarshaller().unmarshal(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		finally {
+			jar.close();
+		}
+	}
+	
+	/**
+	 * Reading just the path that is going to be run.
+	 */
+	@Benchmark
+	public MigrationPath readPath() throws Exception {
+		JarFile jar = new JarFile(packageFile);
+		try {
+			return new ContainerReader(jar).path(Fixtures.PATH);
+		}
+		finally {
+			jar.close();
+		}
+	}
+	
+	/**
+	 * A new runner, which has to extract every classpath.
+	 */
+	@Benchmark
+	public void runExtracting() throws Exception {
+		Runner runner = new Runner(packageFile);
+		try {
+			runner.run(Fixtures.PATH, new MigrationHistory(), env);
+		}
+		finally {
+			runner.close();
+		}
+	}
+	
+	/**
+	 * A new runner sharing an extraction cache that already holds the 
+	 * classpath.
+	 */
+	@Benchmark
+	public void runFromCache() throws Exception {
+		Runner runner = new Runner(packageFile, cache);
+		try {
+			runner.run(Fixtures.PATH, new MigrationHistory(), env);
+		}
+		finally {
+			runner.close();
+		}
+	}
+	
+	@Benchmark
+	public void runInMemory() throws Exception {
+		Runner runner = new Runner(packageFile);
+		try {
+			runner.setInMemoryLimit(IN_MEMORY_LIMIT);
+			runner.run(Fixtures.PATH, new MigrationHistory(), env);
+		}
+		finally {
+			runner.close();
+		}
+	}
+	
+	/**
+	 * A runner that has extracted everything already, leaving classloader
+	 * creation and the handlers.
+	 */
+	@Benchmark
+	public void runWarm() throws Exception {
+		warm.run(Fixtures.PATH, new MigrationHistory(), env);
+	}
+}
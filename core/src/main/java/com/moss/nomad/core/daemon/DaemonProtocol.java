@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.joda.time.Instant;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+
+/**
+ * The wire format between RunnerClient and RunnerDaemon. A connection 
+ * carries a single request and its reply, big-endian throughout.
+ * 
+ * The token is a random secret the daemon writes to a file only its owner 
+ * can read. Each side proves to the other that it has read the token 
+ * without sending it: the client sends int magic, short version and a 
+ * random nonce, the daemon answers with its own nonce and its proof, and 
+ * the client replies with its proof. A proof is the HMAC-SHA256, keyed by
+ * the token, of the role ("daemon" or "client"), the other side's nonce
+ * and then its own. So only clients running as the daemon's owner can hand
+ * it packages to run, and a process that takes over the port of a daemon
+ * that died can't pass itself off as the daemon.
+ * 
+ * Request: byte operation, the package jar's path and the migration path's
+ * name as modified UTF-8, the history, and for runs the env as int length
+ * (-1 for none) followed by its bytes.
+ * 
+ * Reply: byte status. For runs, the migrations that were applied, then if
+ * the run failed its stacktrace as int length and UTF-8 bytes. For plans,
+ * the defs that would be applied, or the failure.
+ * 
+ * A history or list of migrations is an int count and then per migration
+ * a long when in millis (-1 when not known) and its def. A def is its 
+ * groupId, artifactId, version and type as modified UTF-8, a boolean 
+ * whether there's a classifier, and the classifier.
+ */
+final class DaemonProtocol {
+	
+	static final int MAGIC = 0x4e4d4452; // NMDR
+	static final short VERSION = 3;
+	
+	static final int TOKEN_LENGTH = 32;
+	static final int NONCE_LENGTH = 16;
+	static final int PROOF_LENGTH = 32;
+	
+	static final String DAEMON = "daemon";
+	static final String CLIENT = "client";
+	
+	/**
+	 * What's read from the daemon when it reports a failure.
+	 */
+	static final int MAX_STACKTRACE = 16 * 1024 * 1024;
+	
+	/**
+	 * Lists are only allocated up front to this size, a longer one has to
+	 * actually arrive before it takes up any more memory than that.
+	 */
+	private static final int MAX_PRESIZE = 1024;
+	
+	static final byte RUN = 1;
+	static final byte PLAN = 2;
+	
+	static final byte OK = 0;
+	static final byte FAILED = 1;
+	
+	private static final SecureRandom random = new SecureRandom();
+	
+	private DaemonProtocol() {}
+	
+	static byte[] nonce() {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		synchronized (random) {
+			random.nextBytes(nonce);
+		}
+		return nonce;
+	}
+	
+	/**
+	 * Proves, to the side that sent theirs, that the side playing the given
+	 * role has the token.
+	 */
+	static byte[] proof(byte[] token, String role, byte[] theirs, byte[] ours) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(token, "HmacSHA256"));
+			mac.update(role.getBytes("UTF-8"));
+			mac.update(theirs);
+			mac.update(ours);
+			return mac.doFinal();
+		}
+		catch (GeneralSecurityException ex) {
+			throw new RuntimeException("Cannot compute a daemon handshake proof", ex);
+		}
+	}
+	
+	static byte[] readFully(DataInputStream in, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Where the daemons of the current user keep their tokens.
+	 */
+	static File defaultTokenDir() {
+		return new File(System.getProperty("user.home"), ".nomad");
+	}
+	
+	/**
+	 * The token file of the daemon listening on the given port.
+	 */
+	static File tokenFile(File dir, int port) {
+		return new File(dir, "daemon-" + port + ".token");
+	}
+	
+	static void writeMigrations(DataOutputStream out, List<Migration> migrations) throws IOException {
+		out.writeInt(migrations.size());
+		for (Migration m : migrations) {
+			out.writeLong(m.when() == null ? -1 : m.when().getMillis());
+			writeDef(out, m.def());
+		}
+	}
+	
+	static List<Migration> readMigrations(DataInputStream in) throws IOException {
+		
+		int count = readCount(in);
+		
+		List<Migration> migrations = new ArrayList<Migration>(Math.min(count, MAX_PRESIZE));
+		for (int i = 0; i < count; i++) {
+			long when = in.readLong();
+			migrations.add(new Migration(when == -1 ? null : new Instant(when), readDef(in)));
+		}
+		
+		return migrations;
+	}
+	
+	static MigrationHistory readHistory(DataInputStream in) throws IOException {
+		
+		MigrationHistory history = new MigrationHistory();
+		for (Migration m : readMigrations(in)) {
+			history.add(m);
+		}
+		
+		return history;
+	}
+	
+	static void writeDefs(DataOutputStream out, List<MigrationDef> defs) throws IOException {
+		out.writeInt(defs.size());
+		for (MigrationDef def : defs) {
+			writeDef(out, def);
+		}
+	}
+	
+	static List<MigrationDef> readDefs(DataInputStream in) throws IOException {
+		
+		int count = readCount(in);
+		
+		List<MigrationDef> defs = new ArrayList<MigrationDef>(Math.min(count, MAX_PRESIZE));
+		for (int i = 0; i < count; i++) {
+			defs.add(readDef(in));
+		}
+		
+		return defs;
+	}
+	
+	static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		}
+		else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	/**
+	 * Reads bytes written by writeBytes(), refusing more than max of them
+	 * before anything is allocated.
+	 */
+	static byte[] readBytes(DataInputStream in, int max) throws IOException {
+		
+		int length = in.readInt();
+		
+		if (length == -1) {
+			return null;
+		}
+		
+		if (length < 0 || length > max) {
+			throw new IOException("Refusing to read " + length + " bytes, the most allowed is " + max);
+		}
+		
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		
+		return bytes;
+	}
+	
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		writeBytes(out, s.getBytes("UTF-8"));
+	}
+	
+	static String readString(DataInputStream in, int max) throws IOException {
+		
+		byte[] bytes = readBytes(in, max);
+		
+		if (bytes == null) {
+			throw new IOException("Expected a string");
+		}
+		
+		return new String(bytes, "UTF-8");
+	}
+	
+	private static int readCount(DataInputStream in) throws IOException {
+		
+		int count = in.readInt();
+		
+		if (count < 0) {
+			throw new IOException("Negative count: " + count);
+		}
+		
+		return count;
+	}
+	
+	private static void writeDef(DataOutputStream out, MigrationDef def) throws IOException {
+		out.writeUTF(def.groupId());
+		out.writeUTF(def.artifactId());
+		out.writeUTF(def.version());
+		out.writeUTF(def.type());
+		out.writeBoolean(def.classifier() != null);
+		if (def.classifier() != null) {
+			out.writeUTF(def.classifier());
+		}
+	}
+	
+	private static MigrationDef readDef(DataInputStream in) throws IOException {
+		
+		String groupId = in.readUTF();
+		String artifactId = in.readUTF();
+		String version = in.readUTF();
+		String type = in.readUTF();
+		String classifier = in.readBoolean() ? in.readUTF() : null;
+		
+		return new MigrationDef(groupId, artifactId, version, type, classifier);
+	}
+}
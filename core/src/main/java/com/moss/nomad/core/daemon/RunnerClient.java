@@ -0,0 +1,312 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.runner.ExtractionCache;
+import com.moss.nomad.core.runner.MigrationFailureException;
+import com.moss.nomad.core.runner.RunListener;
+import com.moss.nomad.core.runner.Runner;
+
+/**
+ * Hands runs and plans to a RunnerDaemon on this machine, or does them in
+ * this process when there's no daemon listening. Either way, the 
+ * migrations that were applied are added to the history that was passed 
+ * in, including those applied before a failure.
+ * 
+ * Only a daemon whose token this user can read, and that proves it holds
+ * that token, is used, see DaemonProtocol.
+ */
+public final class RunnerClient {
+	
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int HANDSHAKE_TIMEOUT = 10000;
+	
+	private final Log log;
+	
+	private final int port;
+	private final ExtractionCache fallbackCache;
+	private final File tokenDir;
+	
+	public RunnerClient() {
+		this(RunnerDaemon.DEFAULT_PORT, null);
+	}
+	
+	/**
+	 * @param fallbackCache used when running in this process, may be null
+	 */
+	public RunnerClient(int port, ExtractionCache fallbackCache) {
+		this(port, fallbackCache, DaemonProtocol.defaultTokenDir());
+	}
+	
+	/**
+	 * @param tokenDir where the daemon writes its token
+	 */
+	public RunnerClient(int port, ExtractionCache fallbackCache, File tokenDir) {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (tokenDir == null) {
+			throw new NullPointerException();
+		}
+		
+		this.port = port;
+		this.fallbackCache = fallbackCache;
+		this.tokenDir = tokenDir;
+	}
+	
+	public void run(File packageJar, String pathName, final MigrationHistory history, byte[] env) throws Exception {
+		
+		byte[] token = token();
+		Socket s = token == null ? null : connect(token);
+		
+		if (s == null) {
+			
+			Runner runner = new Runner(packageJar, fallbackCache);
+			try {
+				RunListener l = new RunListener() {
+					
+					public void preMigration(Migration migration) {}
+					
+					public void postMigration(Migration migration) {
+						history.add(migration);
+					}
+					
+					public void migrationFailure(Migration migration, Exception ex) {}
+				};
+				
+				runner.run(pathName, history, env, Collections.singletonList(l));
+			}
+			finally {
+				runner.close();
+			}
+			
+			return;
+		}
+		
+		try {
+			DataOutputStream out = request(s, DaemonProtocol.RUN, packageJar, pathName, history);
+			DaemonProtocol.writeBytes(out, env);
+			out.flush();
+			
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			
+			byte status = in.readByte();
+			
+			for (Migration m : DaemonProtocol.readMigrations(in)) {
+				history.add(m);
+			}
+			
+			if (status != DaemonProtocol.OK) {
+				throw new MigrationFailureException(DaemonProtocol.readString(in, DaemonProtocol.MAX_STACKTRACE));
+			}
+		}
+		finally {
+			s.close();
+		}
+	}
+	
+	public List<MigrationDef> plan(File packageJar, String pathName, MigrationHistory history) throws Exception {
+		
+		byte[] token = token();
+		Socket s = token == null ? null : connect(token);
+		
+		if (s == null) {
+			Runner runner = new Runner(packageJar, fallbackCache);
+			try {
+				return runner.plan(pathName, history);
+			}
+			finally {
+				runner.close();
+			}
+		}
+		
+		try {
+			DataOutputStream out = request(s, DaemonProtocol.PLAN, packageJar, pathName, history);
+			out.flush();
+			
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			
+			if (in.readByte() != DaemonProtocol.OK) {
+				throw new RuntimeException("The daemon could not plan the run: " + DaemonProtocol.readString(in, DaemonProtocol.MAX_STACKTRACE));
+			}
+			
+			return DaemonProtocol.readDefs(in);
+		}
+		finally {
+			s.close();
+		}
+	}
+	
+	/**
+	 * Reads the daemon's token, returns null if there's no daemon running 
+	 * as this user.
+	 */
+	private byte[] token() {
+		
+		File file = DaemonProtocol.tokenFile(tokenDir, port);
+		
+		if (!file.isFile() || file.length() > DaemonProtocol.TOKEN_LENGTH) {
+			
+			if (log.isDebugEnabled()) {
+				log.debug("No nomad daemon token in " + file + ", running in process");
+			}
+			
+			return null;
+		}
+		
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				byte[] token = new byte[(int)file.length()];
+				in.readFully(token);
+				return token;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ex) {
+			log.warn("Could not read the nomad daemon token in " + file + ", running in process", ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Connects to the daemon and has it prove it holds the token, returns 
+	 * null if there isn't one or whatever is listening can't prove it.
+	 */
+	private Socket connect(byte[] token) {
+		
+		Socket s = new Socket();
+		try {
+			s.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), CONNECT_TIMEOUT);
+		}
+		catch (IOException ex) {
+			
+			if (log.isDebugEnabled()) {
+				log.debug("No nomad daemon on port " + port + ", running in process");
+			}
+			
+			close(s);
+			return null;
+		}
+		
+		try {
+			s.setSoTimeout(HANDSHAKE_TIMEOUT);
+			
+			/*
+			 * Unbuffered, the daemon sends nothing more until it has the 
+			 * request.
+			 */
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			
+			byte[] clientNonce = DaemonProtocol.nonce();
+			
+			ByteArrayOutputStream hello = new ByteArrayOutputStream();
+			DataOutputStream helloOut = new DataOutputStream(hello);
+			helloOut.writeInt(DaemonProtocol.MAGIC);
+			helloOut.writeShort(DaemonProtocol.VERSION);
+			helloOut.write(clientNonce);
+			out.write(hello.toByteArray());
+			out.flush();
+			
+			byte[] daemonNonce = DaemonProtocol.readFully(in, DaemonProtocol.NONCE_LENGTH);
+			byte[] proof = DaemonProtocol.readFully(in, DaemonProtocol.PROOF_LENGTH);
+			
+			if (!MessageDigest.isEqual(proof, DaemonProtocol.proof(token, DaemonProtocol.DAEMON, clientNonce, daemonNonce))) {
+				log.warn("The process on port " + port + " could not prove it has the nomad daemon token, running in process");
+				close(s);
+				return null;
+			}
+			
+			out.write(DaemonProtocol.proof(token, DaemonProtocol.CLIENT, daemonNonce, clientNonce));
+			out.flush();
+			
+			s.setSoTimeout(0);
+			
+			return s;
+		}
+		catch (IOException ex) {
+			log.warn("The process on port " + port + " did not complete the nomad daemon handshake, running in process", ex);
+			close(s);
+			return null;
+		}
+	}
+	
+	private static void close(Socket s) {
+		try {
+			s.close();
+		}
+		catch (IOException ex) {
+			// nothing more to do with it
+		}
+	}
+	
+	private static DataOutputStream request(Socket s, byte operation, File packageJar, String pathName, MigrationHistory history) throws IOException {
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		out.writeByte(operation);
+		out.writeUTF(packageJar.getAbsolutePath());
+		out.writeUTF(pathName);
+		DaemonProtocol.writeMigrations(out, history.migrations());
+		
+		return out;
+	}
+}
@@ -0,0 +1,630 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.runner.ExtractionCache;
+import com.moss.nomad.core.runner.RunListener;
+import com.moss.nomad.core.runner.Runner;
+import com.moss.nomad.core.util.Digests;
+
+/**
+ * A long lived process that runs and plans migrations on behalf of 
+ * RunnerClients, so that each request doesn't pay for starting a JVM, 
+ * opening the package and extracting its classpaths. The packages asked for
+ * most recently stay open, and all of them share one extraction cache.
+ * 
+ * The daemon only listens on the loopback interface. Clients are served 
+ * concurrently, one connection per request. Since a request names a jar
+ * whose handlers then run as the daemon's user, every client has to prove
+ * it holds the daemon's token, and the daemon proves the same back. The 
+ * token is random, and is written to a file in the token directory that 
+ * only the daemon's owner can read.
+ */
+public final class RunnerDaemon {
+	
+	public static final int DEFAULT_PORT = 7718;
+	
+	/**
+	 * How long a client has to send its request once connected.
+	 */
+	private static final int REQUEST_TIMEOUT = 1000 * 30;
+	
+	private final Log log;
+	
+	private final int port;
+	private final ExtractionCache cache;
+	private final File tokenDir;
+	private final Map<String, OpenPackage> runners;
+	
+	private int maxEnvSize = 64 * 1024 * 1024;
+	private int maxPackages = 8;
+	
+	private ServerSocket server;
+	private ExecutorService clients;
+	private File tokenFile;
+	private byte[] token;
+	
+	/**
+	 * @param port the loopback port to listen on, 0 for any free one
+	 * @param cache shared by every package the daemon opens, may be null in
+	 * which case each package extracts to its own temporary directory
+	 */
+	public RunnerDaemon(int port, ExtractionCache cache) {
+		this(port, cache, DaemonProtocol.defaultTokenDir());
+	}
+	
+	/**
+	 * @param tokenDir where the token is written, ~/.nomad by default. 
+	 * Clients have to look for it in the same place.
+	 */
+	public RunnerDaemon(int port, ExtractionCache cache, File tokenDir) {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (tokenDir == null) {
+			throw new NullPointerException();
+		}
+		
+		this.port = port;
+		this.cache = cache;
+		this.tokenDir = tokenDir;
+		this.runners = new LinkedHashMap<String, OpenPackage>(16, 0.75f, true);
+	}
+	
+	/**
+	 * The largest env a client may send, 64mb by default. Longer ones are
+	 * refused before any memory is set aside for them.
+	 */
+	public void setMaxEnvSize(int bytes) {
+		
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Maximum env size cannot be negative: " + bytes);
+		}
+		
+		this.maxEnvSize = bytes;
+	}
+	
+	/**
+	 * How many packages are kept open, 8 by default. Past that the least
+	 * recently used one is closed once nobody is using it.
+	 */
+	public void setMaxPackages(int max) {
+		
+		if (max < 1) {
+			throw new IllegalArgumentException("Must keep at least one package open: " + max);
+		}
+		
+		synchronized (runners) {
+			this.maxPackages = max;
+			evict();
+		}
+	}
+	
+	public synchronized void start() throws Exception {
+		
+		if (server != null) {
+			throw new IllegalStateException("Already started");
+		}
+		
+		server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+		
+		try {
+			token = newToken();
+			tokenFile = writeToken(DaemonProtocol.tokenFile(tokenDir, server.getLocalPort()), token);
+		}
+		catch (Exception ex) {
+			server.close();
+			server = null;
+			throw ex;
+		}
+		
+		clients = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "nomad-daemon-client");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		final ServerSocket s = server;
+		
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept(s);
+			}
+		}, "nomad-daemon");
+		acceptor.start();
+		
+		if (log.isInfoEnabled()) {
+			log.info("Listening on " + server.getLocalSocketAddress());
+		}
+	}
+	
+	/**
+	 * The port the daemon is listening on.
+	 */
+	public synchronized int port() {
+		
+		if (server == null) {
+			throw new IllegalStateException("Not started");
+		}
+		
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Stops listening and closes every package, requests in progress are 
+	 * abandoned.
+	 */
+	public synchronized void close() throws Exception {
+		
+		if (server != null) {
+			server.close();
+			clients.shutdownNow();
+		}
+		
+		if (tokenFile != null && !tokenFile.delete()) {
+			log.warn("Could not delete " + tokenFile);
+		}
+		
+		synchronized (runners) {
+			for (OpenPackage p : runners.values()) {
+				p.retired = true;
+				close(p);
+			}
+			runners.clear();
+		}
+	}
+	
+	private void accept(ServerSocket s) {
+		while (!s.isClosed()) {
+			try {
+				final Socket client = s.accept();
+				
+				clients.execute(new Runnable() {
+					public void run() {
+						serve(client);
+					}
+				});
+			}
+			catch (Exception ex) {
+				if (!s.isClosed()) {
+					log.error("Failed to accept a client", ex);
+				}
+			}
+		}
+	}
+	
+	private void serve(Socket client) {
+		try {
+			try {
+				client.setSoTimeout(REQUEST_TIMEOUT);
+				
+				DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+				
+				if (in.readInt() != DaemonProtocol.MAGIC) {
+					throw new RuntimeException("Not a nomad client");
+				}
+				
+				short version = in.readShort();
+				if (version != DaemonProtocol.VERSION) {
+					throw new RuntimeException("Unsupported protocol version: " + version);
+				}
+				
+				byte[] clientNonce = DaemonProtocol.readFully(in, DaemonProtocol.NONCE_LENGTH);
+				byte[] daemonNonce = DaemonProtocol.nonce();
+				
+				out.write(daemonNonce);
+				out.write(DaemonProtocol.proof(token, DaemonProtocol.DAEMON, clientNonce, daemonNonce));
+				out.flush();
+				
+				byte[] presented = DaemonProtocol.readFully(in, DaemonProtocol.PROOF_LENGTH);
+				if (!MessageDigest.isEqual(presented, DaemonProtocol.proof(token, DaemonProtocol.CLIENT, daemonNonce, clientNonce))) {
+					log.warn("Rejected a client from " + client.getRemoteSocketAddress() + " that could not prove it has the token in " + tokenFile);
+					return;
+				}
+				
+				byte operation = in.readByte();
+				File packageJar = new File(in.readUTF());
+				String pathName = in.readUTF();
+				MigrationHistory history = DaemonProtocol.readHistory(in);
+				
+				byte[] env = null;
+				if (operation == DaemonProtocol.RUN) {
+					env = DaemonProtocol.readBytes(in, maxEnvSize);
+				}
+				
+				client.setSoTimeout(0);
+				
+				if (operation == DaemonProtocol.RUN) {
+					run(packageJar, pathName, history, env, out);
+				}
+				else if (operation == DaemonProtocol.PLAN) {
+					plan(packageJar, pathName, history, out);
+				}
+				else {
+					throw new RuntimeException("Unknown operation: " + operation);
+				}
+				
+				out.flush();
+			}
+			finally {
+				client.close();
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to serve a client", ex);
+		}
+	}
+	
+	private void run(File packageJar, String pathName, MigrationHistory history, byte[] env, DataOutputStream out) throws Exception {
+		
+		final List<Migration> applied = Collections.synchronizedList(new ArrayList<Migration>());
+		
+		RunListener l = new RunListener() {
+			
+			public void preMigration(Migration migration) {}
+			
+			public void postMigration(Migration migration) {
+				applied.add(migration);
+			}
+			
+			public void migrationFailure(Migration migration, Exception ex) {}
+		};
+		
+		Exception failure = null;
+		try {
+			OpenPackage p = acquire(packageJar);
+			try {
+				p.runner.run(pathName, history, env, Collections.singletonList(l));
+			}
+			finally {
+				release(p);
+			}
+		}
+		catch (Exception ex) {
+			failure = ex;
+		}
+		
+		out.writeByte(failure == null ? DaemonProtocol.OK : DaemonProtocol.FAILED);
+		DaemonProtocol.writeMigrations(out, applied);
+		
+		if (failure != null) {
+			DaemonProtocol.writeString(out, stacktrace(failure));
+		}
+	}
+	
+	private void plan(File packageJar, String pathName, MigrationHistory history, DataOutputStream out) throws Exception {
+		
+		List<MigrationDef> plan;
+		try {
+			OpenPackage p = acquire(packageJar);
+			try {
+				plan = p.runner.plan(pathName, history);
+			}
+			finally {
+				release(p);
+			}
+		}
+		catch (Exception ex) {
+			out.writeByte(DaemonProtocol.FAILED);
+			DaemonProtocol.writeString(out, stacktrace(ex));
+			return;
+		}
+		
+		out.writeByte(DaemonProtocol.OK);
+		DaemonProtocol.writeDefs(out, plan);
+	}
+	
+	/**
+	 * The open package at the file's path, which the caller has to release.
+	 * It's opened on first use, and again if the file has been rebuilt 
+	 * since, in which case the old one is closed once its last user is done
+	 * with it.
+	 */
+	private OpenPackage acquire(File packageJar) throws Exception {
+		
+		File f = packageJar.getCanonicalFile();
+		String stamp = f.lastModified() + ":" + f.length();
+		
+		synchronized (runners) {
+			
+			OpenPackage p = runners.get(f.getPath());
+			
+			if (p != null && !p.stamp.equals(stamp)) {
+				
+				if (log.isInfoEnabled()) {
+					log.info(f + " has changed, closing the copy that was open");
+				}
+				
+				runners.remove(f.getPath());
+				retire(p);
+				p = null;
+			}
+			
+			if (p == null) {
+				
+				if (log.isInfoEnabled()) {
+					log.info("Opening " + f);
+				}
+				
+				p = new OpenPackage(f.getPath(), stamp, new Runner(f, cache));
+				runners.put(f.getPath(), p);
+				
+				evict();
+			}
+			
+			p.users++;
+			
+			return p;
+		}
+	}
+	
+	private void release(OpenPackage p) {
+		synchronized (runners) {
+			p.users--;
+			if (p.retired && p.users == 0) {
+				close(p);
+			}
+		}
+	}
+	
+	/**
+	 * The number of packages open, including ones waiting on their last
+	 * user before they're closed.
+	 */
+	int openPackages() {
+		synchronized (runners) {
+			return runners.size();
+		}
+	}
+	
+	/**
+	 * Drops the least recently used packages until there are no more than
+	 * maxPackages. Must hold the runners lock.
+	 */
+	private void evict() {
+		
+		Iterator<OpenPackage> i = runners.values().iterator();
+		
+		while (runners.size() > maxPackages && i.hasNext()) {
+			
+			OpenPackage p = i.next();
+			i.remove();
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Closing " + p.path + " to keep no more than " + maxPackages + " packages open");
+			}
+			
+			retire(p);
+		}
+	}
+	
+	/**
+	 * Must hold the runners lock.
+	 */
+	private void retire(OpenPackage p) {
+		p.retired = true;
+		if (p.users == 0) {
+			close(p);
+		}
+	}
+	
+	private void close(OpenPackage p) {
+		try {
+			p.runner.close();
+		}
+		catch (Exception ex) {
+			log.warn("Could not close runner for " + p.path, ex);
+		}
+	}
+	
+	/**
+	 * A package the daemon has open, guarded by the runners lock.
+	 */
+	private static final class OpenPackage {
+		
+		final String path;
+		final String stamp;
+		final Runner runner;
+		
+		int users;
+		boolean retired;
+		
+		OpenPackage(String path, String stamp, Runner runner) {
+			this.path = path;
+			this.stamp = stamp;
+			this.runner = runner;
+		}
+	}
+	
+	private static byte[] newToken() throws Exception {
+		
+		byte[] random = new byte[DaemonProtocol.TOKEN_LENGTH / 2];
+		new SecureRandom().nextBytes(random);
+		
+		return Digests.hex(random).getBytes("US-ASCII");
+	}
+	
+	/**
+	 * Writes the token where only this user can read it. The file is made
+	 * private before the token goes into it, and then renamed into place.
+	 */
+	private static File writeToken(File file, byte[] token) throws Exception {
+		
+		File dir = file.getParentFile();
+		
+		if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new RuntimeException("Cannot create directory: " + dir);
+		}
+		
+		File tmp = File.createTempFile("daemon", ".part", dir);
+		try {
+			ownerOnly(tmp);
+			
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(token);
+			}
+			finally {
+				out.close();
+			}
+			
+			if (file.exists() && !file.delete()) {
+				throw new RuntimeException("Cannot replace " + file);
+			}
+			
+			if (!tmp.renameTo(file)) {
+				throw new RuntimeException("Cannot move " + tmp + " to " + file);
+			}
+		}
+		finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Takes everyone's access to the file away, then gives its owner back
+	 * theirs. The File methods for this are only there from java 6 on, so
+	 * they're looked up reflectively, and chmod is used where they're not.
+	 */
+	private static void ownerOnly(File f) throws Exception {
+		
+		Method setReadable;
+		Method setWritable;
+		Method setExecutable;
+		try {
+			setReadable = File.class.getMethod("setReadable", boolean.class, boolean.class);
+			setWritable = File.class.getMethod("setWritable", boolean.class, boolean.class);
+			setExecutable = File.class.getMethod("setExecutable", boolean.class, boolean.class);
+		}
+		catch (NoSuchMethodException ex) {
+			chmodOwnerOnly(f);
+			return;
+		}
+		
+		setReadable.invoke(f, Boolean.FALSE, Boolean.FALSE);
+		setWritable.invoke(f, Boolean.FALSE, Boolean.FALSE);
+		setExecutable.invoke(f, Boolean.FALSE, Boolean.FALSE);
+		
+		if (!((Boolean)setReadable.invoke(f, Boolean.TRUE, Boolean.TRUE)).booleanValue() || !((Boolean)setWritable.invoke(f, Boolean.TRUE, Boolean.TRUE)).booleanValue()) {
+			throw new RuntimeException("Cannot make " + f + " readable by its owner alone");
+		}
+	}
+	
+	private static void chmodOwnerOnly(File f) throws Exception {
+		
+		Process p = new ProcessBuilder("chmod", "600", f.getPath()).redirectErrorStream(true).start();
+		p.getOutputStream().close();
+		
+		InputStream in = p.getInputStream();
+		try {
+			while (in.read() != -1) {
+				// drained so chmod can't block on its output
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		if (p.waitFor() != 0) {
+			throw new RuntimeException("Cannot make " + f + " readable by its owner alone, chmod exited with " + p.exitValue());
+		}
+	}
+	
+	private static String stacktrace(Exception ex) {
+		StringWriter w = new StringWriter();
+		ex.printStackTrace(new PrintWriter(w));
+		return w.toString();
+	}
+	
+	/**
+	 * Usage: RunnerDaemon [port] [cache dir] [cache max bytes]
+	 */
+	public static void main(String[] args) throws Exception {
+		
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		
+		ExtractionCache cache = null;
+		if (args.length > 1) {
+			long maxSize = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+			cache = new ExtractionCache(new File(args[1]), maxSize);
+		}
+		
+		new RunnerDaemon(port, cache).start();
+	}
+}
@@ -37,7 +37,11 @@
  */
 package com.moss.nomad.core.def;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 
 public final class MigrationDef {
 
@@ -56,6 +60,21 @@ public final class MigrationDef {
 	@XmlAttribute
 	private String classifier;
 	
+	/*
+	 * Only meaningful in migration-defs.xml, the packager resolves these
+	 * and leaves them out of the defs it writes to the container.
+	 */
+	@XmlElement(name="depends-on")
+	private List<MigrationDependency> dependencies = new ArrayList<MigrationDependency>();
+	
+	/*
+	 * Defs are used as keys against histories that can run to tens of 
+	 * thousands of entries, so the hash is only worked out once. The 
+	 * fields are only ever set by the constructor or by jaxb before the def
+	 * is handed out, which is why it can be worked out lazily.
+	 */
+	private transient int hash;
+	
 	MigrationDef() {}
 
 	public MigrationDef(String groupId, String artifactId, String version, String type, String classifier) {
@@ -103,20 +122,57 @@ public final class MigrationDef {
 		return classifier;
 	}
 	
+	/**
+	 * The earlier defs this one must follow. A def that doesn't declare any
+	 * follows every def before it.
+	 */
+	public List<MigrationDependency> dependencies() {
+		return dependencies;
+	}
+	
 	public String toString() {
 		return groupId + ":" + artifactId + ":" + type + ":" + version + ":" + classifier;
 	}
 	
 	public boolean equals(Object o) {
+		
+		if (o == this) {
+			return true;
+		}
+		
+		if (!(o instanceof MigrationDef)) {
+			return false;
+		}
+		
+		MigrationDef other = (MigrationDef)o;
+		
 		return
-			o != null
+			hashCode() == other.hashCode()
+			&&
+			groupId.equals(other.groupId)
+			&&
+			artifactId.equals(other.artifactId)
+			&&
+			version.equals(other.version)
 			&&
-			o instanceof MigrationDef
+			type.equals(other.type)
 			&&
-			((MigrationDef)o).toString().equals(toString());
+			(classifier == null ? other.classifier == null : classifier.equals(other.classifier));
 	}
 	
 	public int hashCode() {
-		return toString().hashCode();
+		
+		int h = hash;
+		
+		if (h == 0) {
+			h = groupId.hashCode();
+			h = 31 * h + artifactId.hashCode();
+			h = 31 * h + type.hashCode();
+			h = 31 * h + version.hashCode();
+			h = 31 * h + (classifier == null ? 0 : classifier.hashCode());
+			hash = h;
+		}
+		
+		return h;
 	}
 }
@@ -0,0 +1,528 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.history;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.Instant;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.util.Xml;
+
+/**
+ * An append-only store for a migration history, as an alternative to 
+ * rewriting a whole history xml document every time a migration is applied.
+ * Each applied migration is one checksummed record at the end of the 
+ * journal file. Records are forced to disk every syncEvery appends, or 
+ * whenever sync() is called, so a run listener can batch them.
+ * 
+ * compact() folds the journal into a snapshot file next to it and starts a
+ * new, empty journal. Both files carry a generation number, so a compaction
+ * that is interrupted between the two steps is recognized and the journal
+ * that was already folded in is not read twice.
+ * 
+ * A record that was only partly written when the process died fails its 
+ * length or checksum check; the journal is truncated back to the last good
+ * record when it is opened.
+ * 
+ * Layout, big-endian:
+ * 
+ *   header:  int magic, short version, long generation
+ *   records: int payload length, payload, int crc32 of the payload
+ *   payload: long when in millis (-1 when not known), then groupId, 
+ *            artifactId, version and type as modified UTF-8, boolean 
+ *            whether there is a classifier, and the classifier
+ */
+public final class HistoryJournal {
+	
+	public static final String SNAPSHOT_SUFFIX = ".snapshot";
+	
+	private static final int JOURNAL_MAGIC = 0x4e4d444a; // NMDJ
+	private static final int SNAPSHOT_MAGIC = 0x4e4d4453; // NMDS
+	private static final short VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 2 + 8;
+	
+	/*
+	 * Far larger than any real record, anything longer is a torn write.
+	 */
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+	
+	private final Log log;
+	
+	private final File file;
+	private final File snapshot;
+	private final int syncEvery;
+	
+	private RandomAccessFile journal;
+	private long generation;
+	private int unsynced;
+	
+	/*
+	 * Set when a failed append couldn't be taken back, anything appended 
+	 * after the partial record would be lost when the journal is next 
+	 * opened.
+	 */
+	private boolean failed;
+	
+	/*
+	 * Only set by tests, to fail appends after writing this many bytes of
+	 * the record, as a full disk would.
+	 */
+	int failAppendsAfter = -1;
+	
+	public HistoryJournal(File file) throws Exception {
+		this(file, 1);
+	}
+	
+	/**
+	 * @param syncEvery how many appends may go unforced to disk, 1 forces 
+	 * every append.
+	 */
+	public HistoryJournal(File file, int syncEvery) throws Exception {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		
+		if (syncEvery < 1) {
+			throw new IllegalArgumentException("syncEvery must be at least 1: " + syncEvery);
+		}
+		
+		this.file = file;
+		this.snapshot = new File(file.getPath() + SNAPSHOT_SUFFIX);
+		this.syncEvery = syncEvery;
+		
+		open();
+	}
+	
+	/**
+	 * Appends a record of the given migration.
+	 */
+	public synchronized void append(Migration migration) throws Exception {
+		
+		if (failed) {
+			throw new IllegalStateException("An earlier append to " + file + " failed and could not be undone, the journal must be reopened");
+		}
+		
+		byte[] record = record(migration);
+		
+		FileChannel channel = journal.getChannel();
+		long start = channel.size();
+		try {
+			ByteBuffer b = ByteBuffer.wrap(record);
+			
+			if (failAppendsAfter >= 0 && failAppendsAfter < record.length) {
+				b.limit(failAppendsAfter);
+			}
+			
+			while (b.hasRemaining()) {
+				channel.write(b, channel.size());
+			}
+			
+			if (b.limit() < record.length) {
+				throw new IOException("Failing append after " + b.limit() + " bytes");
+			}
+		}
+		catch (Exception ex) {
+			
+			/*
+			 * A partial record left in place would end the journal when it's
+			 * next opened, taking every later record with it.
+			 */
+			
+			try {
+				channel.truncate(start);
+			}
+			catch (Exception ex2) {
+				failed = true;
+				log.error("Could not remove the partial record appended to " + file, ex2);
+			}
+			
+			throw ex;
+		}
+		
+		unsynced++;
+		if (unsynced >= syncEvery) {
+			sync();
+		}
+	}
+	
+	/**
+	 * Forces any appended records to disk.
+	 */
+	public synchronized void sync() throws Exception {
+		if (unsynced > 0) {
+			journal.getChannel().force(false);
+			unsynced = 0;
+		}
+	}
+	
+	/**
+	 * Streams every migration in the snapshot and the journal, oldest first,
+	 * to the visitor. Appends and compactions wait until the read is done, 
+	 * since a compaction replaces both files.
+	 */
+	public synchronized void read(MigrationVisitor visitor) throws Exception {
+		
+		long snapshotGeneration = snapshot.exists() ? readSnapshot(visitor) : 0;
+		
+		if (generation > snapshotGeneration) {
+			readRecords(file, JOURNAL_MAGIC, journal.length(), visitor);
+		}
+	}
+	
+	/**
+	 * Reads the whole history into memory.
+	 */
+	public MigrationHistory read() throws Exception {
+		
+		final MigrationHistory history = new MigrationHistory();
+		
+		read(new MigrationVisitor() {
+			public void migration(Migration migration) {
+				history.add(migration);
+			}
+		});
+		
+		return history;
+	}
+	
+	/**
+	 * Folds the journal into the snapshot and starts a new journal.
+	 */
+	public synchronized void compact() throws Exception {
+		
+		sync();
+		
+		File tmp = File.createTempFile("nomad", ".part", file.getAbsoluteFile().getParentFile());
+		try {
+			final RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.write(header(SNAPSHOT_MAGIC, generation));
+				
+				read(new MigrationVisitor() {
+					public void migration(Migration migration) throws Exception {
+						out.write(record(migration));
+					}
+				});
+				
+				out.getChannel().force(false);
+			}
+			finally {
+				out.close();
+			}
+			
+			if (!tmp.renameTo(snapshot)) {
+				throw new RuntimeException("Cannot move " + tmp + " to " + snapshot);
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+		
+		/*
+		 * From here on the old journal is ignored when opened, since the
+		 * snapshot has the same generation.
+		 */
+		
+		reset(generation + 1);
+	}
+	
+	/**
+	 * Appends every migration of the given history xml document.
+	 */
+	public void importXml(File xml) throws Exception {
+		
+		Unmarshaller u = Xml.context(MigrationHistory.class).createUnmarshaller();
+		MigrationHistory history = (MigrationHistory)u.unmarshal(xml);
+		
+		synchronized (this) {
+			for (Migration migration : history.migrations()) {
+				append(migration);
+			}
+			sync();
+		}
+	}
+	
+	/**
+	 * Writes the whole history out as a history xml document.
+	 */
+	public void exportXml(File xml) throws Exception {
+		
+		Marshaller m = Xml.context(MigrationHistory.class).createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+		m.marshal(read(), xml);
+	}
+	
+	public synchronized void close() throws Exception {
+		try {
+			sync();
+		}
+		finally {
+			journal.close();
+		}
+	}
+	
+	private void open() throws Exception {
+		
+		long snapshotGeneration = snapshot.exists() ? readGeneration(snapshot, SNAPSHOT_MAGIC) : 0;
+		
+		if (!file.exists()) {
+			reset(snapshotGeneration + 1);
+			return;
+		}
+		
+		long journalGeneration = readGeneration(file, JOURNAL_MAGIC);
+		
+		if (journalGeneration <= snapshotGeneration) {
+			log.info("Discarding " + file + ", it was already compacted into " + snapshot);
+			reset(snapshotGeneration + 1);
+			return;
+		}
+		
+		generation = journalGeneration;
+		journal = new RandomAccessFile(file, "rw");
+		
+		long end = readRecords(file, JOURNAL_MAGIC, journal.length(), null);
+		
+		if (end < journal.length()) {
+			log.warn("Truncating " + (journal.length() - end) + " bytes of incomplete records from the end of " + file);
+			journal.setLength(end);
+			journal.getChannel().force(false);
+		}
+	}
+	
+	/**
+	 * Replaces the journal with an empty one of the given generation.
+	 */
+	private void reset(long newGeneration) throws Exception {
+		
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		
+		File tmp = File.createTempFile("nomad", ".part", file.getAbsoluteFile().getParentFile());
+		try {
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.write(header(JOURNAL_MAGIC, newGeneration));
+				out.getChannel().force(false);
+			}
+			finally {
+				out.close();
+			}
+			
+			if (!tmp.renameTo(file)) {
+				throw new RuntimeException("Cannot move " + tmp + " to " + file);
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+		
+		generation = newGeneration;
+		journal = new RandomAccessFile(file, "rw");
+		unsynced = 0;
+		failed = false;
+	}
+	
+	private long readSnapshot(MigrationVisitor visitor) throws Exception {
+		
+		long snapshotGeneration = readGeneration(snapshot, SNAPSHOT_MAGIC);
+		long length = snapshot.length();
+		
+		if (readRecords(snapshot, SNAPSHOT_MAGIC, length, visitor) != length) {
+			throw new RuntimeException("The snapshot " + snapshot + " is corrupt");
+		}
+		
+		return snapshotGeneration;
+	}
+	
+	private static long readGeneration(File f, int magic) throws Exception {
+		
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			if (in.readInt() != magic) {
+				throw new RuntimeException("Not a history journal: " + f);
+			}
+			
+			short version = in.readShort();
+			if (version != VERSION) {
+				throw new RuntimeException("Unsupported history journal version " + version + ": " + f);
+			}
+			
+			return in.readLong();
+		}
+		catch (EOFException ex) {
+			throw new RuntimeException("Not a history journal: " + f, ex);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads records up to the given length, stopping at the first one that
+	 * is incomplete or fails its checksum. Returns the offset just past the
+	 * last good record.
+	 */
+	private static long readRecords(File f, int magic, long length, MigrationVisitor visitor) throws Exception {
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			in.readInt();
+			in.readShort();
+			in.readLong();
+			
+			long position = HEADER_SIZE;
+			CRC32 crc = new CRC32();
+			
+			while (position + 4 <= length) {
+				
+				int size = in.readInt();
+				
+				if (size <= 0 || size > MAX_RECORD_SIZE || position + 4 + size + 4 > length) {
+					break;
+				}
+				
+				byte[] payload = new byte[size];
+				in.readFully(payload);
+				int checksum = in.readInt();
+				
+				crc.reset();
+				crc.update(payload);
+				
+				if ((int)crc.getValue() != checksum) {
+					break;
+				}
+				
+				if (visitor != null) {
+					visitor.migration(migration(payload));
+				}
+				
+				position += 4 + size + 4;
+			}
+			
+			return position;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private static byte[] header(int magic, long generation) throws IOException {
+		
+		ByteArrayOutputStream bao = new ByteArrayOutputStream(HEADER_SIZE);
+		DataOutputStream out = new DataOutputStream(bao);
+		out.writeInt(magic);
+		out.writeShort(VERSION);
+		out.writeLong(generation);
+		out.close();
+		
+		return bao.toByteArray();
+	}
+	
+	private static byte[] record(Migration migration) throws IOException {
+		
+		MigrationDef def = migration.def();
+		
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeLong(migration.when() == null ? -1 : migration.when().getMillis());
+		out.writeUTF(def.groupId());
+		out.writeUTF(def.artifactId());
+		out.writeUTF(def.version());
+		out.writeUTF(def.type());
+		out.writeBoolean(def.classifier() != null);
+		if (def.classifier() != null) {
+			out.writeUTF(def.classifier());
+		}
+		out.close();
+		
+		byte[] bytes = payload.toByteArray();
+		
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		
+		ByteArrayOutputStream bao = new ByteArrayOutputStream(bytes.length + 8);
+		out = new DataOutputStream(bao);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.writeInt((int)crc.getValue());
+		out.close();
+		
+		return bao.toByteArray();
+	}
+	
+	private static Migration migration(byte[] payload) throws IOException {
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		
+		long when = in.readLong();
+		String groupId = in.readUTF();
+		String artifactId = in.readUTF();
+		String version = in.readUTF();
+		String type = in.readUTF();
+		String classifier = in.readBoolean() ? in.readUTF() : null;
+		
+		return new Migration(
+			when == -1 ? null : new Instant(when), 
+			new MigrationDef(groupId, artifactId, version, type, classifier)
+		);
+	}
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.joda.time.Instant;
+
+import com.moss.joda.time.xml.InstantAdapter;
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.util.Xml;
+
+/**
+ * Reads and writes history xml documents one migration at a time, for 
+ * histories too large to unmarshal as a whole. The documents are the same
+ * ones jaxb reads and writes for MigrationHistory.
+ */
+public final class HistoryXml {
+	
+	private HistoryXml() {}
+	
+	/**
+	 * Streams every migration in the document, in order, to the visitor.
+	 */
+	public static void read(File file, MigrationVisitor visitor) throws Exception {
+		
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			read(in, visitor);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	public static void read(InputStream in, MigrationVisitor visitor) throws Exception {
+		
+		InstantAdapter adapter = new InstantAdapter();
+		
+		XMLStreamReader r = Xml.inputFactory().createXMLStreamReader(in);
+		try {
+			int depth = 0;
+			Instant when = null;
+			MigrationDef def = null;
+			
+			while (r.hasNext()) {
+				
+				int event = r.next();
+				
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					
+					depth++;
+					
+					if (depth == 2 && "migration".equals(r.getLocalName())) {
+						String value = r.getAttributeValue(null, "when");
+						when = value == null ? null : adapter.unmarshal(value);
+						def = null;
+					}
+					else if (depth == 3 && "def".equals(r.getLocalName())) {
+						
+						String type = r.getAttributeValue(null, "type");
+						
+						def = new MigrationDef(
+							r.getAttributeValue(null, "groupId"), 
+							r.getAttributeValue(null, "artifactId"), 
+							r.getAttributeValue(null, "version"), 
+							type == null ? "jar" : type, 
+							r.getAttributeValue(null, "classifier")
+						);
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					
+					if (depth == 2 && "migration".equals(r.getLocalName())) {
+						visitor.migration(new Migration(when, def));
+						when = null;
+						def = null;
+					}
+					
+					depth--;
+				}
+			}
+		}
+		finally {
+			r.close();
+		}
+	}
+	
+	/**
+	 * The defs of every migration in the document, worked out in one pass 
+	 * without holding on to the migrations themselves.
+	 */
+	public static Set<MigrationDef> executed(File file) throws Exception {
+		
+		final Set<MigrationDef> executed = new HashSet<MigrationDef>();
+		
+		read(file, new MigrationVisitor() {
+			public void migration(Migration migration) {
+				if (migration.def() != null) {
+					executed.add(migration.def());
+				}
+			}
+		});
+		
+		return executed;
+	}
+	
+	/**
+	 * Reads the whole document into memory.
+	 */
+	public static MigrationHistory readHistory(File file) throws Exception {
+		
+		final MigrationHistory history = new MigrationHistory();
+		
+		read(file, new MigrationVisitor() {
+			public void migration(Migration migration) {
+				history.add(migration);
+			}
+		});
+		
+		return history;
+	}
+	
+	/**
+	 * Writes the whole history, replacing the file only once it is complete.
+	 */
+	public static void write(File file, MigrationHistory history) throws Exception {
+		
+		Writer w = new Writer(file);
+		try {
+			for (Migration migration : history.migrations()) {
+				w.write(migration);
+			}
+			w.commit();
+		}
+		finally {
+			w.abort();
+		}
+	}
+	
+	/**
+	 * Writes a history document a migration at a time. Nothing is written
+	 * to the target until commit(), which swaps a complete copy into place,
+	 * so a reader never sees a half written history.
+	 */
+	public static final class Writer {
+		
+		private final File target;
+		private final File tmp;
+		private final FileOutputStream out;
+		private final BufferedOutputStream buffered;
+		private final XMLStreamWriter w;
+		private final InstantAdapter adapter;
+		
+		private boolean done;
+		
+		public Writer(File target) throws Exception {
+			
+			if (target == null) {
+				throw new NullPointerException();
+			}
+			
+			this.target = target;
+			this.tmp = File.createTempFile("nomad", ".part", target.getAbsoluteFile().getParentFile());
+			this.out = new FileOutputStream(tmp);
+			this.buffered = new BufferedOutputStream(out);
+			this.w = Xml.outputFactory().createXMLStreamWriter(buffered, "UTF-8");
+			this.adapter = new InstantAdapter();
+			
+			w.writeStartDocument("UTF-8", "1.0");
+			w.writeStartElement("history");
+		}
+		
+		public void write(Migration migration) throws Exception {
+			
+			w.writeStartElement("migration");
+			
+			if (migration.when() != null) {
+				w.writeAttribute("when", adapter.marshal(migration.when()));
+			}
+			
+			MigrationDef def = migration.def();
+			if (def != null) {
+				w.writeEmptyElement("def");
+				w.writeAttribute("groupId", def.groupId());
+				w.writeAttribute("artifactId", def.artifactId());
+				w.writeAttribute("version", def.version());
+				w.writeAttribute("type", def.type());
+				if (def.classifier() != null) {
+					w.writeAttribute("classifier", def.classifier());
+				}
+			}
+			
+			w.writeEndElement();
+		}
+		
+		/**
+		 * Finishes the document, forces it to disk, and moves it into place.
+		 */
+		public void commit() throws Exception {
+			
+			w.writeEndElement();
+			w.writeEndDocument();
+			w.flush();
+			w.close();
+			
+			buffered.flush();
+			out.getFD().sync();
+			out.close();
+			
+			done = true;
+			
+			if (!tmp.renameTo(target)) {
+				tmp.delete();
+				throw new RuntimeException("Cannot move " + tmp + " to " + target);
+			}
+		}
+		
+		/**
+		 * Throws away whatever was written, does nothing after commit().
+		 */
+		public void abort() throws Exception {
+			
+			if (done) {
+				return;
+			}
+			
+			done = true;
+			
+			try {
+				w.close();
+				out.close();
+			}
+			finally {
+				tmp.delete();
+			}
+		}
+	}
+}
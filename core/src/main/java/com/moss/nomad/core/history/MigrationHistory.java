@@ -37,17 +37,27 @@
  */
 package com.moss.nomad.core.history;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import com.moss.nomad.core.def.MigrationDef;
+
 @XmlRootElement(name="history")
 public final class MigrationHistory {
 
+	/*
+	 * Jaxb fills in the list it finds here rather than replacing it, so the
+	 * index stays current whether the history was read from xml, added to,
+	 * or changed through migrations().
+	 */
 	@XmlElement(name="migration")
-	private List<Migration> migrationDefs = new ArrayList<Migration>();
+	private List<Migration> migrationDefs = new IndexedMigrations();
 	
 	public void add(Migration def) {
 		migrationDefs.add(def);
@@ -56,4 +66,97 @@ public final class MigrationHistory {
 	public List<Migration> migrations() {
 		return migrationDefs;
 	}
+	
+	/**
+	 * Whether a migration of the given def is in the history.
+	 */
+	public boolean contains(MigrationDef def) {
+		
+		if (migrationDefs instanceof IndexedMigrations) {
+			return ((IndexedMigrations)migrationDefs).contains(def);
+		}
+		
+		for (Migration m : migrationDefs) {
+			if (def.equals(m.def())) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * A list of migrations that keeps count of how many times each def 
+	 * appears in it.
+	 */
+	private static final class IndexedMigrations extends AbstractList<Migration> {
+		
+		private final List<Migration> migrations = new ArrayList<Migration>();
+		private final Map<MigrationDef, Integer> counts = new HashMap<MigrationDef, Integer>();
+		
+		public boolean contains(MigrationDef def) {
+			return counts.containsKey(def);
+		}
+		
+		public Migration get(int index) {
+			return migrations.get(index);
+		}
+		
+		public int size() {
+			return migrations.size();
+		}
+		
+		public void add(int index, Migration m) {
+			migrations.add(index, m);
+			indexed(m);
+		}
+		
+		public Migration set(int index, Migration m) {
+			Migration old = migrations.set(index, m);
+			unindexed(old);
+			indexed(m);
+			return old;
+		}
+		
+		public Migration remove(int index) {
+			Migration old = migrations.remove(index);
+			unindexed(old);
+			return old;
+		}
+		
+		public void clear() {
+			migrations.clear();
+			counts.clear();
+		}
+		
+		private void indexed(Migration m) {
+			
+			if (m == null || m.def() == null) {
+				return;
+			}
+			
+			Integer count = counts.get(m.def());
+			counts.put(m.def(), count == null ? 1 : count + 1);
+		}
+		
+		private void unindexed(Migration m) {
+			
+			if (m == null || m.def() == null) {
+				return;
+			}
+			
+			Integer count = counts.get(m.def());
+			
+			if (count == null) {
+				return;
+			}
+			
+			if (count == 1) {
+				counts.remove(m.def());
+			}
+			else {
+				counts.put(m.def(), count - 1);
+			}
+		}
+	}
 }
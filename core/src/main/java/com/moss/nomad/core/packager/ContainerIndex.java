@@ -0,0 +1,507 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.packager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.moss.nomad.core.def.MigrationDef;
+
+/**
+ * A compact binary copy of a package's container, written by the packager 
+ * next to META-INF/container.xml. Besides what the xml holds it records 
+ * where each classpath entry's local header is in the package jar, so 
+ * entries stored without compression can be copied out directly.
+ * 
+ * The index is itself stored without compression, and the jar's comment
+ * says where its local header is, so the runner can memory-map it without
+ * going through the jar's central directory. Packages without an index 
+ * are read through their container.xml instead.
+ * 
+ * Layout, big-endian:
+ * 
+ *   int magic, short version
+ *   strings:  int count, then each string as modified UTF-8
+ *   defs:     int count, then per def the string ordinals of groupId, 
+ *             artifactId, version, type and classifier (-1 when null)
+ *   entries:  int count, then per entry the ordinals of its path and 
+ *             digest, long size, long offset of its local header
+ *   paths:    int count, then per path the ordinal of its name and the
+ *             position of its packages within the index
+ *   packages: per path, int count, then per package its def ordinal, 
+ *             handler class name ordinal (-1 when the package has no 
+ *             resources), int classpath size followed by the ordinals of
+ *             the classpath entries' paths, int count of the defs it 
+ *             follows and their def ordinals
+ */
+public class ContainerIndex {
+	
+	public static final String INDEX_ENTRY = "META-INF/container.idx";
+	public static final String COMMENT_PREFIX = "nomad-index:";
+	
+	private static final int MAGIC = 0x4e4d4458; // NMDX
+	private static final short VERSION = 1;
+	
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int LOC_HEADER_SIZE = 30;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_HEADER_SIZE = 22;
+	
+	/**
+	 * Serializes the container. offsets gives the local header offset of 
+	 * each of the container's entries.
+	 */
+	public static byte[] write(MigrationContainer container, Map<String, Long> offsets) throws Exception {
+		
+		final Map<String, Integer> strings = new HashMap<String, Integer>();
+		final List<String> stringTable = new ArrayList<String>();
+		
+		Map<MigrationDef, Integer> defs = new HashMap<MigrationDef, Integer>();
+		List<MigrationDef> defTable = new ArrayList<MigrationDef>();
+		
+		/*
+		 * Intern everything first, the tables come before what refers to them.
+		 */
+		
+		for (ContainerEntry e : container.entries()) {
+			intern(e.path(), strings, stringTable);
+			intern(e.digest(), strings, stringTable);
+		}
+		
+		for (MigrationPath path : container.paths()) {
+			intern(path.name(), strings, stringTable);
+			
+			for (MigrationPackage pkg : path.packages()) {
+				intern(pkg.def(), defs, defTable, strings, stringTable);
+				
+				for (MigrationDef after : pkg.after()) {
+					intern(after, defs, defTable, strings, stringTable);
+				}
+				
+				if (pkg.resources() != null) {
+					intern(pkg.resources().className(), strings, stringTable);
+					for (String cp : pkg.resources().classpath()) {
+						intern(cp, strings, stringTable);
+					}
+				}
+			}
+		}
+		
+		/*
+		 * The packages of each path, which the header points into.
+		 */
+		
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		for (MigrationPath path : container.paths()) {
+			
+			ByteArrayOutputStream bao = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bao);
+			
+			out.writeInt(path.packages().size());
+			for (MigrationPackage pkg : path.packages()) {
+				
+				out.writeInt(defs.get(pkg.def()));
+				
+				MigrationResources res = pkg.resources();
+				if (res == null) {
+					out.writeInt(-1);
+					out.writeInt(0);
+				}
+				else {
+					out.writeInt(strings.get(res.className()));
+					out.writeInt(res.classpath().size());
+					for (String cp : res.classpath()) {
+						out.writeInt(strings.get(cp));
+					}
+				}
+				
+				out.writeInt(pkg.after().size());
+				for (MigrationDef after : pkg.after()) {
+					out.writeInt(defs.get(after));
+				}
+			}
+			
+			out.close();
+			bodies.add(bao.toByteArray());
+		}
+		
+		ByteArrayOutputStream bao = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bao);
+		
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		
+		out.writeInt(stringTable.size());
+		for (String s : stringTable) {
+			out.writeUTF(s);
+		}
+		
+		out.writeInt(defTable.size());
+		for (MigrationDef def : defTable) {
+			out.writeInt(strings.get(def.groupId()));
+			out.writeInt(strings.get(def.artifactId()));
+			out.writeInt(strings.get(def.version()));
+			out.writeInt(strings.get(def.type()));
+			out.writeInt(def.classifier() == null ? -1 : strings.get(def.classifier()));
+		}
+		
+		out.writeInt(container.entries().size());
+		for (ContainerEntry e : container.entries()) {
+			
+			Long offset = offsets.get(e.path());
+			
+			out.writeInt(strings.get(e.path()));
+			out.writeInt(strings.get(e.digest()));
+			out.writeLong(e.size());
+			out.writeLong(offset == null ? -1 : offset.longValue());
+		}
+		
+		/*
+		 * Path bodies follow the path table, whose size is known up front.
+		 */
+		
+		int position = out.size() + 4 + container.paths().size() * 8;
+		
+		out.writeInt(container.paths().size());
+		for (int i = 0; i < container.paths().size(); i++) {
+			out.writeInt(strings.get(container.paths().get(i).name()));
+			out.writeInt(position);
+			position += bodies.get(i).length;
+		}
+		
+		for (byte[] body : bodies) {
+			out.write(body);
+		}
+		
+		out.close();
+		
+		return bao.toByteArray();
+	}
+	
+	/**
+	 * Maps the index of the given package jar, returns null if it doesn't
+	 * have one.
+	 */
+	public static ContainerIndex open(File packageFile) throws Exception {
+		
+		RandomAccessFile raf = new RandomAccessFile(packageFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			
+			long offset = indexOffset(channel);
+			
+			if (offset < 0) {
+				return null;
+			}
+			
+			LocalHeader header = readLocalHeader(channel, offset);
+			
+			if (header == null || header.method != 0 || !INDEX_ENTRY.equals(header.name)) {
+				return null;
+			}
+			
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, header.dataOffset, header.size);
+			
+			return new ContainerIndex(buffer);
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Returns the offset of the data of the entry whose local header is at
+	 * the given offset, if it is the named entry, of the given size, and 
+	 * stored without compression, otherwise -1. A package rewritten since 
+	 * the index was made then gets read the slow way rather than wrongly.
+	 */
+	public static long storedDataOffset(FileChannel channel, long headerOffset, String name, long size) throws Exception {
+		
+		LocalHeader header = readLocalHeader(channel, headerOffset);
+		
+		if (header == null || header.method != 0 || !name.equals(header.name) || header.size != size) {
+			return -1;
+		}
+		
+		return header.dataOffset;
+	}
+	
+	private final ByteBuffer buffer;
+	private final String[] strings;
+	private final MigrationDef[] defs;
+	private final Map<String, ContainerEntry> entries;
+	private final Map<String, Long> offsets;
+	private final Map<String, Integer> pathPositions;
+	
+	private ContainerIndex(ByteBuffer buffer) throws Exception {
+		
+		this.buffer = buffer;
+		
+		if (buffer.getInt() != MAGIC) {
+			throw new RuntimeException("Not a container index");
+		}
+		
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new RuntimeException("Unsupported container index version: " + version);
+		}
+		
+		strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = readUTF(buffer);
+		}
+		
+		defs = new MigrationDef[buffer.getInt()];
+		for (int i = 0; i < defs.length; i++) {
+			defs[i] = new MigrationDef(
+				string(buffer.getInt()), 
+				string(buffer.getInt()), 
+				string(buffer.getInt()), 
+				string(buffer.getInt()), 
+				string(buffer.getInt())
+			);
+		}
+		
+		int count = buffer.getInt();
+		entries = new HashMap<String, ContainerEntry>(count * 2);
+		offsets = new HashMap<String, Long>(count * 2);
+		for (int i = 0; i < count; i++) {
+			
+			ContainerEntry e = new ContainerEntry(string(buffer.getInt()), string(buffer.getInt()), buffer.getLong());
+			long offset = buffer.getLong();
+			
+			entries.put(e.path(), e);
+			
+			if (offset >= 0) {
+				offsets.put(e.path(), offset);
+			}
+		}
+		
+		count = buffer.getInt();
+		pathPositions = new HashMap<String, Integer>(count * 2);
+		for (int i = 0; i < count; i++) {
+			pathPositions.put(string(buffer.getInt()), buffer.getInt());
+		}
+	}
+	
+	public Map<String, ContainerEntry> entries() {
+		return entries;
+	}
+	
+	/**
+	 * The offset of the given entry's local header in the package jar, or -1
+	 * if it isn't known.
+	 */
+	public long offset(String entryPath) {
+		Long offset = offsets.get(entryPath);
+		return offset == null ? -1 : offset.longValue();
+	}
+	
+	/**
+	 * Builds the named path, returns null if there's no such path. The same
+	 * MigrationDef instances are shared by every path built from this index.
+	 */
+	public MigrationPath path(String name) {
+		
+		Integer position = pathPositions.get(name);
+		
+		if (position == null) {
+			return null;
+		}
+		
+		ByteBuffer b = buffer.duplicate();
+		b.position(position);
+		
+		MigrationPath path = new MigrationPath(name);
+		
+		int count = b.getInt();
+		for (int i = 0; i < count; i++) {
+			
+			MigrationDef def = defs[b.getInt()];
+			
+			MigrationResources res = null;
+			int className = b.getInt();
+			int classpathSize = b.getInt();
+			
+			List<String> classpath = new ArrayList<String>(classpathSize);
+			for (int j = 0; j < classpathSize; j++) {
+				classpath.add(strings[b.getInt()]);
+			}
+			
+			if (className != -1) {
+				res = new MigrationResources(strings[className], classpath);
+			}
+			
+			int afterCount = b.getInt();
+			List<MigrationDef> after = new ArrayList<MigrationDef>(afterCount);
+			for (int j = 0; j < afterCount; j++) {
+				after.add(defs[b.getInt()]);
+			}
+			
+			path.add(new MigrationPackage(def, res, after));
+		}
+		
+		return path;
+	}
+	
+	private String string(int ordinal) {
+		return ordinal == -1 ? null : strings[ordinal];
+	}
+	
+	private static void intern(String s, Map<String, Integer> strings, List<String> table) {
+		if (!strings.containsKey(s)) {
+			strings.put(s, table.size());
+			table.add(s);
+		}
+	}
+	
+	private static void intern(MigrationDef def, Map<MigrationDef, Integer> defs, List<MigrationDef> table, Map<String, Integer> strings, List<String> stringTable) {
+		
+		if (defs.containsKey(def)) {
+			return;
+		}
+		
+		defs.put(def, table.size());
+		table.add(def);
+		
+		intern(def.groupId(), strings, stringTable);
+		intern(def.artifactId(), strings, stringTable);
+		intern(def.version(), strings, stringTable);
+		intern(def.type(), strings, stringTable);
+		
+		if (def.classifier() != null) {
+			intern(def.classifier(), strings, stringTable);
+		}
+	}
+	
+	private static String readUTF(ByteBuffer b) throws Exception {
+		
+		int length = b.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		
+		/*
+		 * Modified UTF-8 only differs from UTF-8 for nulls and supplementary
+		 * characters, neither of which turn up in maven coordinates or
+		 * class names.
+		 */
+		
+		return new String(bytes, "UTF-8");
+	}
+	
+	/**
+	 * Finds the index offset in the jar's comment, returns -1 if it isn't 
+	 * there.
+	 */
+	private static long indexOffset(FileChannel channel) throws Exception {
+		
+		long size = channel.size();
+		int tailSize = (int)Math.min(size, END_HEADER_SIZE + 0xffff);
+		
+		ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(tail, size - tailSize);
+		
+		for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+			
+			if (tail.getInt(i) != END_SIGNATURE) {
+				continue;
+			}
+			
+			int commentLength = tail.getShort(i + 20) & 0xffff;
+			
+			if (i + END_HEADER_SIZE + commentLength != tailSize) {
+				continue;
+			}
+			
+			byte[] bytes = new byte[commentLength];
+			tail.position(i + END_HEADER_SIZE);
+			tail.get(bytes);
+			
+			String comment = new String(bytes, "UTF-8");
+			
+			if (!comment.startsWith(COMMENT_PREFIX)) {
+				return -1;
+			}
+			
+			return Long.parseLong(comment.substring(COMMENT_PREFIX.length()).trim());
+		}
+		
+		return -1;
+	}
+	
+	private static LocalHeader readLocalHeader(FileChannel channel, long offset) throws Exception {
+		
+		ByteBuffer b = ByteBuffer.allocate(LOC_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		
+		if (channel.read(b, offset) != LOC_HEADER_SIZE || b.getInt(0) != LOC_SIGNATURE) {
+			return null;
+		}
+		
+		LocalHeader header = new LocalHeader();
+		header.method = b.getShort(8) & 0xffff;
+		header.size = b.getInt(18) & 0xffffffffL;
+		
+		int nameLength = b.getShort(26) & 0xffff;
+		int extraLength = b.getShort(28) & 0xffff;
+		
+		ByteBuffer name = ByteBuffer.allocate(nameLength);
+		channel.read(name, offset + LOC_HEADER_SIZE);
+		header.name = new String(name.array(), "UTF-8");
+		
+		header.dataOffset = offset + LOC_HEADER_SIZE + nameLength + extraLength;
+		
+		return header;
+	}
+	
+	private static final class LocalHeader {
+		int method;
+		long size;
+		String name;
+		long dataOffset;
+	}
+}
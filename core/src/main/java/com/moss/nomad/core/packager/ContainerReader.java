@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.packager;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.util.Events;
+import com.moss.nomad.core.util.Xml;
+
+/**
+ * Reads the parts of a package jar's META-INF/container.xml as they're 
+ * needed, rather than unmarshalling the whole container up front. Only the
+ * migration paths that are asked for are ever materialized, and each of 
+ * them only once.
+ * 
+ * Packages that have a binary {@link ContainerIndex} are read through it
+ * instead, and the xml is never touched.
+ */
+public class ContainerReader {
+	
+	public static final String CONTAINER_ENTRY = "META-INF/container.xml";
+	
+	private final Log log;
+	
+	private final JarFile jar;
+	private final JAXBContext context;
+	private final Map<String, MigrationPath> paths;
+	private final ContainerIndex index;
+	
+	private Map<String, ContainerEntry> entries;
+	
+	public ContainerReader(JarFile jar) throws Exception {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (jar == null) {
+			throw new NullPointerException();
+		}
+		
+		if (jar.getJarEntry(CONTAINER_ENTRY) == null) {
+			throw new RuntimeException("Not a migration package, " + CONTAINER_ENTRY + " not found: " + jar.getName());
+		}
+		
+		this.jar = jar;
+		this.context = Xml.context(MigrationContainer.class);
+		this.paths = new ConcurrentHashMap<String, MigrationPath>();
+		this.index = openIndex(new File(jar.getName()));
+	}
+	
+	/**
+	 * The package's binary index, or null if it doesn't have one.
+	 */
+	public ContainerIndex index() {
+		return index;
+	}
+	
+	/**
+	 * Returns the named migration path, or null if the container has no 
+	 * such path.
+	 */
+	public MigrationPath path(String name) throws Exception {
+		
+		MigrationPath path = paths.get(name);
+		
+		if (path == null) {
+			
+			Events.Event event = Events.begin(Events.CONTAINER_PARSE).detail(name);
+			
+			path = index != null ? index.path(name) : readPath(name);
+			
+			event.commit();
+			
+			if (path != null) {
+				paths.put(name, path);
+			}
+		}
+		
+		return path;
+	}
+	
+	/**
+	 * Returns the container's entries by path. Packages written before 
+	 * entries were recorded don't have any.
+	 */
+	public synchronized Map<String, ContainerEntry> entries() throws Exception {
+		
+		if (entries == null) {
+			entries = index != null ? index.entries() : readEntries();
+		}
+		
+		return entries;
+	}
+	
+	private ContainerIndex openIndex(File file) {
+		try {
+			return ContainerIndex.open(file);
+		}
+		catch (Exception ex) {
+			log.warn("Could not read the container index of " + file + ", falling back to " + CONTAINER_ENTRY, ex);
+			return null;
+		}
+	}
+	
+	private MigrationPath readPath(String name) throws Exception {
+		
+		InputStream in = open();
+		try {
+			XMLStreamReader r = Xml.inputFactory().createXMLStreamReader(in);
+			try {
+				int depth = 0;
+				while (r.hasNext()) {
+					
+					int event = r.next();
+					
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						
+						depth++;
+						
+						if (depth == 2 && "path".equals(r.getLocalName())) {
+							
+							if (name.equals(r.getAttributeValue(null, "name"))) {
+								Unmarshaller u = context.createUnmarshaller();
+								return u.unmarshal(r, MigrationPath.class).getValue();
+							}
+							
+							skipElement(r);
+							depth--;
+						}
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT) {
+						depth--;
+					}
+				}
+				
+				return null;
+			}
+			finally {
+				r.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private Map<String, ContainerEntry> readEntries() throws Exception {
+		
+		Map<String, ContainerEntry> entries = new HashMap<String, ContainerEntry>();
+		
+		InputStream in = open();
+		try {
+			XMLStreamReader r = Xml.inputFactory().createXMLStreamReader(in);
+			try {
+				int depth = 0;
+				boolean inEntries = false;
+				
+				while (r.hasNext()) {
+					
+					int event = r.next();
+					
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						
+						depth++;
+						
+						if (depth == 2) {
+							
+							if ("entries".equals(r.getLocalName())) {
+								inEntries = true;
+							}
+							else {
+								skipElement(r);
+								depth--;
+							}
+						}
+						else if (depth == 3 && inEntries && "entry".equals(r.getLocalName())) {
+							
+							ContainerEntry e = new ContainerEntry(
+								r.getAttributeValue(null, "path"),
+								r.getAttributeValue(null, "digest"),
+								Long.parseLong(r.getAttributeValue(null, "size"))
+							);
+							
+							entries.put(e.path(), e);
+						}
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT) {
+						
+						if (depth == 2) {
+							inEntries = false;
+						}
+						
+						depth--;
+					}
+				}
+			}
+			finally {
+				r.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		return entries;
+	}
+	
+	private InputStream open() throws Exception {
+		JarEntry entry = jar.getJarEntry(CONTAINER_ENTRY);
+		return jar.getInputStream(entry);
+	}
+	
+	/**
+	 * Moves the reader from an element's start to its end.
+	 */
+	private static void skipElement(XMLStreamReader r) throws Exception {
+		
+		int depth = 1;
+		while (depth > 0) {
+			int event = r.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
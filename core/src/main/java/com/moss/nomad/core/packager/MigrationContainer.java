@@ -41,6 +41,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 
 @XmlRootElement(name="container")
@@ -49,6 +50,14 @@ public class MigrationContainer {
 	@XmlElement(name="path")
 	private List<MigrationPath> paths = new ArrayList<MigrationPath>();
 	
+	/*
+	 * Packages written before entries were recorded won't have any, so
+	 * the runner must treat this list as optional.
+	 */
+	@XmlElementWrapper(name="entries")
+	@XmlElement(name="entry")
+	private List<ContainerEntry> entries = new ArrayList<ContainerEntry>();
+	
 	public void add(MigrationPath p) {
 		paths.add(p);
 	}
@@ -56,4 +65,12 @@ public class MigrationContainer {
 	public List<MigrationPath> paths() {
 		return paths;
 	}
+	
+	public void add(ContainerEntry e) {
+		entries.add(e);
+	}
+	
+	public List<ContainerEntry> entries() {
+		return entries;
+	}
 }
@@ -37,6 +37,9 @@
  */
 package com.moss.nomad.core.packager;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.xml.bind.annotation.XmlElement;
 
 import com.moss.nomad.core.def.MigrationDef;
@@ -49,6 +52,9 @@ public final class MigrationPackage {
 	@XmlElement
 	private MigrationResources resources;
 	
+	@XmlElement(name="after")
+	private List<MigrationDef> after = new ArrayList<MigrationDef>();
+	
 	MigrationPackage() {}
 
 	public MigrationPackage(MigrationDef def, MigrationResources resources) {
@@ -56,6 +62,12 @@ public final class MigrationPackage {
 		this.resources = resources;
 	}
 
+	public MigrationPackage(MigrationDef def, MigrationResources resources, List<MigrationDef> after) {
+		this.def = def;
+		this.resources = resources;
+		this.after = after;
+	}
+
 	public MigrationDef def() {
 		return def;
 	}
@@ -63,4 +75,12 @@ public final class MigrationPackage {
 	public MigrationResources resources() {
 		return resources;
 	}
+	
+	/**
+	 * The earlier packages in the path that this one must follow. When empty,
+	 * it follows all of them.
+	 */
+	public List<MigrationDef> after() {
+		return after;
+	}
 }
@@ -40,18 +40,30 @@ package com.moss.nomad.core.packager;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.Marshaller;
@@ -60,9 +72,14 @@ import javax.xml.bind.Unmarshaller;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.moss.nomad.api.scan.HandlerScanner;
 import com.moss.nomad.api.v1.MigrationHandler;
 import com.moss.nomad.core.def.MigrationDef;
 import com.moss.nomad.core.def.MigrationDefs;
+import com.moss.nomad.core.def.MigrationDependency;
+import com.moss.nomad.core.util.Digests;
+import com.moss.nomad.core.util.Events;
+import com.moss.nomad.core.util.Xml;
 
 public class Packager {
 
@@ -96,15 +113,20 @@ public class Packager {
 	
 	private final MigrationContainer container;
 	private final Map<String, ResolvedDependencyInfo> dependencies;
+	private final ConcurrentMap<MigrationDef, FutureTask<ResolvedResources>> resolved;
+	
+	private int parallelism = 1;
+	private ScanCache scanCache;
+	private File base;
+	
+	private final List<String> reusedEntries;
+	private final List<MigrationDef> droppedMigrations;
 	
 	public Packager(PackagerResolver resolver, int includeMostRecent) throws Exception {
 		
 		log = LogFactory.getLog(this.getClass());
 		
-		context = JAXBContext.newInstance(
-			MigrationDefs.class, 
-			MigrationContainer.class 
-		);
+		context = Xml.context(MigrationDefs.class, MigrationContainer.class);
 		
 		if (resolver == null) {
 			throw new NullPointerException();
@@ -115,6 +137,59 @@ public class Packager {
 		
 		this.container = new MigrationContainer();
 		this.dependencies = new HashMap<String, ResolvedDependencyInfo>();
+		this.resolved = new ConcurrentHashMap<MigrationDef, FutureTask<ResolvedResources>>();
+		this.reusedEntries = new ArrayList<String>();
+		this.droppedMigrations = new ArrayList<MigrationDef>();
+	}
+	
+	/**
+	 * When greater than one, add() resolves migrations and scans them for 
+	 * their handlers up to this many at a time, in which case the resolver
+	 * must be thread-safe. The package comes out the same either way.
+	 */
+	public void setParallelism(int width) {
+		
+		if (width < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + width);
+		}
+		
+		this.parallelism = width;
+	}
+	
+	/**
+	 * Looks up each migration artifact's handler in the given cache before
+	 * scanning it, and records what's found there. Null turns caching off, 
+	 * which is the default.
+	 */
+	public void setScanCache(ScanCache cache) {
+		this.scanCache = cache;
+	}
+	
+	/**
+	 * Packages incrementally on top of the given earlier package, usually the
+	 * previous release's. Dependencies it already holds are copied out of it 
+	 * as they're stored there, rather than read, checksummed and digested 
+	 * again from the local repository. It must not be the file being written.
+	 * Null, the default, writes everything from scratch.
+	 */
+	public void setBase(File previousPackage) {
+		this.base = previousPackage;
+	}
+	
+	/**
+	 * The dependency entries the last write() copied from the base package.
+	 */
+	public List<String> reusedEntries() {
+		return reusedEntries;
+	}
+	
+	/**
+	 * The migrations the base package carried on some path that the last 
+	 * write() no longer carries on that path, because they've fallen out of
+	 * the includeMostRecent window or been removed from the path.
+	 */
+	public List<MigrationDef> droppedMigrations() {
+		return droppedMigrations;
 	}
 	
 	public MigrationDefs readDefs(File file) throws Exception {
@@ -134,29 +209,285 @@ public class Packager {
 		
 		MigrationPath path = new MigrationPath(name);
 		
+		/*
+		 * Each def is only resolved once, however many paths it's on. The
+		 * resolving may happen on other threads, but the results are taken
+		 * in path order, so the first failure is the one that would have 
+		 * been hit resolving them one at a time.
+		 */
+		
+		List<FutureTask<ResolvedResources>> tasks = new ArrayList<FutureTask<ResolvedResources>>();
+		
 		int remaining = defs.size();
 		for (MigrationDef def : defs) {
 			
-			MigrationResources res;
 			if (includeMostRecent < 0 || remaining <= includeMostRecent) {
-				res = createMigrationResources(def);
+				tasks.add(task(def));
+			}
+			else {
+				tasks.add(null);
+			}
+			
+			remaining--;
+		}
+		
+		ExecutorService executor = null;
+		if (parallelism > 1) {
+			executor = Executors.newFixedThreadPool(parallelism);
+			for (FutureTask<ResolvedResources> t : tasks) {
+				if (t != null && !t.isDone()) {
+					executor.execute(t);
+				}
+			}
+		}
+		
+		try {
+			add(path, defs, tasks);
+		}
+		catch (Exception ex) {
+			
+			/*
+			 * Whatever didn't resolve is forgotten, so it's tried again 
+			 * next time.
+			 */
+			
+			for (int i = 0; i < defs.size(); i++) {
+				FutureTask<ResolvedResources> t = tasks.get(i);
+				if (t != null) {
+					t.cancel(true);
+					if (!succeeded(t)) {
+						resolved.remove(defs.get(i), t);
+					}
+				}
+			}
+			
+			throw ex;
+		}
+		finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		
+		container.add(path);
+	}
+	
+	private void add(MigrationPath path, List<MigrationDef> defs, List<FutureTask<ResolvedResources>> tasks) throws Exception {
+		
+		for (int i = 0; i < defs.size(); i++) {
+			
+			MigrationDef def = defs.get(i);
+			
+			MigrationResources res;
+			if (tasks.get(i) != null) {
+				
+				ResolvedResources r = get(tasks.get(i));
+				
+				for (Map.Entry<String, ResolvedDependencyInfo> e : r.dependencies.entrySet()) {
+					if (!dependencies.containsKey(e.getKey())) {
+						dependencies.put(e.getKey(), e.getValue());
+					}
+				}
+				
+				res = r.resources;
 			}
 			else {
 				res = null;
 			}
 
-			MigrationPackage pkg = new MigrationPackage(def, res);
+			List<MigrationDef> after = resolveDependencies(def, defs.subList(0, i));
+			
+			MigrationDef stripped = new MigrationDef(
+				def.groupId(), 
+				def.artifactId(), 
+				def.version(), 
+				def.type(), 
+				def.classifier()
+			);
+			
+			MigrationPackage pkg = new MigrationPackage(stripped, res, after);
 			path.add(pkg);
+		}
+	}
+	
+	/**
+	 * The task that resolves the def, which is shared by every path the def
+	 * is on.
+	 */
+	private FutureTask<ResolvedResources> task(final MigrationDef def) {
+		
+		FutureTask<ResolvedResources> task = resolved.get(def);
+		
+		if (task == null) {
+			FutureTask<ResolvedResources> t = new FutureTask<ResolvedResources>(new Callable<ResolvedResources>() {
+				public ResolvedResources call() throws Exception {
+					return createMigrationResources(def);
+				}
+			});
 			
-			remaining--;
+			task = resolved.putIfAbsent(def, t);
+			if (task == null) {
+				task = t;
+			}
 		}
 		
-		container.add(path);
+		return task;
+	}
+	
+	/**
+	 * Waits for the task, running it here if no other thread has started it.
+	 */
+	private static ResolvedResources get(FutureTask<ResolvedResources> task) throws Exception {
+		
+		task.run();
+		
+		try {
+			return task.get();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception)ex.getCause();
+			}
+			throw ex;
+		}
+	}
+	
+	private static boolean succeeded(FutureTask<ResolvedResources> task) {
+		
+		if (!task.isDone() || task.isCancelled()) {
+			return false;
+		}
+		
+		try {
+			task.get();
+			return true;
+		}
+		catch (Exception ex) {
+			return false;
+		}
 	}
 	
 	public void write(OutputStream o) throws Exception {
 		
-		JarOutputStream out = new JarOutputStream(o);
+		Events.Event written = Events.begin(Events.JAR_WRITE);
+		
+		JarFile baseJar = null;
+		try {
+			reusedEntries.clear();
+			droppedMigrations.clear();
+			
+			Map<String, ContainerEntry> baseEntries = null;
+			
+			if (base != null) {
+				baseJar = new JarFile(base);
+				
+				ContainerReader reader = new ContainerReader(baseJar);
+				baseEntries = reader.entries();
+				
+				findDropped(reader);
+			}
+			
+			write(o, baseJar, baseEntries, written);
+		}
+		finally {
+			if (baseJar != null) {
+				baseJar.close();
+			}
+		}
+	}
+	
+	private void write(OutputStream o, JarFile baseJar, Map<String, ContainerEntry> baseEntries, Events.Event written) throws Exception {
+		
+		CountingOutputStream counter = new CountingOutputStream(o);
+		JarOutputStream out = new JarOutputStream(counter);
+		
+		container.entries().clear();
+		
+		Map<String, Long> offsets = new HashMap<String, Long>();
+		
+		final byte[] buffer = new byte[1024 * 10]; //10k buffer
+		
+		for (String path : dependencies.keySet()) {
+			ResolvedDependencyInfo info = dependencies.get(path);
+			
+			ContainerEntry reusable = reusable(baseJar, baseEntries, path, info.file(), buffer);
+			
+			if (reusable != null) {
+				
+				/*
+				 * The base has the same bytes stored already, along with 
+				 * their crc and digest, so they're copied across as they are.
+				 */
+				
+				JarEntry from = baseJar.getJarEntry(path);
+				
+				JarEntry entry = new JarEntry(path);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(reusable.size());
+				entry.setCompressedSize(reusable.size());
+				entry.setCrc(from.getCrc());
+				
+				out.closeEntry();
+				offsets.put(path, counter.count());
+				out.putNextEntry(entry);
+				
+				InputStream in = baseJar.getInputStream(from);
+				for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+					out.write(buffer, 0, numRead);
+				}
+				in.close();
+				
+				container.add(reusable);
+				reusedEntries.add(path);
+				
+				continue;
+			}
+			
+			/*
+			 * The digest is recorded in the container so the runner can tell
+			 * whether it already has a copy of this entry without reading it.
+			 * 
+			 * Dependencies are jars, which are compressed already, so they're
+			 * stored as they are. That way the runner can copy them straight
+			 * out of the package, but it means the size and crc have to be 
+			 * known before the entry is written.
+			 */
+			
+			MessageDigest md = Digests.sha256();
+			CRC32 crc = new CRC32();
+			long size = 0;
+			
+			InputStream in = new FileInputStream(info.file());
+			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+				md.update(buffer, 0, numRead);
+				crc.update(buffer, 0, numRead);
+				size += numRead;
+			}
+			in.close();
+			
+			JarEntry entry = new JarEntry(path);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(size);
+			entry.setCompressedSize(size);
+			entry.setCrc(crc.getValue());
+			
+			out.closeEntry();
+			offsets.put(path, counter.count());
+			out.putNextEntry(entry);
+			
+			in = new FileInputStream(info.file());
+			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+				out.write(buffer, 0, numRead);
+			}
+			in.close();
+			
+			container.add(new ContainerEntry(path, Digests.hex(md.digest()), size));
+		}
+		
+		/*
+		 * The container index goes last since it needs the digests of all the
+		 * entries above. The runner looks it up by name, so order doesn't matter.
+		 */
 		
 		{
 			ByteArrayOutputStream bao = new ByteArrayOutputStream();
@@ -166,32 +497,135 @@ public class Packager {
 			
 			byte[] containerIndex = bao.toByteArray();
 			
-			JarEntry entry = new JarEntry("META-INF/container.xml");
+			JarEntry entry = new JarEntry(ContainerReader.CONTAINER_ENTRY);
 			out.putNextEntry(entry);
 			out.write(containerIndex);
 		}
 		
-		final byte[] buffer = new byte[1024 * 10]; //10k buffer
+		/*
+		 * The binary index is stored uncompressed so the runner can map it, 
+		 * and the jar comment says where it is so the runner doesn't have to
+		 * go through the central directory to find it.
+		 */
 		
-		for (String path : dependencies.keySet()) {
-			ResolvedDependencyInfo info = dependencies.get(path);
+		{
+			byte[] index = ContainerIndex.write(container, offsets);
 			
-			JarEntry entry = new JarEntry(path);
+			CRC32 crc = new CRC32();
+			crc.update(index);
+			
+			JarEntry entry = new JarEntry(ContainerIndex.INDEX_ENTRY);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(index.length);
+			entry.setCompressedSize(index.length);
+			entry.setCrc(crc.getValue());
+			
+			out.closeEntry();
+			long offset = counter.count();
 			out.putNextEntry(entry);
+			out.write(index);
 			
-			InputStream in = new FileInputStream(info.file());
+			out.setComment(ContainerIndex.COMMENT_PREFIX + offset);
+		}
+		
+		out.close();
+		
+		if (baseJar != null && log.isInfoEnabled()) {
+			log.info("Copied " + reusedEntries.size() + " of " + dependencies.size() + " dependencies from " + base);
+		}
+		
+		written.detail(dependencies.size() + " dependencies, " + reusedEntries.size() + " reused").bytes(counter.count()).commit();
+	}
+	
+	/**
+	 * Returns the base package's entry for the dependency if it can be 
+	 * copied instead of the local file, otherwise null.
+	 * 
+	 * The local file is taken to be unchanged if the base has it stored at 
+	 * the same path with the same size and crc, and it hasn't been modified 
+	 * since the base was written. The crc catches content that changed while
+	 * keeping its size and an older timestamp, e.g. an artifact copied in 
+	 * with its original mtime. Snapshots are always read again.
+	 */
+	private ContainerEntry reusable(JarFile baseJar, Map<String, ContainerEntry> baseEntries, String path, File file, byte[] buffer) throws IOException {
+		
+		if (baseJar == null || path.contains("-SNAPSHOT")) {
+			return null;
+		}
+		
+		ContainerEntry e = baseEntries.get(path);
+		
+		if (e == null || e.digest() == null || e.size() != file.length() || file.lastModified() > base.lastModified()) {
+			return null;
+		}
+		
+		JarEntry from = baseJar.getJarEntry(path);
+		
+		if (from == null || from.getMethod() != ZipEntry.STORED || from.getSize() != e.size()) {
+			return null;
+		}
+		
+		if (crc(file, buffer) != from.getCrc()) {
+			return null;
+		}
+		
+		return e;
+	}
+	
+	private static long crc(File file, byte[] buffer) throws IOException {
+		
+		CRC32 crc = new CRC32();
+		
+		InputStream in = new FileInputStream(file);
+		try {
 			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
-				out.write(buffer, 0, numRead);
+				crc.update(buffer, 0, numRead);
 			}
+		}
+		finally {
 			in.close();
 		}
 		
-		out.close();
+		return crc.getValue();
+	}
+	
+	/**
+	 * Compares each path with the base package's path of the same name, and
+	 * records the migrations that path no longer carries resources for.
+	 */
+	private void findDropped(ContainerReader reader) throws Exception {
+		
+		for (MigrationPath path : container.paths()) {
+			
+			MigrationPath previous = reader.path(path.name());
+			
+			if (previous == null) {
+				continue;
+			}
+			
+			Set<MigrationDef> included = new HashSet<MigrationDef>();
+			for (MigrationPackage p : path.packages()) {
+				if (p.resources() != null) {
+					included.add(p.def());
+				}
+			}
+			
+			for (MigrationPackage p : previous.packages()) {
+				if (p.resources() != null && !included.contains(p.def())) {
+					
+					log.warn("Migration " + p.def() + " on path " + path.name() + " was in " + base + " but is no longer included");
+					
+					droppedMigrations.add(p.def());
+				}
+			}
+		}
 	}
 	
 	public void clear() {
 		container.paths().clear();
+		container.entries().clear();
 		dependencies.clear();
+		resolved.clear();
 	}
 	
 	private boolean migrationPathExists(String pathName) {
@@ -205,10 +639,47 @@ public class Packager {
 		return false;
 	}
 	
-	private MigrationResources createMigrationResources(MigrationDef def) throws Exception {
+	private static List<MigrationDef> resolveDependencies(MigrationDef def, List<MigrationDef> earlier) {
+		
+		List<MigrationDef> after = new ArrayList<MigrationDef>();
+		
+		for (MigrationDependency dep : def.dependencies()) {
+			
+			MigrationDef found = null;
+			for (int i = earlier.size() - 1; i >= 0 && found == null; i--) {
+				if (dep.matches(earlier.get(i))) {
+					found = earlier.get(i);
+				}
+			}
+			
+			if (found == null) {
+				throw new RuntimeException("Migration def " + def + " depends on " + dep + ", which doesn't come before it in the migration path");
+			}
+			
+			after.add(new MigrationDef(
+				found.groupId(), 
+				found.artifactId(), 
+				found.version(), 
+				found.type(), 
+				found.classifier()
+			));
+		}
+		
+		return after;
+	}
+	
+	/**
+	 * May be called from several threads at once, so the dependencies found
+	 * are returned rather than recorded.
+	 */
+	private ResolvedResources createMigrationResources(MigrationDef def) throws Exception {
+		
+		Events.Event resolved = Events.begin(Events.RESOLVE).def(def);
 		
 		ResolvedMigrationInfo info = resolver.resolve(def);
 		
+		resolved.bytes(info.migrationArtifact().length()).commit();
+		
 		/*
 		 * Determine the classpath for this migration package.
 		 */
@@ -224,6 +695,8 @@ public class Packager {
 		));
 		dependencyArtifacts.addAll(info.dependencyArtifacts());
 		
+		Map<String, ResolvedDependencyInfo> found = new LinkedHashMap<String, ResolvedDependencyInfo>();
+		
 		List<String> handlerClassPath = new ArrayList<String>();
 		for (ResolvedDependencyInfo dep : dependencyArtifacts) {
 			
@@ -244,8 +717,8 @@ public class Packager {
 			
 			handlerClassPath.add(pathName);
 			
-			if (!dependencies.containsKey(pathName)) {
-				dependencies.put(pathName, dep);
+			if (!found.containsKey(pathName)) {
+				found.put(pathName, dep);
 			}
 		}
 
@@ -254,38 +727,33 @@ public class Packager {
 		 * one, any other case will cause an exception to be thrown.
 		 */
 		
-		URL[] cp;
-		{
-			List<URL> urls = new ArrayList<URL>();
-			
-			urls.add(info.migrationArtifact().toURL());
-			
-			for (ResolvedDependencyInfo d : dependencyArtifacts) {
-				urls.add(d.file().toURL());
-			}
-			
-			cp = urls.toArray(new URL[0]);
-		}
+		Events.Event scan = Events.begin(Events.HANDLER_SCAN).def(def);
 		
-		ClassLoader cl = new URLClassLoader(cp, null);
+		List<String> handlerClassNames = null;
 		
-		List<String> handlerClassNames = new ArrayList<String>();
-		for (String jarPath : listJarPaths(info.migrationArtifact())) {
-			
-			if (!jarPath.endsWith(".class")) {
-				continue;
-			}
+		String digest = null;
+		if (scanCache != null) {
+			digest = scanCache.digest(info.migrationArtifact());
+			handlerClassNames = scanCache.get(digest);
+		}
+		
+		if (handlerClassNames == null) {
 			
-			String className = jarPath.replaceAll("\\/", ".").substring(0, jarPath.length() - 6);
-			Class clazz = cl.loadClass(className);
+			HandlerScanner scanner = new HandlerScanner();
+			scanner.scanJar(info.migrationArtifact());
+			handlerClassNames = scanner.handlers();
 			
-			for (Class iface : clazz.getInterfaces()) {
-				if (iface.getName().equals(MigrationHandler.class.getName())) {
-					handlerClassNames.add(className);
-					break;
-				}
+			if (scanCache != null) {
+				scanCache.put(digest, handlerClassNames);
 			}
+			
+			scan.detail("scanned");
 		}
+		else {
+			scan.detail("cached");
+		}
+		
+		scan.bytes(info.migrationArtifact().length()).commit();
 		
 		String handlerClassName;
 		if (handlerClassNames.isEmpty()) {
@@ -318,20 +786,44 @@ public class Packager {
 			handlerClassName = handlerClassNames.get(0);
 		}
 		
-		return new MigrationResources(handlerClassName, handlerClassPath);
+		return new ResolvedResources(new MigrationResources(handlerClassName, handlerClassPath), found);
 	}
 	
-	private static String[] listJarPaths(File file) throws Exception {
+	private static final class ResolvedResources {
 		
-		JarFile jar = new JarFile(file);
-		Enumeration<JarEntry> e = jar.entries();
-		List<String> paths = new ArrayList<String>();
+		final MigrationResources resources;
+		final Map<String, ResolvedDependencyInfo> dependencies;
 		
-		while (e.hasMoreElements()) {
-			JarEntry entry = e.nextElement();
-			paths.add(entry.getName());
+		ResolvedResources(MigrationResources resources, Map<String, ResolvedDependencyInfo> dependencies) {
+			this.resources = resources;
+			this.dependencies = dependencies;
 		}
+	}
+	
+	/**
+	 * Keeps track of how much has been written, so the packager knows where
+	 * in the jar each entry starts.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+		
+		private long count;
 		
-		return paths.toArray(new String[0]);
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		public long count() {
+			return count;
+		}
+		
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
 	}
 }
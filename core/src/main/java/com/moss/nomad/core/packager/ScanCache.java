@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.packager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.util.Digests;
+
+/**
+ * A directory of handler scan results, one file per migration artifact named 
+ * by the SHA-256 of the artifact's content. An artifact that hasn't changed
+ * since it was last packaged, by this build or any other, doesn't need to be
+ * scanned again.
+ * 
+ * Like the {@link com.moss.nomad.core.runner.ExtractionCache}, results are
+ * written to a temporary file and renamed into place, so concurrent builds
+ * sharing the directory never see a partial entry. An entry that can't be
+ * read is treated as missing and written again.
+ * 
+ * The cache only ever saves time: when the directory can't be created or an
+ * entry can't be written, a warning is logged and artifacts are scanned as
+ * though there were no cache.
+ */
+public class ScanCache {
+	
+	private static final String SUFFIX = ".handlers";
+	private static final String PARTIAL_SUFFIX = ".part";
+	
+	/**
+	 * The first line of every entry, so that entries written in some other
+	 * format are ignored rather than misread.
+	 */
+	private static final String HEADER = "nomad-handler-scan 1";
+	
+	private final Log log;
+	private final File dir;
+	private final boolean available;
+	
+	public ScanCache(File dir) {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (dir == null) {
+			throw new NullPointerException();
+		}
+		
+		this.dir = dir;
+		
+		if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+			log.warn("Cannot create handler scan cache directory " + dir + ", scanning without it");
+			available = false;
+		}
+		else if (!dir.isDirectory()) {
+			log.warn("Handler scan cache " + dir + " is not a directory, scanning without it");
+			available = false;
+		}
+		else {
+			available = true;
+		}
+	}
+	
+	/**
+	 * The cache under ~/.nomad/scan-cache.
+	 */
+	public static ScanCache userCache() {
+		return new ScanCache(new File(new File(System.getProperty("user.home"), ".nomad"), "scan-cache"));
+	}
+	
+	public File dir() {
+		return dir;
+	}
+	
+	/**
+	 * The digest an artifact is cached under.
+	 */
+	public String digest(File artifact) throws Exception {
+		
+		MessageDigest md = Digests.sha256();
+		
+		final byte[] buffer = new byte[1024 * 10]; //10k buffer
+		
+		InputStream in = new FileInputStream(artifact);
+		try {
+			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+				md.update(buffer, 0, numRead);
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		return Digests.hex(md.digest());
+	}
+	
+	/**
+	 * Returns the handler class names recorded for the given artifact 
+	 * digest, or null if there are none.
+	 */
+	public List<String> get(String digest) {
+		
+		if (!available) {
+			return null;
+		}
+		
+		File file = new File(dir, digest + SUFFIX);
+		
+		if (!file.exists()) {
+			return null;
+		}
+		
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				if (!HEADER.equals(r.readLine())) {
+					return null;
+				}
+				
+				List<String> handlers = new ArrayList<String>();
+				for (String line = r.readLine(); line != null; line = r.readLine()) {
+					if (line.length() > 0) {
+						handlers.add(line);
+					}
+				}
+				
+				if (log.isDebugEnabled()) {
+					log.debug("Using cached handler scan " + file);
+				}
+				
+				return handlers;
+			}
+			finally {
+				r.close();
+			}
+		}
+		catch (Exception ex) {
+			log.warn("Could not read cached handler scan " + file + ", scanning again", ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Records the handler class names found in the artifact with the given
+	 * digest, if the entry can be written.
+	 */
+	public void put(String digest, List<String> handlers) {
+		
+		if (!available) {
+			return;
+		}
+		
+		File target = new File(dir, digest + SUFFIX);
+		
+		try {
+			write(target, handlers);
+		}
+		catch (Exception ex) {
+			log.warn("Could not cache handler scan " + target, ex);
+		}
+	}
+	
+	private void write(File target, List<String> handlers) throws Exception {
+		
+		File tmp = File.createTempFile("nomad", PARTIAL_SUFFIX, dir);
+		try {
+			Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			try {
+				w.write(HEADER);
+				w.write('\n');
+				
+				for (String handler : handlers) {
+					w.write(handler);
+					w.write('\n');
+				}
+			}
+			finally {
+				w.close();
+			}
+			
+			/*
+			 * Renaming over an existing file isn't possible everywhere. If the
+			 * target exists, another build scanned the same artifact first.
+			 */
+			
+			if (!tmp.renameTo(target) && !target.exists()) {
+				throw new RuntimeException("Cannot move " + tmp + " to " + target);
+			}
+		}
+		finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares migration classloaders between the migrations of a single run that
+ * have exactly the same classpath, in the same order.
+ * 
+ * The pool is told up front how many pending migrations will use each 
+ * classpath. A loader is kept only while migrations that need it remain,
+ * and is dropped as soon as the last of them has been released, so it can
+ * be gc'd just as if it hadn't been shared. Whatever is left when the run 
+ * ends (because a migration failed) is dropped by clear().
+ */
+class ClassLoaderPool {
+	
+	private final boolean share;
+	private final Map<List<String>, Integer> pending;
+	private final Map<List<String>, MigrationLoader> loaders;
+	
+	/**
+	 * @param share when false every migration gets a loader of its own, 
+	 * which is dropped as soon as it is released.
+	 */
+	ClassLoaderPool(boolean share) {
+		this.share = share;
+		this.pending = new HashMap<List<String>, Integer>();
+		this.loaders = new HashMap<List<String>, MigrationLoader>();
+	}
+	
+	/**
+	 * Records that one more pending migration uses the given classpath.
+	 */
+	synchronized void expect(List<String> classpath) {
+		List<String> key = new ArrayList<String>(classpath);
+		Integer count = pending.get(key);
+		pending.put(key, count == null ? 1 : count.intValue() + 1);
+	}
+	
+	/**
+	 * Returns a loader previously added for the given classpath, or null if 
+	 * the caller needs to create one and add() it.
+	 */
+	synchronized MigrationLoader acquire(List<String> classpath) {
+		
+		if (!share) {
+			return null;
+		}
+		
+		return loaders.get(classpath);
+	}
+	
+	/**
+	 * Returns the loader the caller should use. When migrations run in 
+	 * parallel two of them may have created a loader for the same classpath,
+	 * in which case the one added first wins and the other is disposed of.
+	 */
+	synchronized MigrationLoader add(List<String> classpath, MigrationLoader loader) {
+		
+		if (!share) {
+			return loader;
+		}
+		
+		List<String> key = new ArrayList<String>(classpath);
+		
+		MigrationLoader existing = loaders.get(key);
+		
+		if (existing != null) {
+			loader.dispose();
+			return existing;
+		}
+		
+		loaders.put(key, loader);
+		
+		return loader;
+	}
+	
+	/**
+	 * Records that a migration using the given classpath is done with its 
+	 * loader.
+	 */
+	synchronized void release(List<String> classpath, MigrationLoader loader) {
+		
+		List<String> key = new ArrayList<String>(classpath);
+		
+		Integer count = pending.get(key);
+		int remaining = count == null ? 0 : count.intValue() - 1;
+		
+		if (remaining > 0) {
+			pending.put(key, remaining);
+		}
+		else {
+			pending.remove(key);
+		}
+		
+		if (!share) {
+			loader.dispose();
+		}
+		else if (remaining <= 0) {
+			MigrationLoader pooled = loaders.remove(key);
+			if (pooled != null) {
+				pooled.dispose();
+			}
+		}
+	}
+	
+	synchronized void clear() {
+		for (MigrationLoader loader : loaders.values()) {
+			loader.dispose();
+		}
+		loaders.clear();
+		pending.clear();
+	}
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.util.Digests;
+
+/**
+ * A directory of classpath artifacts extracted from package jars, named by
+ * the digest of their content. The same directory can be shared by any number 
+ * of runners, in this process or others. Entries are written to a temporary 
+ * file and renamed into place, so nobody ever sees a partially written 
+ * artifact, and two runners extracting the same entry at once just means one
+ * of the copies wins.
+ * 
+ * Once the directory grows past its maximum size the least recently used
+ * entries are deleted. Entries handed out by this instance stay pinned until 
+ * they're released, and entries used recently by anyone are left alone since 
+ * another process may be about to open them. The size bound is therefore a 
+ * target rather than a hard limit.
+ */
+public class ExtractionCache {
+	
+	private static final String SUFFIX = ".jar";
+	private static final String PARTIAL_SUFFIX = ".part";
+	
+	private static final long EVICTION_GRACE_MILLIS = 1000L * 60 * 5;
+	private static final long STALE_PARTIAL_MILLIS = 1000L * 60 * 60 * 24;
+	
+	private final Log log;
+	private final File dir;
+	private final long maxSize;
+	private final Map<String, Integer> pins;
+	
+	public ExtractionCache(File dir, long maxSize) {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (dir == null) {
+			throw new NullPointerException();
+		}
+		
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Maximum cache size cannot be negative: " + maxSize);
+		}
+		
+		if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new RuntimeException("Cannot create directory: " + dir);
+		}
+		
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.pins = new HashMap<String, Integer>();
+	}
+	
+	public File dir() {
+		return dir;
+	}
+	
+	public long maxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * Returns the cached copy of the given package jar entry, extracting it 
+	 * first if nobody has yet. The returned file stays pinned until it is
+	 * passed to release().
+	 * 
+	 * @param digest identifies the entry's content.
+	 * @param verify whether digest is the SHA-256 of the entry's content and
+	 * should be checked when extracting it.
+	 * @param extracted has the number of bytes extracted added to it.
+	 */
+	File fetch(JarFile jar, JarEntry entry, String digest, boolean verify, AtomicLong extracted) throws Exception {
+		
+		File target = new File(dir, digest + SUFFIX);
+		
+		pin(target);
+		try {
+			
+			/*
+			 * Touching the file is what keeps it from being evicted, if it
+			 * fails the file was evicted out from under us so extract it again.
+			 */
+			
+			if (target.exists() && target.setLastModified(System.currentTimeMillis())) {
+				
+				if (log.isDebugEnabled()) {
+					log.debug("Using cached classpath resource " + entry.getName() + " -> " + target);
+				}
+				
+				return target;
+			}
+			
+			extract(jar, entry, digest, verify, target);
+			extracted.addAndGet(target.length());
+			evict();
+			
+			return target;
+		}
+		catch (Exception ex) {
+			release(target);
+			throw ex;
+		}
+	}
+	
+	void release(File file) {
+		synchronized (pins) {
+			Integer count = pins.get(file.getName());
+			
+			if (count == null) {
+				return;
+			}
+			else if (count.intValue() == 1) {
+				pins.remove(file.getName());
+			}
+			else {
+				pins.put(file.getName(), count.intValue() - 1);
+			}
+		}
+	}
+	
+	private void pin(File file) {
+		synchronized (pins) {
+			Integer count = pins.get(file.getName());
+			pins.put(file.getName(), count == null ? 1 : count.intValue() + 1);
+		}
+	}
+	
+	private boolean pinned(File file) {
+		synchronized (pins) {
+			return pins.containsKey(file.getName());
+		}
+	}
+	
+	private void extract(JarFile jar, JarEntry entry, String digest, boolean verify, File target) throws Exception {
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Caching classpath resource " + entry.getName() + " -> " + target);
+		}
+		
+		File tmp = File.createTempFile("nomad", PARTIAL_SUFFIX, dir);
+		try {
+			
+			MessageDigest md = Digests.sha256();
+			
+			final byte[] buffer = new byte[1024 * 10]; //10k buffer
+			
+			InputStream in = jar.getInputStream(entry);
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+					out.write(buffer, 0, numRead);
+					md.update(buffer, 0, numRead);
+				}
+			}
+			finally {
+				in.close();
+				out.close();
+			}
+			
+			if (verify) {
+				String actual = Digests.hex(md.digest());
+				if (!actual.equals(digest)) {
+					throw new RuntimeException("Package jar entry " + entry.getName() + " does not match its recorded digest " + digest + ", was " + actual);
+				}
+			}
+			
+			/*
+			 * Renaming over an existing file isn't possible everywhere. If the
+			 * target exists, someone else extracted the same content first.
+			 */
+			
+			if (!tmp.renameTo(target) && !target.exists()) {
+				throw new RuntimeException("Cannot move " + tmp + " to " + target);
+			}
+		}
+		finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+	
+	private synchronized void evict() {
+		
+		File[] files = dir.listFiles();
+		
+		if (files == null) {
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		long total = 0;
+		
+		List<File> entries = new ArrayList<File>();
+		for (File f : files) {
+			
+			if (f.getName().endsWith(PARTIAL_SUFFIX)) {
+				
+				/*
+				 * Left behind by a process that died while extracting.
+				 */
+				
+				if (now - f.lastModified() > STALE_PARTIAL_MILLIS) {
+					f.delete();
+				}
+			}
+			else if (f.getName().endsWith(SUFFIX)) {
+				entries.add(f);
+				total += f.length();
+			}
+		}
+		
+		if (total <= maxSize) {
+			return;
+		}
+		
+		Collections.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long x = a.lastModified();
+				long y = b.lastModified();
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+		
+		for (File f : entries) {
+			
+			if (total <= maxSize) {
+				break;
+			}
+			
+			if (pinned(f) || now - f.lastModified() < EVICTION_GRACE_MILLIS) {
+				continue;
+			}
+			
+			long length = f.length();
+			
+			if (f.delete()) {
+				
+				if (log.isDebugEnabled()) {
+					log.debug("Evicted cached classpath resource " + f);
+				}
+				
+				total -= length;
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of applying a package to a fleet of targets: how each target
+ * fared, and how long it took them. Latencies are measured per target, from
+ * the start of its run to its end.
+ */
+public final class FleetResults {
+	
+	private final List<String> succeeded = new ArrayList<String>();
+	private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+	private final List<String> skipped = new ArrayList<String>();
+	private final List<Long> latencies = new ArrayList<Long>();
+	
+	private boolean stopped;
+	private long elapsed;
+	
+	synchronized void succeeded(String id, long nanos) {
+		succeeded.add(id);
+		latencies.add(nanos);
+	}
+	
+	synchronized void failed(String id, Exception ex, long nanos) {
+		failures.put(id, ex);
+		latencies.add(nanos);
+	}
+	
+	synchronized void skipped(String id) {
+		skipped.add(id);
+	}
+	
+	synchronized void finished(long nanos, boolean stopped) {
+		this.elapsed = nanos;
+		this.stopped = stopped;
+	}
+	
+	/**
+	 * The targets whose pending migrations all completed.
+	 */
+	public synchronized List<String> succeeded() {
+		return Collections.unmodifiableList(new ArrayList<String>(succeeded));
+	}
+	
+	/**
+	 * The targets that stopped at a failure, along with the failure.
+	 */
+	public synchronized Map<String, Exception> failures() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, Exception>(failures));
+	}
+	
+	/**
+	 * The targets known to the run that were left with pending migrations 
+	 * unattempted because a failure stopped it early. Only a run by 
+	 * migration knows of targets before it starts them; runFleet() doesn't
+	 * take targets from its iterator once it has stopped, so it reports 
+	 * none.
+	 */
+	public synchronized List<String> skipped() {
+		return Collections.unmodifiableList(new ArrayList<String>(skipped));
+	}
+	
+	public synchronized boolean failed() {
+		return !failures.isEmpty();
+	}
+	
+	/**
+	 * Whether targets were left unattempted because a failure stopped the
+	 * run early.
+	 */
+	public synchronized boolean stopped() {
+		return stopped;
+	}
+	
+	/**
+	 * How many targets were attempted.
+	 */
+	public synchronized int count() {
+		return latencies.size();
+	}
+	
+	/**
+	 * The wall clock time of the whole run, in milliseconds.
+	 */
+	public synchronized long elapsedMillis() {
+		return elapsed / 1000000;
+	}
+	
+	/**
+	 * Targets attempted per second of wall clock time.
+	 */
+	public synchronized double throughput() {
+		
+		if (elapsed == 0) {
+			return 0;
+		}
+		
+		return latencies.size() / (elapsed / 1000000000d);
+	}
+	
+	public synchronized long meanLatencyMillis() {
+		
+		if (latencies.isEmpty()) {
+			return 0;
+		}
+		
+		long total = 0;
+		for (Long l : latencies) {
+			total += l;
+		}
+		
+		return total / latencies.size() / 1000000;
+	}
+	
+	/**
+	 * The latency that the given fraction of targets came in under, e.g. 
+	 * 0.95 for the 95th percentile, in milliseconds.
+	 */
+	public synchronized long latencyMillis(double percentile) {
+		
+		if (percentile < 0 || percentile > 1) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 1: " + percentile);
+		}
+		
+		if (latencies.isEmpty()) {
+			return 0;
+		}
+		
+		long[] sorted = new long[latencies.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = latencies.get(i);
+		}
+		Arrays.sort(sorted);
+		
+		int index = (int)Math.ceil(percentile * sorted.length) - 1;
+		
+		return sorted[Math.max(0, index)] / 1000000;
+	}
+	
+	public String toString() {
+		return 
+			count() + " targets in " + elapsedMillis() + "ms (" + Math.round(throughput()) + "/s), " + 
+			failures().size() + " failed" + (stopped() ? ", stopped early" : "") + 
+			(skipped().isEmpty() ? "" : ", " + skipped().size() + " skipped") + 
+			", latency mean " + meanLatencyMillis() + "ms, p50 " + latencyMillis(0.5) + 
+			"ms, p95 " + latencyMillis(0.95) + "ms, max " + latencyMillis(1) + "ms";
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.List;
+
+import com.moss.nomad.core.history.MigrationHistory;
+
+/**
+ * One of the data sets a package is applied to when running it against a 
+ * whole fleet, e.g. a single service node.
+ */
+public final class FleetTarget {
+	
+	private final String id;
+	private final PathRun run;
+	
+	public FleetTarget(String id, MigrationHistory history, byte[] env) {
+		
+		if (id == null) {
+			throw new NullPointerException();
+		}
+		
+		this.id = id;
+		this.run = new PathRun(history, env);
+	}
+	
+	public String id() {
+		return id;
+	}
+	
+	public MigrationHistory history() {
+		return run.history();
+	}
+	
+	public byte[] env() {
+		return run.env();
+	}
+	
+	/**
+	 * Listeners added here only hear about migrations of this target, in 
+	 * addition to the runner's own listeners which hear about all of them.
+	 */
+	public void addListener(RunListener l) {
+		run.addListener(l);
+	}
+	
+	public List<RunListener> listeners() {
+		return run.listeners();
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * The main class of the child JVMs in a WorkerPool. Requests are read from
+ * stdin and replies written to stdout, one at a time, until stdin is 
+ * closed. Each migration gets its own classloader and is executed through 
+ * the ClassLoaderBridge, just as it would be in the runner's JVM.
+ * 
+ * This class is all the child JVM has on its classpath besides the 
+ * migration's own, so it must not use anything outside the JDK.
+ * 
+ * Request: int classpath size, the classpath files' paths as modified 
+ * UTF-8, the handler class name, int env length (-1 for none), the env.
+ * 
+ * Reply: boolean whether the migration succeeded, and if it didn't, int 
+ * length and the UTF-8 bytes of its stacktrace.
+ */
+public final class ForkedWorker {
+	
+	private static final String BRIDGE = "com.moss.nomad.api.v1.ClassLoaderBridge";
+	
+	private ForkedWorker() {}
+	
+	public static void main(String[] args) throws Exception {
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		
+		/*
+		 * stdout carries the replies, anything the handlers print has to go
+		 * elsewhere.
+		 */
+		
+		System.setOut(System.err);
+		
+		while (true) {
+			
+			int count;
+			try {
+				count = in.readInt();
+			}
+			catch (EOFException ex) {
+				return;
+			}
+			
+			URL[] classpath = new URL[count];
+			for (int i = 0; i < count; i++) {
+				classpath[i] = new File(in.readUTF()).toURL();
+			}
+			
+			String className = in.readUTF();
+			
+			byte[] env = null;
+			int envLength = in.readInt();
+			if (envLength >= 0) {
+				env = new byte[envLength];
+				in.readFully(env);
+			}
+			
+			String stacktrace = execute(classpath, className, env);
+			
+			if (stacktrace == null) {
+				out.writeBoolean(true);
+			}
+			else {
+				byte[] bytes = stacktrace.getBytes("UTF-8");
+				out.writeBoolean(false);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			
+			out.flush();
+		}
+	}
+	
+	private static String execute(URL[] classpath, String className, byte[] env) {
+		
+		ClassLoader currentCl = Thread.currentThread().getContextClassLoader();
+		try {
+			ClassLoader cl = new URLClassLoader(classpath, null);
+			Method bridge = cl.loadClass(BRIDGE).getMethod("execute", String.class, byte[].class);
+			
+			Thread.currentThread().setContextClassLoader(cl);
+			
+			return (String)bridge.invoke(null, className, env);
+		}
+		catch (Throwable t) {
+			StringWriter w = new StringWriter();
+			t.printStackTrace(new PrintWriter(w));
+			return w.toString();
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(currentCl);
+		}
+	}
+}
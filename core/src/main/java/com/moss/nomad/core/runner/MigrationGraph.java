@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.packager.MigrationPackage;
+
+/**
+ * The pending migrations of a path, ordered by the dependencies their defs
+ * declare. A migration that doesn't declare any follows every migration 
+ * before it, so a path without declared dependencies is strictly ordered.
+ */
+class MigrationGraph {
+	
+	interface Step {
+		void execute(MigrationPackage pkg) throws Exception;
+	}
+	
+	private final List<MigrationPackage> packages;
+	private final List<List<Integer>> successors;
+	private final int[] predecessors;
+	private final boolean declared;
+	
+	/**
+	 * @param packages the pending packages, in path order. Dependencies on
+	 * packages that aren't pending have already been satisfied.
+	 */
+	MigrationGraph(List<MigrationPackage> packages) {
+		
+		this.packages = packages;
+		this.successors = new ArrayList<List<Integer>>();
+		this.predecessors = new int[packages.size()];
+		
+		boolean declared = false;
+		
+		Map<MigrationDef, Integer> index = new HashMap<MigrationDef, Integer>();
+		
+		/*
+		 * The packages nothing follows yet. Everything seen so far precedes 
+		 * one of these, so they're all a package needs to follow in order to 
+		 * follow everything.
+		 */
+		
+		Set<Integer> tails = new LinkedHashSet<Integer>();
+		
+		for (int i = 0; i < packages.size(); i++) {
+			
+			MigrationPackage pkg = packages.get(i);
+			
+			List<Integer> follows = new ArrayList<Integer>();
+			
+			if (pkg.after().isEmpty()) {
+				follows.addAll(tails);
+			}
+			else {
+				declared = true;
+				
+				for (MigrationDef def : pkg.after()) {
+					Integer j = index.get(def);
+					if (j != null) {
+						follows.add(j);
+					}
+				}
+			}
+			
+			successors.add(new ArrayList<Integer>());
+			
+			for (Integer j : follows) {
+				successors.get(j).add(i);
+				predecessors[i]++;
+				tails.remove(j);
+			}
+			
+			tails.add(i);
+			index.put(pkg.def(), i);
+		}
+		
+		this.declared = declared;
+	}
+	
+	/**
+	 * Whether any of the pending migrations declared dependencies, if none 
+	 * did there's nothing to run in parallel.
+	 */
+	boolean declared() {
+		return declared;
+	}
+	
+	/**
+	 * Executes each migration once all those it follows have completed, 
+	 * running up to width of them at a time. Ready migrations are started in
+	 * path order. After a failure nothing new is started, the migrations 
+	 * already running are waited for, and the first failure is thrown.
+	 */
+	void run(final Step step, int width) throws Exception {
+		
+		ExecutorService executor = Executors.newFixedThreadPool(width, new DaemonThreadFactory("nomad-migration"));
+		
+		try {
+			CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+			
+			int[] remaining = predecessors.clone();
+			
+			PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+			for (int i = 0; i < remaining.length; i++) {
+				if (remaining[i] == 0) {
+					ready.add(i);
+				}
+			}
+			
+			Exception failure = null;
+			int running = 0;
+			
+			while (true) {
+				
+				while (failure == null && !ready.isEmpty() && running < width) {
+					
+					final int i = ready.poll();
+					
+					completion.submit(new Callable<Integer>() {
+						public Integer call() throws Exception {
+							step.execute(packages.get(i));
+							return i;
+						}
+					});
+					
+					running++;
+				}
+				
+				if (running == 0) {
+					break;
+				}
+				
+				Future<Integer> done = completion.take();
+				running--;
+				
+				try {
+					int i = done.get();
+					
+					for (Integer j : successors.get(i)) {
+						if (--remaining[j] == 0) {
+							ready.add(j);
+						}
+					}
+				}
+				catch (ExecutionException ex) {
+					if (failure == null) {
+						if (ex.getCause() instanceof Exception) {
+							failure = (Exception)ex.getCause();
+						}
+						else {
+							failure = ex;
+						}
+					}
+				}
+			}
+			
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * A migration classloader along with what it took to create it.
+ */
+class MigrationLoader {
+	
+	private final ClassLoader classLoader;
+	private final List<File> classpath;
+	private final Method bridge;
+	private final Method timings;
+	private final ExtractionCache cache;
+	private final List<File> pinned;
+	
+	private long extractNanos;
+	private long classLoaderNanos;
+	private long extractedBytes;
+	private long createdAt;
+	private boolean costsClaimed;
+	
+	MigrationLoader(ClassLoader classLoader, List<File> classpath, ExtractionCache cache, List<File> pinned) throws Exception {
+		this.classLoader = classLoader;
+		this.classpath = classpath;
+		this.cache = cache;
+		this.pinned = pinned;
+		
+		Class clazz = classLoader.loadClass("com.moss.nomad.api.v1.ClassLoaderBridge");
+		bridge = clazz.getMethod("execute", String.class, byte[].class);
+		
+		/*
+		 * Older api jars don't time their phases.
+		 */
+		
+		Method m;
+		try {
+			m = clazz.getMethod("timings");
+		}
+		catch (NoSuchMethodException ex) {
+			m = null;
+		}
+		timings = m;
+	}
+	
+	/**
+	 * Records what it took to create this loader.
+	 */
+	void created(long extractNanos, long classLoaderNanos, long extractedBytes) {
+		this.extractNanos = extractNanos;
+		this.classLoaderNanos = classLoaderNanos;
+		this.extractedBytes = extractedBytes;
+		this.createdAt = System.nanoTime();
+	}
+	
+	/**
+	 * The nanoseconds spent extracting the classpath and creating the 
+	 * classloader, the bytes extracted, and the System.nanoTime() at which
+	 * the loader was done. Only the first migration to ask is charged for 
+	 * them, those that reuse the loader get zeros.
+	 */
+	synchronized long[] claimCreationCosts() {
+		
+		if (costsClaimed) {
+			return new long[4];
+		}
+		
+		costsClaimed = true;
+		
+		return new long[] { extractNanos, classLoaderNanos, extractedBytes, createdAt };
+	}
+	
+	/**
+	 * How many classes the loader has defined so far, or -1 if it can't 
+	 * tell.
+	 */
+	int classesDefined() {
+		
+		if (classLoader instanceof CountingClassLoader) {
+			return ((CountingClassLoader)classLoader).defined();
+		}
+		
+		if (classLoader instanceof NestedJarClassLoader) {
+			return ((NestedJarClassLoader)classLoader).defined();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * The phase timings of the last execute() on this thread, as the 
+	 * ClassLoaderBridge reports them, or null if it doesn't.
+	 */
+	long[] timings() throws Exception {
+		return timings == null ? null : (long[])timings.invoke(null);
+	}
+	
+	ClassLoader classLoader() {
+		return classLoader;
+	}
+	
+	/**
+	 * The files the classloader loads from, or null if its classpath is 
+	 * served from memory.
+	 */
+	List<File> classpath() {
+		return classpath;
+	}
+	
+	/**
+	 * Runs the handler through the ClassLoaderBridge, returns the stacktrace
+	 * of the failure if there was one.
+	 */
+	String execute(String className, byte[] env) throws Exception {
+		return (String)bridge.invoke(null, className, env);
+	}
+	
+	/**
+	 * Lets go of the cached classpath resources this loader uses. The loader 
+	 * itself is left to the garbage collector.
+	 */
+	void dispose() {
+		for (File f : pinned) {
+			cache.release(f);
+		}
+		pinned.clear();
+	}
+}
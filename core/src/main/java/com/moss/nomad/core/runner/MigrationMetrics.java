@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import com.moss.nomad.core.history.Migration;
+
+/**
+ * Where the time went in one migration. Extracting the classpath and 
+ * creating the classloader are only charged to the first migration that 
+ * uses a loader; migrations that share it report zero for both. Migrations
+ * run in a worker JVM, or against an api jar that doesn't time its phases,
+ * report all of their execution as handler time.
+ */
+public final class MigrationMetrics {
+	
+	private final Migration migration;
+	private final String handler;
+	private final boolean failed;
+	private final long extractNanos;
+	private final long classLoaderNanos;
+	private final long handlerLoadNanos;
+	private final long envDecodeNanos;
+	private final long handlerNanos;
+	private final long totalNanos;
+	private final long extractedBytes;
+	private final int classesLoaded;
+	
+	MigrationMetrics(Migration migration, String handler, boolean failed, long extractNanos, long classLoaderNanos, long handlerLoadNanos, long envDecodeNanos, long handlerNanos, long totalNanos, long extractedBytes, int classesLoaded) {
+		this.migration = migration;
+		this.handler = handler;
+		this.failed = failed;
+		this.extractNanos = extractNanos;
+		this.classLoaderNanos = classLoaderNanos;
+		this.handlerLoadNanos = handlerLoadNanos;
+		this.envDecodeNanos = envDecodeNanos;
+		this.handlerNanos = handlerNanos;
+		this.totalNanos = totalNanos;
+		this.extractedBytes = extractedBytes;
+		this.classesLoaded = classesLoaded;
+	}
+	
+	public Migration migration() {
+		return migration;
+	}
+	
+	/**
+	 * The handler's class name.
+	 */
+	public String handler() {
+		return handler;
+	}
+	
+	public boolean failed() {
+		return failed;
+	}
+	
+	/**
+	 * Time spent extracting (or reading into memory) the classpath.
+	 */
+	public long extractNanos() {
+		return extractNanos;
+	}
+	
+	/**
+	 * Time spent creating the classloader.
+	 */
+	public long classLoaderNanos() {
+		return classLoaderNanos;
+	}
+	
+	/**
+	 * Time spent loading the handler class, along with whatever it needed.
+	 */
+	public long handlerLoadNanos() {
+		return handlerLoadNanos;
+	}
+	
+	public long envDecodeNanos() {
+		return envDecodeNanos;
+	}
+	
+	/**
+	 * Time spent in the handler itself.
+	 */
+	public long handlerNanos() {
+		return handlerNanos;
+	}
+	
+	/**
+	 * The whole migration, from the runner's point of view, including the
+	 * run listeners.
+	 */
+	public long totalNanos() {
+		return totalNanos;
+	}
+	
+	public long extractedBytes() {
+		return extractedBytes;
+	}
+	
+	/**
+	 * Classes the migration's classloader defined while it ran, or -1 if it
+	 * isn't known. Migrations running at the same time on a shared loader 
+	 * are counted together.
+	 */
+	public int classesLoaded() {
+		return classesLoaded;
+	}
+}
@@ -0,0 +1,364 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Serves classes and resources straight out of the jars nested in a package
+ * jar, without writing them to disk. Each nested jar is read once when the 
+ * loader is created, and the content of its entries is kept in direct (off 
+ * heap) buffers which are released along with the loader.
+ */
+class NestedJarClassLoader extends ClassLoader {
+	
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	
+	/**
+	 * Indexes the given package jar entries, in classpath order. Returns null
+	 * if their content doesn't fit in maxBytes.
+	 */
+	static NestedJarClassLoader load(JarFile packageJar, List<String> classpath, long maxBytes) throws Exception {
+		
+		NestedJarClassLoader cl = new NestedJarClassLoader(maxBytes);
+		
+		for (String req : classpath) {
+			
+			JarEntry entry = packageJar.getJarEntry(req);
+			
+			if (entry == null) {
+				throw new RuntimeException("Expected package jar entry not found: " + req);
+			}
+			
+			InputStream in = packageJar.getInputStream(entry);
+			try {
+				if (!cl.index(req, in)) {
+					return null;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		
+		return cl;
+	}
+	
+	private final long maxBytes;
+	private final Map<String, List<Slice>> slices;
+	private final URLStreamHandler handler;
+	
+	private final AtomicInteger defined = new AtomicInteger();
+	
+	private ByteBuffer chunk;
+	private long allocated;
+	
+	private NestedJarClassLoader(long maxBytes) {
+		super(null);
+		
+		this.maxBytes = maxBytes;
+		this.slices = new HashMap<String, List<Slice>>();
+		this.handler = new SliceHandler();
+	}
+	
+	/**
+	 * Bytes of direct memory held by this loader.
+	 */
+	long allocated() {
+		return allocated;
+	}
+	
+	/**
+	 * The number of classes this loader has defined.
+	 */
+	int defined() {
+		return defined.get();
+	}
+	
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		
+		Slice slice = first(name.replace('.', '/') + ".class");
+		
+		if (slice == null) {
+			throw new ClassNotFoundException(name);
+		}
+		
+		int i = name.lastIndexOf('.');
+		if (i != -1) {
+			String pkg = name.substring(0, i);
+			if (getPackage(pkg) == null) {
+				definePackage(pkg, null, null, null, null, null, null, null);
+			}
+		}
+		
+		Class<?> c = defineClass(name, slice.buffer(), null);
+		defined.incrementAndGet();
+		
+		return c;
+	}
+	
+	protected URL findResource(String name) {
+		
+		Slice slice = first(name);
+		
+		if (slice == null) {
+			return null;
+		}
+		
+		return slice.url();
+	}
+	
+	protected Enumeration<URL> findResources(String name) throws IOException {
+		
+		List<Slice> matches = slices.get(name);
+		List<URL> urls = new ArrayList<URL>();
+		
+		if (matches != null) {
+			for (Slice s : matches) {
+				urls.add(s.url());
+			}
+		}
+		
+		return Collections.enumeration(urls);
+	}
+	
+	private Slice first(String name) {
+		
+		List<Slice> matches = slices.get(name);
+		
+		if (matches == null) {
+			return null;
+		}
+		
+		return matches.get(0);
+	}
+	
+	private boolean index(String jarName, InputStream in) throws Exception {
+		
+		ZipInputStream zip = new ZipInputStream(in);
+		
+		final byte[] buffer = new byte[1024 * 10]; //10k buffer
+		
+		/*
+		 * Entry sizes aren't always known up front when streaming, so the 
+		 * content goes into a scratch buffer first.
+		 */
+		
+		ScratchBuffer content = new ScratchBuffer();
+		
+		for (ZipEntry e = zip.getNextEntry(); e != null; e = zip.getNextEntry()) {
+			
+			if (e.isDirectory()) {
+				continue;
+			}
+			
+			content.reset();
+			for(int numRead = zip.read(buffer); numRead!=-1; numRead = zip.read(buffer)){
+				content.write(buffer, 0, numRead);
+			}
+			
+			ByteBuffer stored = store(content);
+			
+			if (stored == null) {
+				return false;
+			}
+			
+			List<Slice> matches = slices.get(e.getName());
+			if (matches == null) {
+				matches = new ArrayList<Slice>(1);
+				slices.put(e.getName(), matches);
+			}
+			
+			matches.add(new Slice(jarName, e.getName(), stored));
+		}
+		
+		return true;
+	}
+	
+	private ByteBuffer store(ScratchBuffer content) {
+		
+		int length = content.size();
+		
+		if (chunk == null || chunk.remaining() < length) {
+			
+			int capacity = Math.max(CHUNK_SIZE, length);
+			
+			if (allocated + capacity > maxBytes) {
+				
+				/*
+				 * The last chunk might still fit even though a full one won't.
+				 */
+				
+				capacity = length;
+				if (allocated + capacity > maxBytes) {
+					return null;
+				}
+			}
+			
+			chunk = ByteBuffer.allocateDirect(capacity);
+			allocated += capacity;
+		}
+		
+		ByteBuffer slice = chunk.slice();
+		slice.limit(length);
+		slice.put(content.bytes(), 0, length);
+		slice.flip();
+		
+		chunk.position(chunk.position() + length);
+		
+		return slice;
+	}
+	
+	private final class Slice {
+		
+		private final String jarName;
+		private final String name;
+		private final ByteBuffer content;
+		
+		Slice(String jarName, String name, ByteBuffer content) {
+			this.jarName = jarName;
+			this.name = name;
+			this.content = content;
+		}
+		
+		ByteBuffer buffer() {
+			return content.duplicate();
+		}
+		
+		URL url() {
+			try {
+				return new URL("nomad", "", -1, "/" + jarName + "!/" + name, handler);
+			}
+			catch (MalformedURLException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+	
+	private final class SliceHandler extends URLStreamHandler {
+		
+		protected URLConnection openConnection(URL url) throws IOException {
+			
+			String path = url.getPath();
+			int i = path.indexOf("!/");
+			
+			if (i == -1) {
+				throw new IOException("Not a nested jar resource: " + url);
+			}
+			
+			String jarName = path.substring(1, i);
+			String name = path.substring(i + 2);
+			
+			List<Slice> matches = slices.get(name);
+			if (matches != null) {
+				for (final Slice s : matches) {
+					if (s.jarName.equals(jarName)) {
+						return new URLConnection(url) {
+							public void connect() {}
+							public int getContentLength() {
+								return s.content.remaining();
+							}
+							public InputStream getInputStream() {
+								return new ByteBufferInputStream(s.buffer());
+							}
+						};
+					}
+				}
+			}
+			
+			throw new IOException("Resource not found: " + url);
+		}
+	}
+	
+	private static final class ByteBufferInputStream extends InputStream {
+		
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		
+		public int read(byte[] b, int off, int len) {
+			
+			if (len == 0) {
+				return 0;
+			}
+			
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+		
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+	
+	private static final class ScratchBuffer extends ByteArrayOutputStream {
+		
+		byte[] bytes() {
+			return buf;
+		}
+	}
+}
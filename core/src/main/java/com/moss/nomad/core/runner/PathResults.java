@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of running several migration paths at once. A path that 
+ * failed has no effect on the others, so each one is reported separately.
+ */
+public final class PathResults {
+	
+	private final List<String> succeeded = new ArrayList<String>();
+	private final Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+	
+	void succeeded(String path) {
+		succeeded.add(path);
+	}
+	
+	void failed(String path, Exception ex) {
+		failures.put(path, ex);
+	}
+	
+	/**
+	 * The paths whose pending migrations all completed.
+	 */
+	public List<String> succeeded() {
+		return Collections.unmodifiableList(succeeded);
+	}
+	
+	/**
+	 * The paths that stopped at a failure, along with the failure.
+	 */
+	public Map<String, Exception> failures() {
+		return Collections.unmodifiableMap(failures);
+	}
+	
+	public boolean failed() {
+		return !failures.isEmpty();
+	}
+}
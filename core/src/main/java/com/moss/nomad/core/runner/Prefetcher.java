@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.packager.MigrationPackage;
+import com.moss.nomad.core.packager.MigrationResources;
+
+/**
+ * Loads the classpaths of the next few pending migrations on a background 
+ * thread, while the current migration executes.
+ * 
+ * Loaders are handed over to the run through take(), after which the run's
+ * ClassLoaderPool owns them. Anything prefetched but never taken, because a 
+ * migration failed, is disposed of by close().
+ */
+class Prefetcher {
+	
+	private final Log log;
+	private final Runner runner;
+	private final List<MigrationPackage> packages;
+	private final ClassLoaderPool pool;
+	private final boolean share;
+	private final int depth;
+	private final boolean loadHandlers;
+	
+	private final ExecutorService executor;
+	private final Map<Integer, Future<MigrationLoader>> futures;
+	
+	private int scheduled;
+	private boolean closed;
+	
+	/**
+	 * @param share whether the pool shares loaders between migrations with
+	 * the same classpath, in which case those are only loaded once.
+	 * @param depth how many migrations past the current one to prefetch.
+	 * @param loadHandlers whether to also load (but not initialize) each 
+	 * migration's handler class.
+	 */
+	Prefetcher(Runner runner, List<MigrationPackage> packages, ClassLoaderPool pool, boolean share, int depth, boolean loadHandlers) {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		this.runner = runner;
+		this.packages = packages;
+		this.pool = pool;
+		this.share = share;
+		this.depth = depth;
+		this.loadHandlers = loadHandlers;
+		
+		this.executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("nomad-prefetch"));
+		this.futures = new HashMap<Integer, Future<MigrationLoader>>();
+	}
+	
+	/**
+	 * Schedules the migrations following the one at the given index.
+	 */
+	void ahead(int current) {
+		
+		int last = Math.min(current + depth, packages.size() - 1);
+		
+		for (int i = Math.max(scheduled, current + 1); i <= last; i++) {
+			
+			scheduled = i + 1;
+			
+			MigrationPackage pkg = packages.get(i);
+			
+			if (pkg.resources() == null || (share && loadedBefore(current, i))) {
+				continue;
+			}
+			
+			futures.put(i, executor.submit(new Load(pkg)));
+		}
+	}
+	
+	/**
+	 * Returns the loader for the migration at the given index, waiting for
+	 * it if it is still being prefetched and loading it right away if it 
+	 * wasn't scheduled.
+	 */
+	MigrationLoader take(int index, byte[] buffer) throws Exception {
+		
+		Future<MigrationLoader> future = futures.remove(index);
+		
+		if (future == null) {
+			return runner.load(packages.get(index), buffer);
+		}
+		
+		try {
+			return future.get();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception) {
+				throw (Exception)ex.getCause();
+			}
+			else {
+				throw ex;
+			}
+		}
+	}
+	
+	/**
+	 * Cancels whatever hasn't started, waits for the migration currently 
+	 * being prefetched (if any) and disposes of every loader not taken.
+	 * 
+	 * The prefetch thread is never interrupted. It may be copying out of the
+	 * runner's package channel, and an interrupt there closes the channel 
+	 * for good, so it's left to finish the load it's on instead.
+	 */
+	void close() throws InterruptedException {
+		
+		synchronized (this) {
+			closed = true;
+		}
+		
+		for (Future<MigrationLoader> f : futures.values()) {
+			f.cancel(false);
+		}
+		
+		executor.shutdown();
+		
+		while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Waiting for classpath prefetch to finish");
+			}
+		}
+		
+		for (Future<MigrationLoader> f : futures.values()) {
+			
+			if (!f.isDone() || f.isCancelled()) {
+				continue;
+			}
+			
+			try {
+				MigrationLoader loader = f.get();
+				if (loader != null) {
+					loader.dispose();
+				}
+			}
+			catch (ExecutionException ex) {
+				// nobody is waiting on it anymore
+			}
+		}
+		
+		futures.clear();
+	}
+	
+	/**
+	 * Whether the migration at index i will get the loader of an earlier one
+	 * from the pool.
+	 */
+	private boolean loadedBefore(int current, int i) {
+		
+		List<String> classpath = packages.get(i).resources().classpath();
+		
+		if (pool.acquire(classpath) != null) {
+			return true;
+		}
+		
+		for (int k = current; k < i; k++) {
+			MigrationResources res = packages.get(k).resources();
+			if (res != null && res.classpath().equals(classpath)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private class Load implements Callable<MigrationLoader> {
+		
+		private final MigrationPackage pkg;
+		
+		Load(MigrationPackage pkg) {
+			this.pkg = pkg;
+		}
+		
+		public MigrationLoader call() throws Exception {
+			
+			synchronized (Prefetcher.this) {
+				if (closed) {
+					return null;
+				}
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Prefetching classpath for " + pkg.def());
+			}
+			
+			MigrationLoader loader = runner.load(pkg, new byte[1024 * 10]);
+			
+			if (loadHandlers && !runner.forks(pkg.resources().className())) {
+				try {
+					loader.classLoader().loadClass(pkg.resources().className());
+				}
+				catch (Throwable t) {
+					
+					/*
+					 * The migration itself will run into this again and 
+					 * report it properly.
+					 */
+					
+					if (log.isDebugEnabled()) {
+						log.debug("Could not preload handler for " + pkg.def(), t);
+					}
+				}
+			}
+			
+			synchronized (Prefetcher.this) {
+				if (closed) {
+					loader.dispose();
+					return null;
+				}
+			}
+			
+			return loader;
+		}
+	}
+}
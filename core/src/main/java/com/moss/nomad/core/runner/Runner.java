@@ -41,32 +41,50 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
 import java.net.URL;
-import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.Instant;
 
 import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.HistoryXml;
 import com.moss.nomad.core.history.Migration;
 import com.moss.nomad.core.history.MigrationHistory;
-import com.moss.nomad.core.packager.MigrationContainer;
+import com.moss.nomad.core.packager.ContainerEntry;
+import com.moss.nomad.core.packager.ContainerIndex;
+import com.moss.nomad.core.packager.ContainerReader;
 import com.moss.nomad.core.packager.MigrationPackage;
 import com.moss.nomad.core.packager.MigrationPath;
 import com.moss.nomad.core.packager.MigrationResources;
+import com.moss.nomad.core.util.Digests;
+import com.moss.nomad.core.trace.Span;
+import com.moss.nomad.core.trace.Tracer;
+import com.moss.nomad.core.util.Events;
 
 public class Runner {
 
@@ -89,13 +107,34 @@ public class Runner {
 	 */
 	
 	private final Log log;
-	private final JAXBContext context;
 	private final JarFile packageJar;
-	private final MigrationContainer container;
+	private final ContainerReader container;
+	private final RandomAccessFile packageFile;
 	private final List<RunListener> listeners;
+	private final List<MetricsListener> metricsListeners;
 	private final File workDir;
+	private final ExtractionCache cache;
+	private final Set<String> forkedHandlers;
+	
+	private long inMemoryLimit;
+	private boolean reuseClassLoaders;
+	private int prefetchDepth;
+	private boolean prefetchHandlers;
+	private int parallelism = 1;
+	private WorkerPool workers;
+	private boolean forkAll;
+	private Tracer tracer;
 	
 	public Runner(File packageJar) throws Exception {
+		this(packageJar, null);
+	}
+	
+	/**
+	 * @param cache where to keep the classpath resources extracted from the 
+	 * package jar, may be null in which case they're extracted to a temporary
+	 * directory that is deleted on close().
+	 */
+	public Runner(File packageJar, ExtractionCache cache) throws Exception {
 		
 		log = LogFactory.getLog(this.getClass());
 		
@@ -103,16 +142,26 @@ public class Runner {
 			throw new NullPointerException();
 		}
 		
+		Events.Event open = Events.begin(Events.PACKAGE_OPEN).detail(packageJar.getPath()).bytes(packageJar.length());
+		
 		this.packageJar = new JarFile(packageJar);
 		
-		context = JAXBContext.newInstance(
-			MigrationHistory.class, 
-			MigrationContainer.class 
-		);
+		container = new ContainerReader(this.packageJar);
+		
+		open.commit();
 		
-		container = extractContainer(packageJar);
+		/*
+		 * Packages with an index say where their classpath entries are, so
+		 * they can be copied straight out of the package file.
+		 */
+		
+		packageFile = container.index() != null ? new RandomAccessFile(packageJar, "r") : null;
+		
+		this.cache = cache;
 		
-		listeners = new ArrayList<RunListener>();
+		listeners = new CopyOnWriteArrayList<RunListener>();
+		metricsListeners = new CopyOnWriteArrayList<MetricsListener>();
+		forkedHandlers = new CopyOnWriteArraySet<String>();
 		
 		workDir = createTempDir();
 	}
@@ -125,23 +174,554 @@ public class Runner {
 		listeners.remove(l);
 	}
 	
+	/**
+	 * Metrics listeners hear where the time went in every migration this 
+	 * runner performs, and must be thread-safe.
+	 */
+	public void addMetricsListener(MetricsListener l) {
+		metricsListeners.add(l);
+	}
+	
+	public void removeMetricsListener(MetricsListener l) {
+		metricsListeners.remove(l);
+	}
+	
+	/**
+	 * When greater than zero, migration classes and resources are served 
+	 * straight from the package jar rather than from extracted copies, using
+	 * up to this many bytes of direct memory per migration. Migrations whose
+	 * classpath doesn't fit are extracted as usual.
+	 */
+	public void setInMemoryLimit(long maxBytes) {
+		this.inMemoryLimit = maxBytes;
+	}
+	
+	/**
+	 * When true, the migrations of a run that have exactly the same 
+	 * classpath share a classloader, rather than each loading (and warming
+	 * up) the same classes again. Handlers must not rely on static state
+	 * being fresh when this is on.
+	 */
+	public void setReuseClassLoaders(boolean reuse) {
+		this.reuseClassLoaders = reuse;
+	}
+	
+	/**
+	 * When depth is greater than zero, the classpaths of that many upcoming
+	 * migrations are extracted and loaded on a background thread while the
+	 * current migration executes. When loadHandlers is true their handler 
+	 * classes are loaded as well, though not initialized.
+	 */
+	public void setPrefetch(int depth, boolean loadHandlers) {
+		this.prefetchDepth = depth;
+		this.prefetchHandlers = loadHandlers;
+	}
+	
+	/**
+	 * Runs handlers in the pool's child JVMs rather than in this one: all of
+	 * them when forkAll is true, otherwise only those named with 
+	 * forkHandler(). The workers need the classpaths on disk, so classpaths
+	 * are never served from memory while there is a pool. The pool is not
+	 * closed by the runner.
+	 */
+	public void setWorkerPool(WorkerPool workers, boolean forkAll) {
+		this.workers = workers;
+		this.forkAll = forkAll;
+	}
+	
+	/**
+	 * Has the given handler run in a worker JVM, when there's a worker pool.
+	 */
+	public void forkHandler(String className) {
+		forkedHandlers.add(className);
+	}
+	
+	boolean forks(String className) {
+		return workers != null && (forkAll || forkedHandlers.contains(className));
+	}
+	
+	/**
+	 * When greater than one, migrations whose defs declare dependencies run
+	 * as soon as those dependencies have been applied, up to this many at a
+	 * time, rather than strictly in path order. Migrations that don't declare
+	 * dependencies still wait for every migration before them. Prefetching 
+	 * is only done when migrations run one at a time.
+	 * 
+	 * Listeners are still called one at a time for each path, so they may 
+	 * add to a plain MigrationHistory, but the calls come from several
+	 * threads and the migrations of a path finish in no fixed order. When
+	 * several paths run at once, each path's calls are serialized only with
+	 * its own, so the runner's own listeners must be thread-safe.
+	 */
+	public void setParallelism(int width) {
+		
+		if (width < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + width);
+		}
+		
+		this.parallelism = width;
+	}
+	
+	/**
+	 * Has runs recorded as a tree of spans: the run, each path in it, each
+	 * migration along a path, and the phases of each migration. Null, the
+	 * default, turns tracing off.
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+	
+	/**
+	 * Reads a history xml document. For histories too large to hold in 
+	 * memory, see HistoryXml.
+	 */
 	public MigrationHistory readHistory(File file) throws Exception {
-		Unmarshaller u = context.createUnmarshaller();
-		return (MigrationHistory)u.unmarshal(file);
+		return HistoryXml.readHistory(file);
+	}
+	
+	/**
+	 * Writes a history xml document, replacing the file only once the new
+	 * one is complete.
+	 */
+	public void writeHistory(File file, MigrationHistory history) throws Exception {
+		
+		Events.Event event = Events.begin(Events.HISTORY_UPDATE).detail(file.getPath());
+		
+		HistoryXml.write(file, history);
+		
+		event.bytes(file.length()).commit();
 	}
 	
 	public void run(String migrationPathName, MigrationHistory history, byte[] env) throws Exception {
+		run(migrationPathName, history, env, Collections.<RunListener>emptyList());
+	}
+	
+	/**
+	 * The defs of the migrations that running the path against the history 
+	 * would perform, in the order they'd be performed when run one at a time.
+	 */
+	public List<MigrationDef> plan(String migrationPathName, MigrationHistory history) throws Exception {
+		
+		MigrationPath path = findPath(migrationPathName);
+		if (path == null) {
+			throw new RuntimeException("Cannot find a migration path by the name of '" + migrationPathName + "'");
+		}
+		
+		List<MigrationDef> plan = new ArrayList<MigrationDef>();
+		for (MigrationPackage pkg : pending(path, history)) {
+			plan.add(pkg.def());
+		}
+		
+		return plan;
+	}
+	
+	/**
+	 * Extracts the classpath of the migration of the given def along the 
+	 * path and creates its classloader, just as running it would, without 
+	 * running it. The caller has to release() what it gets back.
+	 */
+	public ExtractedClasspath extractClasspath(String migrationPathName, MigrationDef def) throws Exception {
+		
+		MigrationPath path = findPath(migrationPathName);
+		
+		for (MigrationPackage pkg : path.packages()) {
+			
+			if (!pkg.def().equals(def)) {
+				continue;
+			}
+			
+			if (pkg.resources() == null) {
+				throw new RuntimeException("Migration resource not available in migration jar: " + def);
+			}
+			
+			return new ExtractedClasspath(load(pkg, new byte[1024 * 10]));
+		}
+		
+		throw new RuntimeException("Migration path '" + migrationPathName + "' has no migration " + def);
+	}
+	
+	/**
+	 * Runs several independent migration paths at once, each on its own data
+	 * set, using at most the given number of threads. A failure along one 
+	 * path doesn't stop the others. The runner's own listeners hear about 
+	 * the migrations of every path, and must therefore be thread-safe.
+	 */
+	public PathResults run(Map<String, PathRun> runs, int concurrency) throws Exception {
+		return run(runs, concurrency, null);
+	}
+	
+	/**
+	 * Like run(), but if the runner has a tracer, the paths' spans belong to
+	 * the given trace. A null trace id starts a new one.
+	 */
+	public PathResults run(Map<String, PathRun> runs, int concurrency, String traceId) throws Exception {
+		
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+		}
+		
+		for (String name : runs.keySet()) {
+			findPath(name);
+		}
+		
+		PathResults results = new PathResults();
+		
+		if (runs.isEmpty()) {
+			return results;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(
+			Math.min(concurrency, runs.size()), 
+			new DaemonThreadFactory("nomad-path")
+		);
+		
+		final Span run = startRun(traceId).attribute("nomad.paths", runs.size());
+		
+		try {
+			Map<String, Future<Object>> futures = new LinkedHashMap<String, Future<Object>>();
+			
+			for (Map.Entry<String, PathRun> e : runs.entrySet()) {
+				
+				final String name = e.getKey();
+				final PathRun r = e.getValue();
+				
+				futures.put(name, executor.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						runPath(name, r.history(), r.env(), r.listeners(), run);
+						return null;
+					}
+				}));
+			}
+			
+			for (Map.Entry<String, Future<Object>> e : futures.entrySet()) {
+				try {
+					e.getValue().get();
+					results.succeeded(e.getKey());
+				}
+				catch (ExecutionException ex) {
+					
+					Exception cause;
+					if (ex.getCause() instanceof Exception) {
+						cause = (Exception)ex.getCause();
+					}
+					else {
+						cause = ex;
+					}
+					
+					results.failed(e.getKey(), cause);
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+			run.attribute("nomad.failed", results.failures().size()).end();
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Applies one migration path to each of a stream of targets, running at
+	 * most the given number of targets at a time. Targets are only taken 
+	 * from the iterator as there's room to run them, so it can be backed by
+	 * something that doesn't fit in memory. All the targets share this 
+	 * runner's package and extracted classpaths.
+	 * 
+	 * With failFast, no further targets are started once one has failed, 
+	 * though those already running are allowed to finish. Otherwise every
+	 * target is attempted. The runner's own listeners hear about the 
+	 * migrations of every target, and must therefore be thread-safe.
+	 * 
+	 * Virtual threads are used when the JVM has them, otherwise a fixed
+	 * pool of threads.
+	 */
+	public FleetResults runFleet(final String migrationPathName, Iterator<FleetTarget> targets, int concurrency, final boolean failFast) throws Exception {
+		
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+		}
+		
+		if (findPath(migrationPathName) == null) {
+			throw new RuntimeException("Cannot find a migration path by the name of '" + migrationPathName + "'");
+		}
+		
+		final FleetResults results = new FleetResults();
+		final Semaphore slots = new Semaphore(concurrency);
+		final AtomicBoolean stopped = new AtomicBoolean();
+		
+		ExecutorService executor = fleetExecutor(concurrency);
+		
+		long start = System.nanoTime();
+		try {
+			while (!stopped.get() && targets.hasNext()) {
+				
+				final FleetTarget target = targets.next();
+				
+				slots.acquire();
+				
+				if (stopped.get()) {
+					slots.release();
+					break;
+				}
+				
+				executor.execute(new Runnable() {
+					public void run() {
+						long began = System.nanoTime();
+						try {
+							Runner.this.run(migrationPathName, target.history(), target.env(), target.listeners());
+							results.succeeded(target.id(), System.nanoTime() - began);
+						}
+						catch (Exception ex) {
+							results.failed(target.id(), ex, System.nanoTime() - began);
+							
+							if (failFast) {
+								stopped.set(true);
+							}
+						}
+						finally {
+							slots.release();
+						}
+					}
+				});
+			}
+			
+			/*
+			 * Once every slot is free again, every target has finished.
+			 */
+			
+			slots.acquire(concurrency);
+		}
+		finally {
+			executor.shutdown();
+		}
+		
+		results.finished(System.nanoTime() - start, stopped.get());
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Fleet run of '" + migrationPathName + "': " + results);
+		}
+		
+		return results;
+	}
+	
+	private static ExecutorService fleetExecutor(int concurrency) {
+		
+		/*
+		 * Looked up reflectively, since virtual threads are much newer than 
+		 * the jvms nomad is built for.
+		 */
+		
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		}
+		catch (Exception ex) {
+			return Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("nomad-fleet"));
+		}
+	}
+	
+	/**
+	 * Like runFleet(), but migration by migration rather than target by 
+	 * target: each migration's classloader is built once and the migration
+	 * is applied to every target that still needs it before moving on to 
+	 * the next one, so the classes a migration loads are loaded once for 
+	 * the whole fleet rather than once per target. Each target still gets 
+	 * its migrations in path order, and a target that fails is left out of
+	 * the migrations after it.
+	 * 
+	 * Every target is read up front, to work out what each one needs. A 
+	 * target's latency is measured from the start of the run to the end of
+	 * its last migration. With failFast, targets that still had migrations
+	 * to go when the run stopped are reported as skipped, whether or not 
+	 * any of their migrations had been applied.
+	 */
+	public FleetResults runFleetByMigration(String migrationPathName, Iterator<FleetTarget> targets, int concurrency, boolean failFast) throws Exception {
+		
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+		}
 		
 		MigrationPath path = findPath(migrationPathName);
 		if (path == null) {
 			throw new RuntimeException("Cannot find a migration path by the name of '" + migrationPathName + "'");
 		}
 		
-		Set<MigrationDef> executed = new HashSet<MigrationDef>();
-		for (Migration migration : history.migrations()) {
-			executed.add(migration.def());
+		final FleetResults results = new FleetResults();
+		final long start = System.nanoTime();
+		
+		/*
+		 * How many migrations each target has left, targets are done once 
+		 * they reach zero.
+		 * 
+		 * Targets aren't grouped by their pending plans: each migration is
+		 * applied to every target needing it, whatever else they need, so
+		 * targets with different plans still share the migration's loader.
+		 */
+		
+		final Map<FleetTarget, Integer> remaining = new LinkedHashMap<FleetTarget, Integer>();
+		final Map<MigrationDef, List<FleetTarget>> needs = new HashMap<MigrationDef, List<FleetTarget>>();
+		
+		while (targets.hasNext()) {
+			
+			FleetTarget target = targets.next();
+			List<MigrationPackage> pending = pending(path, target.history());
+			
+			if (pending.isEmpty()) {
+				results.succeeded(target.id(), System.nanoTime() - start);
+				continue;
+			}
+			
+			remaining.put(target, pending.size());
+			
+			for (MigrationPackage pkg : pending) {
+				
+				List<FleetTarget> l = needs.get(pkg.def());
+				if (l == null) {
+					l = new ArrayList<FleetTarget>();
+					needs.put(pkg.def(), l);
+				}
+				l.add(target);
+			}
 		}
 		
+		final Semaphore slots = new Semaphore(concurrency);
+		final AtomicBoolean stopped = new AtomicBoolean();
+		
+		ExecutorService executor = fleetExecutor(concurrency);
+		
+		final byte[] buffer = new byte[1024 * 10]; //10k buffer
+		
+		try {
+			for (final MigrationPackage pkg : path.packages()) {
+				
+				List<FleetTarget> needing = needs.get(pkg.def());
+				
+				if (needing == null || stopped.get()) {
+					continue;
+				}
+				
+				MigrationLoader loader = null;
+				Exception loadFailure = null;
+				
+				if (pkg.resources() == null) {
+					loadFailure = new RuntimeException("Cannot perform migration, migration resource not available in migration jar: " + pkg.def());
+				}
+				else {
+					try {
+						loader = load(pkg, buffer);
+					}
+					catch (Exception ex) {
+						loadFailure = ex;
+					}
+				}
+				
+				try {
+					for (final FleetTarget target : needing) {
+						
+						synchronized (remaining) {
+							if (!remaining.containsKey(target)) {
+								continue; // failed at an earlier migration
+							}
+						}
+						
+						if (loadFailure != null) {
+							targetFailed(target, loadFailure, remaining, results, start);
+							if (failFast) {
+								stopped.set(true);
+							}
+							continue;
+						}
+						
+						slots.acquire();
+						
+						if (stopped.get()) {
+							slots.release();
+							break;
+						}
+						
+						final MigrationLoader l = loader;
+						
+						executor.execute(new Runnable() {
+							public void run() {
+								try {
+									migrate(pkg, l, target.env(), target.listeners(), null, Span.NONE);
+									
+									synchronized (remaining) {
+										
+										int left = remaining.get(target) - 1;
+										
+										if (left == 0) {
+											remaining.remove(target);
+											results.succeeded(target.id(), System.nanoTime() - start);
+										}
+										else {
+											remaining.put(target, left);
+										}
+									}
+								}
+								catch (Exception ex) {
+									targetFailed(target, ex, remaining, results, start);
+									
+									if (failFast) {
+										stopped.set(true);
+									}
+								}
+								finally {
+									slots.release();
+								}
+							}
+						});
+					}
+					
+					/*
+					 * Every target is done with this migration once all the 
+					 * slots are free again, and the loader can go.
+					 */
+					
+					slots.acquire(concurrency);
+					slots.release(concurrency);
+				}
+				finally {
+					if (loader != null) {
+						loader.dispose();
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		
+		/*
+		 * Every migration has finished, whatever is left was stopped short.
+		 */
+		
+		for (FleetTarget target : remaining.keySet()) {
+			results.skipped(target.id());
+		}
+		
+		results.finished(System.nanoTime() - start, stopped.get());
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Fleet run of '" + migrationPathName + "' by migration: " + results);
+		}
+		
+		return results;
+	}
+	
+	private static void targetFailed(FleetTarget target, Exception ex, Map<FleetTarget, Integer> remaining, FleetResults results, long start) {
+		synchronized (remaining) {
+			remaining.remove(target);
+			results.failed(target.id(), ex, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * The packages along the path that aren't in the history yet, in path 
+	 * order.
+	 */
+	private static List<MigrationPackage> pending(MigrationPath path, MigrationHistory history) {
+		
 		/*
 		 * NOTE: How we determine what migrations to perform could be a lot more
 		 * sophisticated. We aren't checking the history to make sure that
@@ -152,11 +732,77 @@ public class Runner {
 		List<MigrationPackage> unexecuted = new ArrayList<MigrationPackage>();
 		for (MigrationPackage pkg : path.packages()) {
 			
-			if (!executed.contains(pkg.def())) {
+			if (!history.contains(pkg.def())) {
 				unexecuted.add(pkg);
 			}
 		}
 		
+		return unexecuted;
+	}
+	
+	/**
+	 * Like run(), but the given listeners also hear about this run's 
+	 * migrations, along with the runner's own.
+	 */
+	public void run(String migrationPathName, MigrationHistory history, byte[] env, List<RunListener> pathListeners) throws Exception {
+		run(migrationPathName, history, env, pathListeners, null);
+	}
+	
+	/**
+	 * Like run(), but if the runner has a tracer, the run's spans belong to
+	 * the given trace, so they can be tied to the caller's own. A null trace
+	 * id starts a new trace.
+	 */
+	public void run(String migrationPathName, MigrationHistory history, byte[] env, List<RunListener> pathListeners, String traceId) throws Exception {
+		
+		Span run = startRun(traceId);
+		try {
+			runPath(migrationPathName, history, env, pathListeners, run);
+		}
+		catch (Exception ex) {
+			run.fail(ex);
+			throw ex;
+		}
+		finally {
+			run.end();
+		}
+	}
+	
+	private Span startRun(String traceId) {
+		
+		if (tracer == null) {
+			return Span.NONE;
+		}
+		
+		return tracer.start(traceId, "nomad.run").attribute("nomad.package", packageJar.getName());
+	}
+	
+	private void runPath(String migrationPathName, MigrationHistory history, byte[] env, List<RunListener> pathListeners, Span run) throws Exception {
+		
+		Span span = run.child("nomad.path").attribute("nomad.path", migrationPathName);
+		try {
+			migratePath(migrationPathName, history, env, pathListeners, span);
+		}
+		catch (Exception ex) {
+			span.fail(ex);
+			throw ex;
+		}
+		finally {
+			span.end();
+		}
+	}
+	
+	private void migratePath(String migrationPathName, MigrationHistory history, byte[] env, List<RunListener> pathListeners, Span span) throws Exception {
+		
+		MigrationPath path = findPath(migrationPathName);
+		if (path == null) {
+			throw new RuntimeException("Cannot find a migration path by the name of '" + migrationPathName + "'");
+		}
+		
+		List<MigrationPackage> unexecuted = pending(path, history);
+		
+		span.attribute("nomad.pending", unexecuted.size());
+		
 		if (unexecuted.isEmpty()) {
 			if (log.isDebugEnabled()) {
 				log.debug("No migrations remain to be executed, doing nothing.");
@@ -166,146 +812,548 @@ public class Runner {
 		
 		final byte[] buffer = new byte[1024 * 10]; //10k buffer
 		
+		ClassLoaderPool pool = new ClassLoaderPool(reuseClassLoaders);
 		for (MigrationPackage pkg : unexecuted) {
-			
-			if (pkg.resources() == null) {
-				throw new RuntimeException("Cannot perform migration, migration resource not available in migration jar: " + pkg.def());
+			if (pkg.resources() != null) {
+				pool.expect(pkg.resources().classpath());
 			}
-			
-			if (log.isDebugEnabled()) {
-				log.debug("Executing migration: " + pkg.def());
+		}
+		
+		MigrationGraph graph = new MigrationGraph(unexecuted);
+		boolean parallel = parallelism > 1 && graph.declared();
+		
+		Prefetcher prefetcher = null;
+		if (prefetchDepth > 0 && !parallel) {
+			prefetcher = new Prefetcher(this, unexecuted, pool, reuseClassLoaders, prefetchDepth, prefetchHandlers);
+		}
+		
+		try {
+			if (parallel) {
+				runGraph(graph, unexecuted, pool, env, pathListeners, span);
 			}
-
-			Migration migration = new Migration(new Instant(), pkg.def());
-			MigrationResources res = pkg.resources();
-
-			List<URL> urls = new ArrayList<URL>();
-			for (String req : res.classpath()) {
-
-				String[] pathSegments = req.split("\\/");
-
-				File copyTarget = workDir;
-				for (String s : pathSegments) {
-					copyTarget = new File(copyTarget, s);
-				}
-
-				if (!copyTarget.getParentFile().exists() && !copyTarget.getParentFile().mkdirs()) {
-					throw new RuntimeException("Cannot create directory: " + copyTarget.getParentFile());
-				}
-
-				if (!copyTarget.exists()) {
+			else {
+				for (int i = 0; i < unexecuted.size(); i++) {
+					
+					MigrationPackage pkg = unexecuted.get(i);
 					
-					if (log.isDebugEnabled()) {
-						log.debug("Copying classpath resource " + req + " -> " + copyTarget);
+					if (prefetcher != null) {
+						prefetcher.ahead(i);
 					}
-
-					JarEntry entry = packageJar.getJarEntry(req);
-
-					if (entry == null) {
-						throw new RuntimeException("Expected package jar entry not found: " + req);
+					
+					if (pkg.resources() == null) {
+						throw new RuntimeException("Cannot perform migration, migration resource not available in migration jar: " + pkg.def());
 					}
-
-					InputStream in = packageJar.getInputStream(entry);
-					OutputStream out = new FileOutputStream(copyTarget);
-					for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
-						out.write(buffer, 0, numRead);
+					
+					List<String> classpath = pkg.resources().classpath();
+					
+					MigrationLoader loader = pool.acquire(classpath);
+					if (loader == null) {
+						loader = pool.add(classpath, prefetcher != null ? prefetcher.take(i, buffer) : load(pkg, buffer));
+					}
+					
+					try {
+						migrate(pkg, loader, env, pathListeners, null, span);
+					}
+					finally {
+						pool.release(classpath, loader);
 					}
-					in.close();
-					out.close();
 				}
-
-				urls.add(copyTarget.toURL());
 			}
-			
-			ClassLoader cl;
-			{
-				URL[] cp = urls.toArray(new URL[0]);
-				cl = new URLClassLoader(cp, null);
+		}
+		finally {
+			try {
+				if (prefetcher != null) {
+					prefetcher.close();
+				}
 			}
-
-			Class clazz = cl.loadClass("com.moss.nomad.api.v1.ClassLoaderBridge");
+			finally {
+				pool.clear();
+			}
+		}
+	}
+	
+	private void runGraph(MigrationGraph graph, List<MigrationPackage> unexecuted, final ClassLoaderPool pool, final byte[] env, final List<RunListener> pathListeners, final Span span) throws Exception {
+		
+		/*
+		 * Listeners usually record migrations in a plain MigrationHistory, so
+		 * their callbacks are made one at a time even though the migrations
+		 * aren't.
+		 */
+		
+		final Object listenerLock = new Object();
+		
+		/*
+		 * Nothing is attempted unless everything can be, since there's no
+		 * telling which migrations would have run before hitting the missing
+		 * one.
+		 */
+		
+		for (MigrationPackage pkg : unexecuted) {
+			if (pkg.resources() == null) {
+				throw new RuntimeException("Cannot perform migration, migration resource not available in migration jar: " + pkg.def());
+			}
+		}
+		
+		graph.run(new MigrationGraph.Step() {
+			public void execute(MigrationPackage pkg) throws Exception {
+				
+				List<String> classpath = pkg.resources().classpath();
+				
+				MigrationLoader loader = pool.acquire(classpath);
+				if (loader == null) {
+					loader = pool.add(classpath, load(pkg, new byte[1024 * 10]));
+				}
+				
+				try {
+					migrate(pkg, loader, env, pathListeners, listenerLock, span);
+				}
+				finally {
+					pool.release(classpath, loader);
+				}
+			}
+		}, parallelism);
+	}
+	
+	/**
+	 * @param listenerLock held while calling listeners when migrations of
+	 * the same path are running at once, null otherwise.
+	 */
+	private void migrate(MigrationPackage pkg, MigrationLoader loader, byte[] env, List<RunListener> pathListeners, Object listenerLock, Span path) throws Exception {
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Executing migration: " + pkg.def());
+		}
+		
+		Migration migration = new Migration(new Instant(), pkg.def());
+		
+		String className = pkg.resources().className();
+		
+		Span span = path.child("nomad.migration").attribute("nomad.def", pkg.def().toString()).attribute("nomad.handler", className);
+		
+		long start = System.nanoTime();
+		long executing = start;
+		long executeNanos = 0;
+		long[] phases = null;
+		int definedBefore = loader.classesDefined();
+		boolean failed = true;
+		
+		ClassLoader currentCl = Thread.currentThread().getContextClassLoader();
+		try {
+			firePreMigration(migration, pathListeners, listenerLock);
 			
-			Method method = clazz.getMethod("execute", String.class, byte[].class);
+			/*
+			 * NOTE, the reason we're setting the context class loader here
+			 * is for java 5 compatibility. JAXBContext seems to load its
+			 * classes from the current thread context class loader. In
+			 * java 5 this causes problems, in java 6 it doesn't because
+			 * the JAXB stuff is in the boot classpath. Ah well.
+			 */
 			
-			ClassLoader currentCl = Thread.currentThread().getContextClassLoader();
-			try {
-				firePreMigration(migration);
+			String stacktrace;
+			
+			executing = System.nanoTime();
+			
+			Events.Event handler = Events.begin(Events.HANDLER).def(pkg.def()).detail(className);
+			
+			if (forks(className)) {
+				stacktrace = workers.execute(loader.classpath(), className, env);
+				executeNanos = System.nanoTime() - executing;
+			}
+			else {
+				Thread.currentThread().setContextClassLoader(loader.classLoader());
 				
-				/*
-				 * NOTE, the reason we're setting the context class loader here
-				 * is for java 5 compatibility. JAXBContext seems to load its
-				 * classes from the current thread context class loader. In
-				 * java 5 this causes problems, in java 6 it doesn't because
-				 * the JAXB stuff is in the boot classpath. Ah well.
-				 */
+				stacktrace = loader.execute(className, env);
+				executeNanos = System.nanoTime() - executing;
+				phases = loader.timings();
 				
-				Thread.currentThread().setContextClassLoader(cl);
+				Thread.currentThread().setContextClassLoader(currentCl);
+			}
+			
+			handler.bytes(env == null ? 0 : env.length).commit();
+			
+			if (stacktrace != null) {
+				throw new MigrationFailureException(stacktrace);
+			}
+			
+			/*
+			 * The post-migration listeners are where callers record the 
+			 * migration in their history.
+			 */
+			
+			Events.Event recorded = Events.begin(Events.HISTORY_UPDATE).def(pkg.def());
+			firePostMigration(migration, pathListeners, listenerLock);
+			recorded.commit();
+			
+			failed = false;
+		}
+		catch (Exception ex) {
+			Thread.currentThread().setContextClassLoader(currentCl);
+			
+			span.fail(ex);
+			
+			log.error("Failed to complete migration for migration-def " + pkg.def(), ex);
+			fireMigrationFailure(migration, ex, pathListeners, listenerLock);
+			throw ex;
+		}
+		finally {
+			long end = System.nanoTime();
+			
+			long[] costs = null;
+			if (!metricsListeners.isEmpty() || span != Span.NONE) {
+				costs = loader.claimCreationCosts();
+			}
+			
+			if (span != Span.NONE) {
+				tracePhases(span, costs, executing, executeNanos, phases, forks(className));
+				span.end(end);
+			}
+			
+			if (!metricsListeners.isEmpty()) {
 				
-				String stacktrace = (String)method.invoke(null, res.className(), env);
+				long total = end - start;
 				
-				Thread.currentThread().setContextClassLoader(currentCl);
+				int definedAfter = loader.classesDefined();
+				int classesLoaded = definedBefore < 0 ? -1 : definedAfter - definedBefore;
 				
-				if (stacktrace != null) {
-					throw new MigrationFailureException(stacktrace);
+				MigrationMetrics metrics;
+				if (phases != null) {
+					metrics = new MigrationMetrics(migration, className, failed, costs[0], costs[1], phases[0], phases[1], phases[2], total, costs[2], classesLoaded);
+				}
+				else {
+					metrics = new MigrationMetrics(migration, className, failed, costs[0], costs[1], 0, 0, executeNanos, total, costs[2], classesLoaded);
 				}
 				
-				firePostMigration(migration);
-			}
-			catch (Exception ex) {
-				Thread.currentThread().setContextClassLoader(currentCl);
-				
-				log.error("Failed to complete migration for migration-def " + pkg.def(), ex);
-				fireMigrationFailure(migration, ex);
-				throw ex;
+				fireMetrics(metrics);
 			}
 		}
 	}
-
+	
+	/**
+	 * Records the phases of a migration as children of its span. The
+	 * classpath is charged to the first migration to use it, and may have
+	 * been extracted before that migration started, or on another thread.
+	 */
+	private static void tracePhases(Span span, long[] costs, long executing, long executeNanos, long[] phases, boolean forked) {
+		
+		if (costs[0] > 0 || costs[1] > 0) {
+			
+			long created = costs[3];
+			long loading = created - costs[1];
+			
+			span.child("nomad.extract", loading - costs[0]).attribute("nomad.bytes", costs[2]).end(loading);
+			span.child("nomad.load", loading).end(created);
+		}
+		
+		if (phases != null) {
+			
+			long decoding = executing + phases[0];
+			long handling = decoding + phases[1];
+			
+			span.child("nomad.load-handler", executing).end(decoding);
+			span.child("nomad.decode-env", decoding).end(handling);
+			span.child("nomad.execute", handling).end(handling + phases[2]);
+		}
+		else if (executeNanos > 0) {
+			span.child("nomad.execute", executing).attribute("nomad.forked", String.valueOf(forked)).end(executing + executeNanos);
+		}
+	}
+	
 	public void close() throws Exception {
 		packageJar.close();
+		if (packageFile != null) {
+			packageFile.close();
+		}
 		deleteDir(workDir);
 	}
 	
-	private MigrationContainer extractContainer(File f) throws Exception {
+	/**
+	 * Creates the classloader for a migration, may be called from the 
+	 * prefetch thread.
+	 */
+	MigrationLoader load(MigrationPackage pkg, byte[] buffer) throws Exception {
+		
+		MigrationResources res = pkg.resources();
+		
+		long start = System.nanoTime();
+		
+		if (inMemoryLimit > 0 && workers == null) {
+			
+			Events.Event created = Events.begin(Events.CLASSLOADER).def(pkg.def()).detail("in-memory");
+			
+			NestedJarClassLoader cl = NestedJarClassLoader.load(packageJar, res.classpath(), inMemoryLimit);
+			
+			if (cl != null) {
+				created.bytes(cl.allocated()).commit();
+				
+				long indexed = System.nanoTime();
+				
+				MigrationLoader loader = new MigrationLoader(cl, null, cache, new ArrayList<File>());
+				loader.created(indexed - start, System.nanoTime() - indexed, cl.allocated());
+				
+				return loader;
+			}
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Classpath for " + pkg.def() + " needs more than " + inMemoryLimit + " bytes, extracting it instead");
+			}
+		}
+		
+		AtomicLong extracted = new AtomicLong();
+		
+		List<File> pinned = new ArrayList<File>();
+		try {
+			List<File> files = new ArrayList<File>();
+			List<URL> urls = new ArrayList<URL>();
+			for (String req : res.classpath()) {
+				
+				Events.Event event = Events.begin(Events.EXTRACT).def(pkg.def()).detail(req);
+				long before = extracted.get();
+				
+				File file;
+				if (cache != null) {
+					file = fetch(req, extracted);
+					pinned.add(file);
+				}
+				else {
+					file = extract(req, buffer, extracted);
+				}
+				
+				event.bytes(extracted.get() - before).commit();
+				
+				files.add(file);
+				urls.add(file.toURL());
+			}
+			
+			long fetched = System.nanoTime();
+			
+			Events.Event created = Events.begin(Events.CLASSLOADER).def(pkg.def()).detail("extracted").bytes(extracted.get());
+			
+			URL[] cp = urls.toArray(new URL[0]);
+			MigrationLoader loader = new MigrationLoader(new CountingClassLoader(cp), files, cache, pinned);
+			
+			created.commit();
+			loader.created(fetched - start, System.nanoTime() - fetched, extracted.get());
+			
+			return loader;
+		}
+		catch (Exception ex) {
+			for (File f : pinned) {
+				cache.release(f);
+			}
+			throw ex;
+		}
+	}
+	
+	private File extract(String req, byte[] buffer, AtomicLong extracted) throws Exception {
+		
+		String[] pathSegments = req.split("\\/");
 		
-		ZipFile file = new ZipFile(f);
-		ZipEntry entry = new ZipEntry("META-INF/container.xml");
-		InputStream in = file.getInputStream(entry);
-		Unmarshaller u = context.createUnmarshaller();
-		MigrationContainer container = (MigrationContainer)u.unmarshal(in);
-		in.close();
-		file.close();
+		File copyTarget = workDir;
+		for (String s : pathSegments) {
+			copyTarget = new File(copyTarget, s);
+		}
+		
+		File parent = copyTarget.getParentFile();
+		if (!parent.exists() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new RuntimeException("Cannot create directory: " + parent);
+		}
 		
-		return container;
+		if (!copyTarget.exists()) {
+			
+			if (log.isDebugEnabled()) {
+				log.debug("Copying classpath resource " + req + " -> " + copyTarget);
+			}
+			
+			JarEntry entry = packageJar.getJarEntry(req);
+			
+			if (entry == null) {
+				throw new RuntimeException("Expected package jar entry not found: " + req);
+			}
+			
+			/*
+			 * The prefetch thread may be extracting the same resource, so 
+			 * it is only put in place once it has been completely written.
+			 */
+			
+			File tmp = File.createTempFile("nomad", ".part", parent);
+			try {
+				if (!transfer(req, entry, tmp)) {
+					InputStream in = packageJar.getInputStream(entry);
+					OutputStream out = new FileOutputStream(tmp);
+					for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+						out.write(buffer, 0, numRead);
+					}
+					in.close();
+					out.close();
+				}
+				
+				long size = tmp.length();
+				
+				if (!tmp.renameTo(copyTarget) && !copyTarget.exists()) {
+					throw new RuntimeException("Cannot move " + tmp + " to " + copyTarget);
+				}
+				
+				extracted.addAndGet(size);
+			}
+			finally {
+				if (tmp.exists()) {
+					tmp.delete();
+				}
+			}
+		}
+		
+		return copyTarget;
 	}
 	
-	private MigrationPath findPath(String pathName) {
+	/**
+	 * Copies an uncompressed entry straight from the package file to the 
+	 * target, returns false if the entry's location isn't known, or isn't
+	 * where the index says, or it is compressed.
+	 */
+	private boolean transfer(String req, JarEntry entry, File target) throws Exception {
 		
-		for (MigrationPath p : container.paths()) {
-			if (p.name().equals(pathName)) {
-				return p;
+		if (packageFile == null) {
+			return false;
+		}
+		
+		long headerOffset = container.index().offset(req);
+		
+		if (headerOffset < 0) {
+			return false;
+		}
+		
+		long size = entry.getSize();
+		
+		if (size < 0) {
+			return false;
+		}
+		
+		FileChannel channel = packageFile.getChannel();
+		long dataOffset = ContainerIndex.storedDataOffset(channel, headerOffset, req, size);
+		
+		if (dataOffset < 0) {
+			return false;
+		}
+		
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			FileChannel outChannel = out.getChannel();
+			
+			long position = 0;
+			while (position < size) {
+				long transferred = channel.transferTo(dataOffset + position, size - position, outChannel);
+				
+				if (transferred <= 0) {
+					throw new RuntimeException("Could not copy " + req + " out of the package, " + position + " of " + size + " bytes copied");
+				}
+				
+				position += transferred;
 			}
 		}
+		finally {
+			out.close();
+		}
+		
+		return true;
+	}
+	
+	private File fetch(String req, AtomicLong extracted) throws Exception {
+		
+		JarEntry entry = packageJar.getJarEntry(req);
+		
+		if (entry == null) {
+			throw new RuntimeException("Expected package jar entry not found: " + req);
+		}
+		
+		ContainerEntry e = container.entries().get(req);
+		
+		if (e != null) {
+			return cache.fetch(packageJar, entry, e.digest(), true, extracted);
+		}
+		
+		/*
+		 * Packages written before digests were recorded in the container. The
+		 * entry's name, size and crc are the best description of its content
+		 * we can get without reading it.
+		 */
+		
+		MessageDigest md = Digests.sha256();
+		md.update((req + ":" + entry.getSize() + ":" + entry.getCrc()).getBytes("UTF-8"));
+		
+		return cache.fetch(packageJar, entry, Digests.hex(md.digest()), false, extracted);
+	}
+	
+	private MigrationPath findPath(String pathName) throws Exception {
+		
+		MigrationPath path = container.path(pathName);
+		
+		if (path == null) {
+			throw new RuntimeException("Cannot find a migration path by the name of '" + pathName + "'");
+		}
 		
-		throw new RuntimeException("Cannot find a migration path by the name of '" + pathName + "'");
+		return path;
 	}
 	
-	private void firePreMigration(Migration migration) {
+	private void firePreMigration(Migration migration, List<RunListener> pathListeners, Object lock) {
+		
+		if (lock != null) {
+			synchronized (lock) {
+				firePreMigration(migration, pathListeners, null);
+			}
+			return;
+		}
+		
 		for (RunListener l : listeners) {
 			l.preMigration(migration);
 		}
+		for (RunListener l : pathListeners) {
+			l.preMigration(migration);
+		}
 	}
 	
-	private void firePostMigration(Migration migration) {
+	private void firePostMigration(Migration migration, List<RunListener> pathListeners, Object lock) {
+		
+		if (lock != null) {
+			synchronized (lock) {
+				firePostMigration(migration, pathListeners, null);
+			}
+			return;
+		}
+		
 		for (RunListener l : listeners) {
 			l.postMigration(migration);
 		}
+		for (RunListener l : pathListeners) {
+			l.postMigration(migration);
+		}
+	}
+	
+	private void fireMetrics(MigrationMetrics metrics) {
+		for (MetricsListener l : metricsListeners) {
+			try {
+				l.migrationMeasured(metrics);
+			}
+			catch (Exception ex) {
+				log.warn("Metrics listener failed", ex);
+			}
+		}
 	}
 	
-	private void fireMigrationFailure(Migration migration, Exception ex) {
+	private void fireMigrationFailure(Migration migration, Exception ex, List<RunListener> pathListeners, Object lock) {
+		
+		if (lock != null) {
+			synchronized (lock) {
+				fireMigrationFailure(migration, ex, pathListeners, null);
+			}
+			return;
+		}
+		
 		for (RunListener l : listeners) {
 			l.migrationFailure(migration, ex);
 		}
+		for (RunListener l : pathListeners) {
+			l.migrationFailure(migration, ex);
+		}
 	}
 	
 	private static File createTempDir() throws Exception {
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.ObjectName;
+
+/**
+ * Totals up the metrics of every migration, overall and per handler, and 
+ * makes them available over JMX. Add it to any number of runners with 
+ * Runner.addMetricsListener(), and register it once.
+ */
+public final class RunnerMetrics implements MetricsListener, RunnerMetricsMBean {
+	
+	private static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+	
+	private long migrations;
+	private long failures;
+	private long extractNanos;
+	private long classLoaderNanos;
+	private long handlerLoadNanos;
+	private long envDecodeNanos;
+	private long handlerNanos;
+	private long totalNanos;
+	private long extractedBytes;
+	private long classesLoaded;
+	
+	private final Map<String, HandlerStats> handlers = new TreeMap<String, HandlerStats>();
+	
+	/**
+	 * Registers these metrics with the platform MBean server, under the
+	 * given name.
+	 */
+	public ObjectName register(String name) throws Exception {
+		ObjectName objectName = new ObjectName("com.moss.nomad:type=Runner,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+	
+	public synchronized void migrationMeasured(MigrationMetrics m) {
+		
+		migrations++;
+		
+		if (m.failed()) {
+			failures++;
+		}
+		
+		extractNanos += m.extractNanos();
+		classLoaderNanos += m.classLoaderNanos();
+		handlerLoadNanos += m.handlerLoadNanos();
+		envDecodeNanos += m.envDecodeNanos();
+		handlerNanos += m.handlerNanos();
+		totalNanos += m.totalNanos();
+		extractedBytes += m.extractedBytes();
+		
+		if (m.classesLoaded() > 0) {
+			classesLoaded += m.classesLoaded();
+		}
+		
+		HandlerStats stats = handlers.get(m.handler());
+		if (stats == null) {
+			stats = new HandlerStats();
+			handlers.put(m.handler(), stats);
+		}
+		
+		stats.add(m);
+	}
+	
+	public synchronized long getMigrations() {
+		return migrations;
+	}
+	
+	public synchronized long getFailures() {
+		return failures;
+	}
+	
+	public synchronized long getExtractMillis() {
+		return extractNanos / 1000000;
+	}
+	
+	public synchronized long getClassLoaderMillis() {
+		return classLoaderNanos / 1000000;
+	}
+	
+	public synchronized long getHandlerLoadMillis() {
+		return handlerLoadNanos / 1000000;
+	}
+	
+	public synchronized long getEnvDecodeMillis() {
+		return envDecodeNanos / 1000000;
+	}
+	
+	public synchronized long getHandlerMillis() {
+		return handlerNanos / 1000000;
+	}
+	
+	public synchronized long getTotalMillis() {
+		return totalNanos / 1000000;
+	}
+	
+	public synchronized long getExtractedBytes() {
+		return extractedBytes;
+	}
+	
+	public synchronized long getClassesLoaded() {
+		return classesLoaded;
+	}
+	
+	public synchronized String[] getHandlers() {
+		return handlers.keySet().toArray(new String[0]);
+	}
+	
+	public long[] getHistogramBoundsMillis() {
+		return BOUNDS.clone();
+	}
+	
+	public synchronized long[] histogram(String handler) {
+		HandlerStats stats = handlers.get(handler);
+		return stats == null ? null : stats.buckets.clone();
+	}
+	
+	public synchronized String summary(String handler) {
+		
+		HandlerStats stats = handlers.get(handler);
+		
+		if (stats == null) {
+			return null;
+		}
+		
+		StringBuilder b = new StringBuilder();
+		b.append(handler).append(": ").append(stats.count).append(" migrations, ").append(stats.failures).append(" failed");
+		
+		if (stats.count > 0) {
+			b.append(", mean ").append(stats.totalNanos / stats.count / 1000000).append("ms");
+			b.append(" (handler ").append(stats.handlerNanos / stats.count / 1000000).append("ms)");
+		}
+		
+		b.append(", max ").append(stats.maxNanos / 1000000).append("ms");
+		
+		return b.toString();
+	}
+	
+	public synchronized void reset() {
+		migrations = 0;
+		failures = 0;
+		extractNanos = 0;
+		classLoaderNanos = 0;
+		handlerLoadNanos = 0;
+		envDecodeNanos = 0;
+		handlerNanos = 0;
+		totalNanos = 0;
+		extractedBytes = 0;
+		classesLoaded = 0;
+		handlers.clear();
+	}
+	
+	private static final class HandlerStats {
+		
+		long count;
+		long failures;
+		long totalNanos;
+		long handlerNanos;
+		long maxNanos;
+		final long[] buckets = new long[BOUNDS.length + 1];
+		
+		void add(MigrationMetrics m) {
+			
+			count++;
+			
+			if (m.failed()) {
+				failures++;
+			}
+			
+			totalNanos += m.totalNanos();
+			handlerNanos += m.handlerNanos();
+			maxNanos = Math.max(maxNanos, m.totalNanos());
+			
+			long millis = m.totalNanos() / 1000000;
+			
+			int i = 0;
+			while (i < BOUNDS.length && millis > BOUNDS[i]) {
+				i++;
+			}
+			
+			buckets[i]++;
+		}
+	}
+}
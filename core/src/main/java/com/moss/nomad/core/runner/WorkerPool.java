@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A pool of warm child JVMs for running migrations out of the runner's 
+ * process, so a handler that leaks, runs out of memory or calls 
+ * System.exit() only takes its worker down with it. Workers are started up
+ * front, each one runs a single migration at a time, and a worker is 
+ * replaced after it has run a given number of migrations, or as soon as it
+ * dies.
+ * 
+ * The pool can be shared by several runners, and is thread-safe.
+ */
+public final class WorkerPool {
+	
+	private final Log log;
+	
+	private final String maxHeap;
+	private final int recycleAfter;
+	private final String workerClasspath;
+	
+	/*
+	 * Holds a slot for each worker. A null slot stands for a worker that 
+	 * still has to be (re)started, which is done by whoever takes it, so a
+	 * worker that can't be started is reported to a migration rather than
+	 * lost.
+	 */
+	private final BlockingQueue<Slot> idle;
+	
+	private volatile boolean closed;
+	
+	/**
+	 * @param size the number of workers
+	 * @param maxHeap the -Xmx of each worker, e.g. "256m", or null for the 
+	 * JVM's default
+	 * @param recycleAfter how many migrations a worker runs before it is 
+	 * replaced
+	 */
+	public WorkerPool(int size, String maxHeap, int recycleAfter) throws Exception {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (size < 1) {
+			throw new IllegalArgumentException("There must be at least one worker: " + size);
+		}
+		
+		if (recycleAfter < 1) {
+			throw new IllegalArgumentException("recycleAfter must be at least 1: " + recycleAfter);
+		}
+		
+		this.maxHeap = maxHeap;
+		this.recycleAfter = recycleAfter;
+		this.workerClasspath = new File(ForkedWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		this.idle = new LinkedBlockingQueue<Slot>();
+		
+		try {
+			for (int i = 0; i < size; i++) {
+				idle.add(new Slot(start()));
+			}
+		}
+		catch (Exception ex) {
+			close();
+			throw ex;
+		}
+	}
+	
+	/**
+	 * Runs the handler in a worker, waiting for one to be free. Returns the
+	 * stacktrace of the failure if there was one, just as the 
+	 * ClassLoaderBridge does.
+	 */
+	public String execute(List<File> classpath, String className, byte[] env) throws Exception {
+		
+		if (closed) {
+			throw new IllegalStateException("The worker pool has been closed");
+		}
+		
+		Slot slot = idle.take();
+		
+		/*
+		 * The pool may have been closed while this was waiting for a worker.
+		 */
+		
+		if (closed) {
+			if (slot.worker != null) {
+				slot.worker.destroy();
+				slot.worker = null;
+			}
+			idle.add(slot);
+			throw new IllegalStateException("The worker pool has been closed");
+		}
+		
+		try {
+			if (slot.worker == null) {
+				slot.worker = start();
+			}
+			
+			Worker w = slot.worker;
+			
+			try {
+				return w.execute(classpath, className, env);
+			}
+			catch (Exception ex) {
+				
+				log.warn("Worker JVM failed while running " + className + ", replacing it", ex);
+				
+				w.destroy();
+				slot.worker = null;
+				
+				StringWriter sw = new StringWriter();
+				new RuntimeException("The worker JVM running " + className + " failed", ex).printStackTrace(new PrintWriter(sw));
+				return sw.toString();
+			}
+		}
+		finally {
+			if (slot.worker != null && (closed || slot.worker.uses >= recycleAfter)) {
+				slot.worker.destroy();
+				slot.worker = null;
+			}
+			
+			/*
+			 * Replacements are started right away so the next migration 
+			 * doesn't wait on a JVM starting up.
+			 */
+			
+			if (slot.worker == null && !closed) {
+				try {
+					slot.worker = start();
+				}
+				catch (Exception ex) {
+					log.warn("Could not start a replacement worker JVM", ex);
+				}
+			}
+			
+			idle.add(slot);
+		}
+	}
+	
+	/**
+	 * Stops the idle workers, busy ones are stopped as they finish.
+	 */
+	public void close() {
+		
+		closed = true;
+		
+		List<Slot> slots = new ArrayList<Slot>();
+		idle.drainTo(slots);
+		
+		for (Slot slot : slots) {
+			if (slot.worker != null) {
+				slot.worker.destroy();
+				slot.worker = null;
+			}
+		}
+		
+		idle.addAll(slots);
+	}
+	
+	private Worker start() throws Exception {
+		
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		
+		if (maxHeap != null) {
+			command.add("-Xmx" + maxHeap);
+		}
+		
+		command.add("-cp");
+		command.add(workerClasspath);
+		command.add(ForkedWorker.class.getName());
+		
+		Process process = new ProcessBuilder(command).start();
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Started worker JVM: " + command);
+		}
+		
+		return new Worker(process);
+	}
+	
+	private static final class Slot {
+		
+		Worker worker;
+		
+		Slot(Worker worker) {
+			this.worker = worker;
+		}
+	}
+	
+	private static final class Worker {
+		
+		private final Process process;
+		private final DataOutputStream out;
+		private final DataInputStream in;
+		
+		int uses;
+		
+		Worker(Process process) {
+			this.process = process;
+			this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+			
+			/*
+			 * Whatever the handlers print goes to the worker's stderr, which
+			 * has to be drained or the worker would eventually block on it.
+			 */
+			
+			Thread pump = new Thread(new Pump(process.getErrorStream()), "nomad-worker-stderr");
+			pump.setDaemon(true);
+			pump.start();
+		}
+		
+		String execute(List<File> classpath, String className, byte[] env) throws Exception {
+			
+			uses++;
+			
+			out.writeInt(classpath.size());
+			for (File f : classpath) {
+				out.writeUTF(f.getAbsolutePath());
+			}
+			
+			out.writeUTF(className);
+			
+			if (env == null) {
+				out.writeInt(-1);
+			}
+			else {
+				out.writeInt(env.length);
+				out.write(env);
+			}
+			
+			out.flush();
+			
+			if (in.readBoolean()) {
+				return null;
+			}
+			
+			byte[] stacktrace = new byte[in.readInt()];
+			in.readFully(stacktrace);
+			
+			return new String(stacktrace, "UTF-8");
+		}
+		
+		void destroy() {
+			try {
+				out.close();
+			}
+			catch (Exception ex) {
+				// it's going away regardless
+			}
+			process.destroy();
+		}
+	}
+	
+	private static final class Pump implements Runnable {
+		
+		private final InputStream in;
+		
+		Pump(InputStream in) {
+			this.in = in;
+		}
+		
+		public void run() {
+			try {
+				byte[] buffer = new byte[1024];
+				for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+					System.err.write(buffer, 0, numRead);
+				}
+			}
+			catch (Exception ex) {
+				// the worker is gone
+			}
+		}
+	}
+}
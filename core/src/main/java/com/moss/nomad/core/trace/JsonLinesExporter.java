@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Appends spans to a local file, one per line, in the OpenTelemetry 
+ * protocol's json encoding. Each line is a complete export request, so the
+ * file can be fed to a collector's otlpjsonfile receiver, or just read.
+ */
+public final class JsonLinesExporter implements SpanExporter {
+	
+	private final Writer out;
+	private final String service;
+	
+	public JsonLinesExporter(File file) throws Exception {
+		this(file, "nomad");
+	}
+	
+	/**
+	 * @param service the service.name recorded with each span, so spans from
+	 * different nodes can be told apart.
+	 */
+	public JsonLinesExporter(File file, String service) throws Exception {
+		
+		if (file == null || service == null) {
+			throw new NullPointerException();
+		}
+		
+		this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		this.service = service;
+	}
+	
+	public void export(Span span) throws Exception {
+		
+		StringBuilder sb = new StringBuilder(512);
+		
+		sb.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+		attribute(sb, "service.name", service);
+		sb.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"com.moss.nomad\"},\"spans\":[{");
+		
+		sb.append("\"traceId\":\"").append(span.traceId()).append("\",");
+		sb.append("\"spanId\":\"").append(span.spanId()).append("\",");
+		if (span.parentSpanId() != null) {
+			sb.append("\"parentSpanId\":\"").append(span.parentSpanId()).append("\",");
+		}
+		sb.append("\"name\":");
+		string(sb, span.name());
+		sb.append(",\"kind\":1");
+		sb.append(",\"startTimeUnixNano\":\"").append(span.startEpochNanos()).append("\"");
+		sb.append(",\"endTimeUnixNano\":\"").append(span.endEpochNanos()).append("\"");
+		
+		sb.append(",\"attributes\":[");
+		boolean first = true;
+		for (Map.Entry<String, Object> e : span.attributes().entrySet()) {
+			if (!first) {
+				sb.append(",");
+			}
+			attribute(sb, e.getKey(), e.getValue());
+			first = false;
+		}
+		sb.append("]");
+		
+		/*
+		 * Status codes are 1 for ok and 2 for error.
+		 */
+		
+		if (span.error() != null) {
+			sb.append(",\"status\":{\"code\":2,\"message\":");
+			string(sb, span.error());
+			sb.append("}");
+		}
+		else {
+			sb.append(",\"status\":{\"code\":1}");
+		}
+		
+		sb.append("}]}]}]}\n");
+		
+		synchronized (out) {
+			out.write(sb.toString());
+			out.flush();
+		}
+	}
+	
+	public void close() throws Exception {
+		synchronized (out) {
+			out.close();
+		}
+	}
+	
+	private static void attribute(StringBuilder sb, String key, Object value) {
+		
+		sb.append("{\"key\":");
+		string(sb, key);
+		
+		if (value instanceof Long) {
+			sb.append(",\"value\":{\"intValue\":\"").append(value).append("\"}}");
+		}
+		else {
+			sb.append(",\"value\":{\"stringValue\":");
+			string(sb, value.toString());
+			sb.append("}}");
+		}
+	}
+	
+	private static void string(StringBuilder sb, String s) {
+		
+		sb.append('"');
+		
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						sb.append("\\u00");
+						sb.append(Character.forDigit(c >> 4, 16));
+						sb.append(Character.forDigit(c & 0xf, 16));
+					}
+					else {
+						sb.append(c);
+					}
+			}
+		}
+		
+		sb.append('"');
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One timed piece of a run. A span is exported when it ends, and its 
+ * children have to be ended before it for the tree to make sense.
+ * 
+ * Spans from a runner without a tracer are {@link #NONE}, which does 
+ * nothing and is its own child, so callers needn't check.
+ */
+public final class Span {
+	
+	public static final Span NONE = new Span(null, null, null, null, null, 0);
+	
+	private final Tracer tracer;
+	private final String traceId;
+	private final String spanId;
+	private final String parentSpanId;
+	private final String name;
+	private final long start;
+	private final Map<String, Object> attributes;
+	
+	private long end;
+	private String error;
+	
+	Span(Tracer tracer, String traceId, String spanId, String parentSpanId, String name, long start) {
+		this.tracer = tracer;
+		this.traceId = traceId;
+		this.spanId = spanId;
+		this.parentSpanId = parentSpanId;
+		this.name = name;
+		this.start = start;
+		this.attributes = new LinkedHashMap<String, Object>();
+	}
+	
+	/**
+	 * Starts a child span now.
+	 */
+	public Span child(String childName) {
+		return child(childName, System.nanoTime());
+	}
+	
+	/**
+	 * Starts a child span at the given System.nanoTime(), which may have 
+	 * already passed.
+	 */
+	public Span child(String childName, long startNanos) {
+		
+		if (tracer == null) {
+			return this;
+		}
+		
+		return new Span(tracer, traceId, tracer.newSpanId(), spanId, childName, tracer.epochNanos(startNanos));
+	}
+	
+	public Span attribute(String key, String value) {
+		if (tracer != null && value != null) {
+			synchronized (attributes) {
+				attributes.put(key, value);
+			}
+		}
+		return this;
+	}
+	
+	public Span attribute(String key, long value) {
+		if (tracer != null) {
+			synchronized (attributes) {
+				attributes.put(key, Long.valueOf(value));
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Marks the span as failed, it still has to be ended.
+	 */
+	public Span fail(Throwable t) {
+		if (tracer != null) {
+			error = t.getClass().getName() + ": " + t.getMessage();
+		}
+		return this;
+	}
+	
+	public void end() {
+		end(System.nanoTime());
+	}
+	
+	/**
+	 * Ends the span at the given System.nanoTime() and exports it.
+	 */
+	public void end(long endNanos) {
+		
+		if (tracer == null) {
+			return;
+		}
+		
+		end = tracer.epochNanos(endNanos);
+		tracer.export(this);
+	}
+	
+	public String traceId() {
+		return traceId;
+	}
+	
+	public String spanId() {
+		return spanId;
+	}
+	
+	/**
+	 * The parent's span id, or null for the root of a trace.
+	 */
+	public String parentSpanId() {
+		return parentSpanId;
+	}
+	
+	public String name() {
+		return name;
+	}
+	
+	/**
+	 * Nanoseconds since the epoch.
+	 */
+	public long startEpochNanos() {
+		return start;
+	}
+	
+	public long endEpochNanos() {
+		return end;
+	}
+	
+	public Map<String, Object> attributes() {
+		synchronized (attributes) {
+			return Collections.unmodifiableMap(new LinkedHashMap<String, Object>(attributes));
+		}
+	}
+	
+	/**
+	 * What went wrong, or null if the span didn't fail.
+	 */
+	public String error() {
+		return error;
+	}
+}
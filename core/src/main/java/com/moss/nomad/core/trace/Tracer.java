@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.trace;
+
+import java.security.SecureRandom;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.moss.nomad.core.util.Digests;
+
+/**
+ * Starts traces and hands their spans to an exporter. Ids are in the 
+ * OpenTelemetry format: 16 random bytes for a trace, 8 for a span, both as
+ * lower case hex.
+ */
+public final class Tracer {
+	
+	private final Log log;
+	
+	private final SpanExporter exporter;
+	private final Random random;
+	
+	/*
+	 * Span times are System.nanoTime() readings moved onto the wall clock,
+	 * so they're precise relative to each other.
+	 */
+	
+	private final long baseEpochNanos;
+	private final long baseNanos;
+	
+	public Tracer(SpanExporter exporter) {
+		
+		log = LogFactory.getLog(this.getClass());
+		
+		if (exporter == null) {
+			throw new NullPointerException();
+		}
+		
+		this.exporter = exporter;
+		this.random = new SecureRandom();
+		this.baseEpochNanos = System.currentTimeMillis() * 1000000L;
+		this.baseNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Starts the root span of a run.
+	 * 
+	 * @param traceId the trace the span belongs to, so a caller can tie it 
+	 * to its own traces. May be null, in which case a new trace is started.
+	 */
+	public Span start(String traceId, String name) {
+		
+		if (traceId == null) {
+			traceId = newId(16);
+		}
+		else if (!isId(traceId, 32)) {
+			throw new RuntimeException("Not a trace id, expected 32 lower case hex digits: " + traceId);
+		}
+		
+		return new Span(this, traceId, newSpanId(), null, name, epochNanos(System.nanoTime()));
+	}
+	
+	public void close() throws Exception {
+		exporter.close();
+	}
+	
+	String newSpanId() {
+		return newId(8);
+	}
+	
+	long epochNanos(long nanos) {
+		return baseEpochNanos + (nanos - baseNanos);
+	}
+	
+	void export(Span span) {
+		try {
+			exporter.export(span);
+		}
+		catch (Exception ex) {
+			log.warn("Could not export span " + span.name() + " of trace " + span.traceId(), ex);
+		}
+	}
+	
+	private String newId(int length) {
+		
+		byte[] bytes = new byte[length];
+		
+		/*
+		 * All zeros isn't a valid id.
+		 */
+		
+		boolean zero = true;
+		while (zero) {
+			random.nextBytes(bytes);
+			for (byte b : bytes) {
+				zero &= b == 0;
+			}
+		}
+		
+		return Digests.hex(bytes);
+	}
+	
+	private static boolean isId(String id, int length) {
+		
+		if (id.length() != length) {
+			return false;
+		}
+		
+		boolean zero = true;
+		for (int i = 0; i < id.length(); i++) {
+			
+			char c = id.charAt(i);
+			
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+			
+			zero &= c == '0';
+		}
+		
+		return !zero;
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for the phases of packaging and running, so 
+ * nomad's work can be lined up with gc and i/o in a recording. 
+ * 
+ * Nomad still runs on vms that don't have JFR, so the event types are 
+ * defined at runtime through jdk.jfr.EventFactory. Where that isn't 
+ * available, or nothing is recording the type, beginning an event just
+ * returns a shared do-nothing one.
+ * 
+ * Every event carries the def it's about (if any), a detail string and a
+ * byte count, all of which may be left empty.
+ */
+public final class Events {
+	
+	public static final Type PACKAGE_OPEN = new Type("PackageOpen", "Package Open");
+	public static final Type CONTAINER_PARSE = new Type("ContainerParse", "Container Parse");
+	public static final Type EXTRACT = new Type("ClasspathExtract", "Classpath Extraction");
+	public static final Type CLASSLOADER = new Type("ClassLoaderCreate", "ClassLoader Creation");
+	public static final Type HANDLER = new Type("HandlerExecute", "Handler Execution");
+	public static final Type HISTORY_UPDATE = new Type("HistoryUpdate", "History Update");
+	
+	public static final Type RESOLVE = new Type("PackagerResolve", "Packager Resolve");
+	public static final Type HANDLER_SCAN = new Type("PackagerHandlerScan", "Packager Handler Scan");
+	public static final Type JAR_WRITE = new Type("PackagerJarWrite", "Packager Jar Write");
+	
+	private static final int DEF = 0;
+	private static final int DETAIL = 1;
+	private static final int BYTES = 2;
+	
+	private static final Event NONE = new Event(null);
+	
+	private static final Jfr JFR = Jfr.find();
+	
+	private Events() {}
+	
+	/**
+	 * Starts timing an event of the given type, commit() ends it.
+	 */
+	public static Event begin(Type type) {
+		
+		Object event = type.create();
+		
+		if (event == null) {
+			return NONE;
+		}
+		
+		return new Event(event);
+	}
+	
+	public static final class Type {
+		
+		private final String name;
+		private final String label;
+		
+		private volatile boolean defined;
+		private volatile Object factory;
+		private volatile Object eventType;
+		
+		private Type(String name, String label) {
+			this.name = "com.moss.nomad." + name;
+			this.label = label;
+		}
+		
+		public String name() {
+			return name;
+		}
+		
+		private Object create() {
+			
+			if (JFR == null) {
+				return null;
+			}
+			
+			if (!defined) {
+				define();
+			}
+			
+			if (factory == null) {
+				return null;
+			}
+			
+			try {
+				if (!((Boolean)JFR.isEnabled.invoke(eventType)).booleanValue()) {
+					return null;
+				}
+				
+				Object event = JFR.newEvent.invoke(factory);
+				JFR.begin.invoke(event);
+				return event;
+			}
+			catch (Exception ex) {
+				return null;
+			}
+		}
+		
+		private synchronized void define() {
+			
+			if (defined) {
+				return;
+			}
+			
+			try {
+				factory = JFR.define(name, label);
+				eventType = JFR.getEventType.invoke(factory);
+			}
+			catch (Exception ex) {
+				factory = null;
+			}
+			
+			defined = true;
+		}
+	}
+	
+	public static final class Event {
+		
+		private final Object event;
+		
+		private Event(Object event) {
+			this.event = event;
+		}
+		
+		/**
+		 * The def the event is about, only turned into a string if the event
+		 * is being recorded.
+		 */
+		public Event def(Object def) {
+			if (event != null && def != null) {
+				set(DEF, def.toString());
+			}
+			return this;
+		}
+		
+		public Event detail(String detail) {
+			if (event != null) {
+				set(DETAIL, detail);
+			}
+			return this;
+		}
+		
+		public Event bytes(long bytes) {
+			if (event != null) {
+				set(BYTES, Long.valueOf(bytes));
+			}
+			return this;
+		}
+		
+		public void commit() {
+			
+			if (event == null) {
+				return;
+			}
+			
+			try {
+				JFR.end.invoke(event);
+				if (((Boolean)JFR.shouldCommit.invoke(event)).booleanValue()) {
+					JFR.commit.invoke(event);
+				}
+			}
+			catch (Exception ex) {
+				// recording is best effort
+			}
+		}
+		
+		private void set(int index, Object value) {
+			try {
+				JFR.set.invoke(event, Integer.valueOf(index), value);
+			}
+			catch (Exception ex) {
+				// recording is best effort
+			}
+		}
+	}
+	
+	/**
+	 * The bits of the jdk.jfr api this uses, looked up once.
+	 */
+	private static final class Jfr {
+		
+		final Method create;
+		final Constructor annotation;
+		final Constructor value;
+		final Class name;
+		final Class label;
+		final Class category;
+		
+		final Method newEvent;
+		final Method getEventType;
+		final Method isEnabled;
+		
+		final Method begin;
+		final Method end;
+		final Method shouldCommit;
+		final Method commit;
+		final Method set;
+		
+		static Jfr find() {
+			try {
+				return new Jfr();
+			}
+			catch (Throwable t) {
+				return null;
+			}
+		}
+		
+		private Jfr() throws Exception {
+			
+			Class factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class eventClass = Class.forName("jdk.jfr.Event");
+			Class eventTypeClass = Class.forName("jdk.jfr.EventType");
+			
+			create = factoryClass.getMethod("create", List.class, List.class);
+			annotation = annotationClass.getConstructor(Class.class, Object.class);
+			value = valueClass.getConstructor(Class.class, String.class, List.class);
+			name = Class.forName("jdk.jfr.Name");
+			label = Class.forName("jdk.jfr.Label");
+			category = Class.forName("jdk.jfr.Category");
+			
+			newEvent = factoryClass.getMethod("newEvent");
+			getEventType = factoryClass.getMethod("getEventType");
+			isEnabled = eventTypeClass.getMethod("isEnabled");
+			
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			shouldCommit = eventClass.getMethod("shouldCommit");
+			commit = eventClass.getMethod("commit");
+			set = eventClass.getMethod("set", int.class, Object.class);
+		}
+		
+		/**
+		 * Defines and registers an event type, returning its factory. The 
+		 * fields have to be in the order of DEF, DETAIL and BYTES.
+		 */
+		Object define(String eventName, String eventLabel) throws Exception {
+			
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation(name, eventName));
+			annotations.add(annotation(label, eventLabel));
+			annotations.add(annotation(category, new String[]{"Nomad"}));
+			
+			List<Object> fields = new ArrayList<Object>();
+			fields.add(field(String.class, "def", "Migration Def"));
+			fields.add(field(String.class, "detail", "Detail"));
+			fields.add(field(long.class, "bytes", "Bytes"));
+			
+			return create.invoke(null, annotations, fields);
+		}
+		
+		private Object field(Class type, String fieldName, String fieldLabel) throws Exception {
+			return value.newInstance(type, fieldName, Arrays.asList(annotation(label, fieldLabel)));
+		}
+		
+		private Object annotation(Class type, Object v) throws Exception {
+			return annotation.newInstance(type.asSubclass(Annotation.class), v);
+		}
+	}
+}
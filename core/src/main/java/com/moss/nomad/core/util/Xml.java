@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+
+/**
+ * Process-wide XML machinery. Creating a JAXBContext is expensive and the
+ * contexts are thread-safe, so each combination of classes only gets one.
+ * Marshallers and unmarshallers are not thread-safe, and must still be 
+ * created per use.
+ */
+public final class Xml {
+	
+	private static final Map<List<Class<?>>, JAXBContext> contexts = new HashMap<List<Class<?>>, JAXBContext>();
+	
+	private static XMLInputFactory inputFactory;
+	private static XMLOutputFactory outputFactory;
+	
+	private Xml() {}
+	
+	public static JAXBContext context(Class<?>... classes) throws Exception {
+		
+		List<Class<?>> key = Arrays.asList(classes);
+		
+		synchronized (contexts) {
+			
+			JAXBContext context = contexts.get(key);
+			
+			if (context == null) {
+				context = JAXBContext.newInstance(classes);
+				contexts.put(key, context);
+			}
+			
+			return context;
+		}
+	}
+	
+	public static synchronized XMLInputFactory inputFactory() {
+		
+		if (inputFactory == null) {
+			inputFactory = XMLInputFactory.newInstance();
+		}
+		
+		return inputFactory;
+	}
+	
+	public static synchronized XMLOutputFactory outputFactory() {
+		
+		if (outputFactory == null) {
+			outputFactory = XMLOutputFactory.newInstance();
+		}
+		
+		return outputFactory;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.api.v1.ClassLoaderBridge;
+import com.moss.nomad.api.v1.EnvAdapter;
+import com.moss.nomad.api.v1.EnvReader;
+import com.moss.nomad.api.v1.MigrationHandler;
+
+public class TestClassLoaderBridge {
+	
+	static final CountDownLatch slowStarted = new CountDownLatch(1);
+	static final CountDownLatch slowRelease = new CountDownLatch(1);
+	static final AtomicInteger slowReads = new AtomicInteger();
+	
+	public static class SlowReader implements EnvReader<Object> {
+		public Object read(byte[] env) throws Exception {
+			slowReads.incrementAndGet();
+			slowStarted.countDown();
+			if (!slowRelease.await(10, TimeUnit.SECONDS)) {
+				throw new RuntimeException("Never released");
+			}
+			return new Object();
+		}
+	}
+	
+	public static class FastReader implements EnvReader<Object> {
+		public Object read(byte[] env) throws Exception {
+			return new Object();
+		}
+	}
+	
+	@EnvAdapter(SlowReader.class)
+	public static class SlowHandler implements MigrationHandler<Object> {
+		public void execute(Object env) throws Exception {}
+	}
+	
+	@EnvAdapter(FastReader.class)
+	public static class FastHandler implements MigrationHandler<Object> {
+		public void execute(Object env) throws Exception {}
+	}
+	
+	@Test
+	public void decodesWithOneReaderDoNotWaitForAnother() throws Exception {
+		
+		final byte[] env = new byte[0];
+		
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			Future<String> slow = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return ClassLoaderBridge.execute(SlowHandler.class.getName(), env);
+				}
+			});
+			
+			Future<String> waiting = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					Assert.assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+					return ClassLoaderBridge.execute(SlowHandler.class.getName(), env);
+				}
+			});
+			
+			Assert.assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+			
+			/*
+			 * Another reader decodes the same env while the slow one is 
+			 * still at it.
+			 */
+			
+			Future<String> fast = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return ClassLoaderBridge.execute(FastHandler.class.getName(), env);
+				}
+			});
+			
+			Assert.assertNull(fast.get(10, TimeUnit.SECONDS));
+			Assert.assertFalse(slow.isDone());
+			
+			slowRelease.countDown();
+			
+			Assert.assertNull(slow.get(10, TimeUnit.SECONDS));
+			Assert.assertNull(waiting.get(10, TimeUnit.SECONDS));
+			
+			/*
+			 * The second migration waited for the first one's decode rather
+			 * than decoding again.
+			 */
+			
+			Assert.assertEquals(1, slowReads.get());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+}
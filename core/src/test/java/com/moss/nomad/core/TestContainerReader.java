@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import javax.xml.bind.Marshaller;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.packager.ContainerIndex;
+import com.moss.nomad.core.packager.ContainerReader;
+import com.moss.nomad.core.packager.MigrationContainer;
+import com.moss.nomad.core.packager.MigrationPackage;
+import com.moss.nomad.core.packager.MigrationPath;
+import com.moss.nomad.core.packager.MigrationResources;
+import com.moss.nomad.core.util.Xml;
+
+public class TestContainerReader {
+	
+	private static final int PATHS = 5;
+	private static final int PACKAGES_PER_PATH = 20;
+
+	@Test
+	public void readsOnlyTheRequestedPath() throws Exception {
+		
+		File file = new File("target/large-container.jar");
+		write(file);
+		
+		JarFile jar = new JarFile(file);
+		try {
+			ContainerReader reader = new ContainerReader(jar);
+			
+			Assert.assertNull(reader.path("no-such-path"));
+			
+			MigrationPath path = reader.path("path-" + (PATHS - 1));
+			Assert.assertNotNull(path);
+			Assert.assertEquals(PACKAGES_PER_PATH, path.packages().size());
+			
+			MigrationPackage last = path.packages().get(PACKAGES_PER_PATH - 1);
+			Assert.assertEquals("migration-" + (PATHS - 1) + "-" + (PACKAGES_PER_PATH - 1), last.def().artifactId());
+			Assert.assertEquals(3, last.resources().classpath().size());
+		}
+		finally {
+			jar.close();
+		}
+	}
+	
+	@Test
+	public void readsThroughTheIndex() throws Exception {
+		
+		File file = new File("target/indexed-container.jar");
+		
+		MigrationContainer container = container();
+		
+		/*
+		 * Laid out the way the packager does it: the index stored after the
+		 * xml, and the jar comment pointing at its local header.
+		 */
+		
+		ByteArrayOutputStream bao = new ByteArrayOutputStream();
+		JarOutputStream out = new JarOutputStream(bao);
+		out.putNextEntry(new JarEntry(ContainerReader.CONTAINER_ENTRY));
+		Xml.context(MigrationContainer.class).createMarshaller().marshal(container, out);
+		out.closeEntry();
+		
+		byte[] index = ContainerIndex.write(container, new HashMap<String, Long>());
+		
+		CRC32 crc = new CRC32();
+		crc.update(index);
+		
+		JarEntry entry = new JarEntry(ContainerIndex.INDEX_ENTRY);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(index.length);
+		entry.setCompressedSize(index.length);
+		entry.setCrc(crc.getValue());
+		
+		long offset = bao.size();
+		out.putNextEntry(entry);
+		out.write(index);
+		out.setComment(ContainerIndex.COMMENT_PREFIX + offset);
+		out.close();
+		
+		FileOutputStream fout = new FileOutputStream(file);
+		bao.writeTo(fout);
+		fout.close();
+		
+		/*
+		 * Stored data is only read straight out of the file when the header 
+		 * there is the entry expected.
+		 */
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			Assert.assertTrue(ContainerIndex.storedDataOffset(channel, offset, ContainerIndex.INDEX_ENTRY, index.length) > offset);
+			Assert.assertEquals(-1, ContainerIndex.storedDataOffset(channel, offset, ContainerReader.CONTAINER_ENTRY, index.length));
+			Assert.assertEquals(-1, ContainerIndex.storedDataOffset(channel, offset, ContainerIndex.INDEX_ENTRY, index.length + 1));
+			Assert.assertEquals(-1, ContainerIndex.storedDataOffset(channel, 0, ContainerReader.CONTAINER_ENTRY, index.length));
+		}
+		finally {
+			raf.close();
+		}
+		
+		JarFile jar = new JarFile(file);
+		ContainerReader reader = new ContainerReader(jar);
+		
+		Assert.assertNotNull(reader.index());
+		Assert.assertNull(reader.path("no-such-path"));
+		
+		for (MigrationPath expected : container.paths()) {
+			
+			MigrationPath actual = reader.path(expected.name());
+			Assert.assertEquals(expected.packages().size(), actual.packages().size());
+			
+			for (int i = 0; i < expected.packages().size(); i++) {
+				MigrationPackage e = expected.packages().get(i);
+				MigrationPackage a = actual.packages().get(i);
+				
+				Assert.assertEquals(e.def(), a.def());
+				Assert.assertEquals(e.resources().className(), a.resources().className());
+				Assert.assertEquals(e.resources().classpath(), a.resources().classpath());
+			}
+		}
+		
+		jar.close();
+	}
+	
+	private void write(File file) throws Exception {
+		
+		MigrationContainer container = container();
+		
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		out.putNextEntry(new JarEntry(ContainerReader.CONTAINER_ENTRY));
+		
+		Marshaller m = Xml.context(MigrationContainer.class).createMarshaller();
+		m.marshal(container, out);
+		
+		out.close();
+	}
+	
+	private MigrationContainer container() {
+		
+		MigrationContainer container = new MigrationContainer();
+		
+		for (int p = 0; p < PATHS; p++) {
+			
+			MigrationPath path = new MigrationPath("path-" + p);
+			
+			for (int i = 0; i < PACKAGES_PER_PATH; i++) {
+				
+				MigrationDef def = new MigrationDef("com.example", "migration-" + p + "-" + i, "1.0", "jar", null);
+				
+				List<String> classpath = new ArrayList<String>();
+				classpath.add("com.example/migration-" + p + "-" + i + "/1.0/migration-" + p + "-" + i + "-1.0.jar");
+				classpath.add("com.example/support/1.0/support-1.0.jar");
+				classpath.add("com.moss.nomad/nomad-api/1.0/nomad-api-1.0.jar");
+				
+				path.add(new MigrationPackage(def, new MigrationResources("com.example.Handler" + i, classpath)));
+			}
+			
+			container.add(path);
+		}
+		
+		return container;
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.api.scan.HandlerScanner;
+import com.moss.nomad.api.v1.MigrationHandler;
+
+public class TestHandlerScanner {
+	
+	private static boolean unloadableInitialized;
+	
+	@Test
+	public void findsDirectAndInheritedHandlers() throws Exception {
+		
+		HandlerScanner scanner = new HandlerScanner();
+		
+		for (Class c : new Class[] { Plain.class, Direct.class, Base.class, Inherited.class, Extended.class, ViaInterface.class, Constants.class }) {
+			InputStream in = classFile(c);
+			try {
+				scanner.scan(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		
+		Assert.assertEquals(
+			Arrays.asList(Direct.class.getName(), Inherited.class.getName(), ViaInterface.class.getName()), 
+			scanner.handlers()
+		);
+	}
+	
+	@Test
+	public void scansJarsWithoutLoadingClasses() throws Exception {
+		
+		File file = new File("target/handler-scanner.jar");
+		
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			for (Class c : new Class[] { Unloadable.class, Base.class, Plain.class }) {
+				
+				out.putNextEntry(new JarEntry(c.getName().replace('.', '/') + ".class"));
+				
+				InputStream in = classFile(c);
+				try {
+					byte[] buffer = new byte[4096];
+					for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+						out.write(buffer, 0, n);
+					}
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		HandlerScanner scanner = new HandlerScanner();
+		scanner.scanJar(file);
+		
+		Assert.assertEquals(Arrays.asList(Unloadable.class.getName()), scanner.handlers());
+		Assert.assertFalse(unloadableInitialized);
+	}
+	
+	@Test(expected=Exception.class)
+	public void rejectsOtherFiles() throws Exception {
+		new HandlerScanner().scan(new java.io.ByteArrayInputStream("not a class".getBytes()));
+	}
+	
+	private static InputStream classFile(Class c) {
+		String name = c.getName();
+		return c.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+	}
+	
+	public static class Plain {}
+	
+	public static class Direct implements MigrationHandler<String> {
+		public void execute(String env) throws Exception {}
+	}
+	
+	public static abstract class Base implements MigrationHandler<String> {}
+	
+	public static class Inherited extends Base {
+		public void execute(String env) throws Exception {}
+	}
+	
+	public interface Extended extends MigrationHandler<String> {}
+	
+	public static class ViaInterface implements Extended {
+		public void execute(String env) throws Exception {}
+	}
+	
+	/**
+	 * Has longs and doubles in its constant pool, which take two slots.
+	 */
+	public static class Constants {
+		long l = System.nanoTime() + 1234567890123L;
+		double d = Math.random() * 3.25d;
+		String s = "constant";
+	}
+	
+	public static class Unloadable extends Base {
+		
+		static {
+			unloadableInitialized = true;
+		}
+		
+		public void execute(String env) throws Exception {}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.HistoryJournal;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+
+public class TestHistoryJournal {
+	
+	@Test
+	public void survivesCompactionAndTornWrites() throws Exception {
+		
+		File file = new File("target/history.journal");
+		file.delete();
+		new File(file.getPath() + HistoryJournal.SNAPSHOT_SUFFIX).delete();
+		
+		HistoryJournal journal = new HistoryJournal(file, 3);
+		for (int i = 0; i < 5; i++) {
+			journal.append(migration(i));
+		}
+		
+		journal.compact();
+		journal.append(migration(5));
+		journal.append(migration(6));
+		journal.close();
+		
+		/*
+		 * Lose the end of the last record, as if the process died while it
+		 * was being written.
+		 */
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		
+		journal = new HistoryJournal(file);
+		
+		MigrationHistory history = journal.read();
+		Assert.assertEquals(6, history.migrations().size());
+		Assert.assertTrue(history.contains(migration(5).def()));
+		Assert.assertFalse(history.contains(migration(6).def()));
+		
+		journal.append(migration(6));
+		Assert.assertEquals(7, journal.read().migrations().size());
+		
+		journal.close();
+	}
+	
+	@Test
+	public void readsEverythingWhileCompacting() throws Exception {
+		
+		File file = new File("target/compacting.journal");
+		file.delete();
+		new File(file.getPath() + HistoryJournal.SNAPSHOT_SUFFIX).delete();
+		
+		final HistoryJournal journal = new HistoryJournal(file, 1);
+		
+		final AtomicInteger appended = new AtomicInteger();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		
+		Thread compactor = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 200; i++) {
+						journal.append(migration(i));
+						appended.incrementAndGet();
+						journal.compact();
+					}
+				}
+				catch (Exception ex) {
+					failure.set(ex);
+				}
+			}
+		};
+		
+		compactor.start();
+		
+		while (compactor.isAlive()) {
+			int before = appended.get();
+			int read = journal.read().migrations().size();
+			Assert.assertTrue("Read " + read + " of at least " + before + " migrations", read >= before);
+		}
+		
+		compactor.join();
+		
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		
+		Assert.assertEquals(200, journal.read().migrations().size());
+		
+		journal.close();
+	}
+	
+	private Migration migration(int i) {
+		return new Migration(new Instant(), new MigrationDef("com.example", "migration-" + i, "1.0", "jar", null));
+	}
+}
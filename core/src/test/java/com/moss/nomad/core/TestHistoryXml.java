@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.xml.bind.Unmarshaller;
+
+import junit.framework.Assert;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.HistoryXml;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.history.MigrationVisitor;
+import com.moss.nomad.core.util.Xml;
+
+public class TestHistoryXml {
+	
+	private static final MigrationDef PLAIN = new MigrationDef("com.example", "migration-0", "1.0", "jar", null);
+	private static final MigrationDef CLASSIFIED = new MigrationDef("com.example", "migration-1", "1.0", "jar", "schema");
+	
+	@Test
+	public void roundTrips() throws Exception {
+		
+		File file = new File("target/history-round-trip.xml");
+		
+		MigrationHistory history = history();
+		HistoryXml.write(file, history);
+		
+		MigrationHistory read = HistoryXml.readHistory(file);
+		assertSame(history, read);
+		
+		/*
+		 * The document is the one jaxb reads for MigrationHistory.
+		 */
+		Unmarshaller u = Xml.context(MigrationHistory.class).createUnmarshaller();
+		assertSame(history, (MigrationHistory)u.unmarshal(file));
+	}
+	
+	@Test
+	public void visitsMigrationsInOrder() throws Exception {
+		
+		File file = new File("target/history-visited.xml");
+		HistoryXml.write(file, history());
+		
+		final List<MigrationDef> visited = new ArrayList<MigrationDef>();
+		
+		FileInputStream in = new FileInputStream(file);
+		try {
+			HistoryXml.read(in, new MigrationVisitor() {
+				public void migration(Migration migration) {
+					visited.add(migration.def());
+				}
+			});
+		}
+		finally {
+			in.close();
+		}
+		
+		Assert.assertEquals(Arrays.asList(PLAIN, CLASSIFIED, PLAIN), visited);
+	}
+	
+	@Test
+	public void executedHoldsEachDefOnce() throws Exception {
+		
+		File file = new File("target/history-executed.xml");
+		HistoryXml.write(file, history());
+		
+		Assert.assertEquals(new HashSet<MigrationDef>(Arrays.asList(PLAIN, CLASSIFIED)), HistoryXml.executed(file));
+	}
+	
+	@Test
+	public void anInterruptedWriteLeavesTheOldFile() throws Exception {
+		
+		File dir = new File("target/history-interrupted");
+		dir.mkdirs();
+		File file = new File(dir, "history.xml");
+		
+		MigrationHistory history = history();
+		HistoryXml.write(file, history);
+		long length = file.length();
+		
+		HistoryXml.Writer w = new HistoryXml.Writer(file);
+		try {
+			w.write(new Migration(new Instant(), new MigrationDef("com.example", "migration-2", "1.0", "jar", null)));
+		}
+		finally {
+			w.abort();
+		}
+		
+		Assert.assertEquals(length, file.length());
+		assertSame(history, HistoryXml.readHistory(file));
+		Assert.assertEquals(Arrays.asList("history.xml"), Arrays.asList(dir.list()));
+		
+		/*
+		 * Nor does a failed commit, here because the target is a directory.
+		 */
+		
+		File blocked = new File(dir, "blocked.xml");
+		blocked.mkdir();
+		new FileOutputStream(new File(blocked, "keep")).close();
+		
+		try {
+			HistoryXml.write(blocked, history);
+			Assert.fail();
+		}
+		catch (RuntimeException ex) {
+			// expected
+		}
+		
+		Assert.assertTrue(blocked.isDirectory());
+		Assert.assertEquals(2, dir.list().length);
+	}
+	
+	/**
+	 * Classified and unclassified defs, one of them applied twice.
+	 */
+	private static MigrationHistory history() {
+		MigrationHistory history = new MigrationHistory();
+		history.add(new Migration(new Instant(1000000000000L), PLAIN));
+		history.add(new Migration(new Instant(1000000001234L), CLASSIFIED));
+		history.add(new Migration(new Instant(1000000002000L), PLAIN));
+		return history;
+	}
+	
+	private static void assertSame(MigrationHistory expected, MigrationHistory actual) {
+		
+		Assert.assertEquals(expected.migrations().size(), actual.migrations().size());
+		
+		for (int i = 0; i < expected.migrations().size(); i++) {
+			Migration e = expected.migrations().get(i);
+			Migration a = actual.migrations().get(i);
+			Assert.assertEquals(e.when(), a.when());
+			Assert.assertEquals(e.def(), a.def());
+			Assert.assertEquals(e.def().classifier(), a.def().classifier());
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.util.Iterator;
+
+import junit.framework.Assert;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+
+public class TestMigrationHistory {
+	
+	@Test
+	public void defsAreEqualByCoordinates() throws Exception {
+		
+		MigrationDef def = new MigrationDef("com.example", "migration", "1.0", "jar", null);
+		MigrationDef same = new MigrationDef("com.example", "migration", "1.0", "jar", null);
+		MigrationDef classified = new MigrationDef("com.example", "migration", "1.0", "jar", "tests");
+		MigrationDef later = new MigrationDef("com.example", "migration", "1.1", "jar", null);
+		
+		Assert.assertEquals(def, same);
+		Assert.assertEquals(def.hashCode(), same.hashCode());
+		Assert.assertEquals(def.hashCode(), def.hashCode());
+		
+		Assert.assertFalse(def.equals(classified));
+		Assert.assertFalse(classified.equals(def));
+		Assert.assertFalse(def.equals(later));
+		Assert.assertFalse(def.equals(null));
+		Assert.assertFalse(def.equals(def.toString()));
+		
+		Assert.assertEquals(classified, new MigrationDef("com.example", "migration", "1.0", "jar", "tests"));
+	}
+	
+	@Test
+	public void indexFollowsChangesToTheMigrations() throws Exception {
+		
+		MigrationHistory history = new MigrationHistory();
+		
+		history.add(migration(0));
+		history.add(migration(1));
+		history.add(migration(1));
+		
+		Assert.assertTrue(history.contains(def(0)));
+		Assert.assertTrue(history.contains(def(1)));
+		Assert.assertFalse(history.contains(def(2)));
+		
+		/*
+		 * A def recorded twice is still there after one is removed.
+		 */
+		
+		history.migrations().remove(2);
+		Assert.assertTrue(history.contains(def(1)));
+		
+		history.migrations().set(1, migration(2));
+		Assert.assertFalse(history.contains(def(1)));
+		Assert.assertTrue(history.contains(def(2)));
+		
+		for (Iterator<Migration> i = history.migrations().iterator(); i.hasNext();) {
+			if (i.next().def().equals(def(0))) {
+				i.remove();
+			}
+		}
+		Assert.assertFalse(history.contains(def(0)));
+		Assert.assertEquals(1, history.migrations().size());
+		
+		history.migrations().clear();
+		Assert.assertFalse(history.contains(def(2)));
+	}
+	
+	private static MigrationDef def(int i) {
+		return new MigrationDef("com.example", "migration-" + i, "1.0", "jar", null);
+	}
+	
+	private static Migration migration(int i) {
+		return new Migration(new Instant(), def(i));
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.trace.JsonLinesExporter;
+import com.moss.nomad.core.trace.Span;
+import com.moss.nomad.core.trace.Tracer;
+
+public class TestTracing {
+	
+	private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+	
+	@Test
+	public void writesOneLinePerSpanInTheCallersTrace() throws Exception {
+		
+		File file = new File("target/trace.jsonl");
+		file.delete();
+		
+		Tracer tracer = new Tracer(new JsonLinesExporter(file, "node-1"));
+		
+		Span run = tracer.start(TRACE_ID, "nomad.run");
+		Span path = run.child("nomad.path").attribute("nomad.path", "default \"main\"");
+		path.child("nomad.migration").fail(new RuntimeException("boom")).end();
+		path.end();
+		run.end();
+		
+		tracer.close();
+		
+		List<String> lines = new ArrayList<String>();
+		BufferedReader r = new BufferedReader(new FileReader(file));
+		for (String line = r.readLine(); line != null; line = r.readLine()) {
+			lines.add(line);
+		}
+		r.close();
+		
+		Assert.assertEquals(3, lines.size());
+		
+		for (String line : lines) {
+			Assert.assertTrue(line.contains("\"traceId\":\"" + TRACE_ID + "\""));
+			Assert.assertTrue(line.contains("{\"key\":\"service.name\",\"value\":{\"stringValue\":\"node-1\"}}"));
+		}
+		
+		/*
+		 * Children end, and are written, before their parents.
+		 */
+		
+		Assert.assertTrue(lines.get(0).contains("\"parentSpanId\":\"" + path.spanId() + "\""));
+		Assert.assertTrue(lines.get(0).contains("\"status\":{\"code\":2,\"message\":\"java.lang.RuntimeException: boom\"}"));
+		Assert.assertTrue(lines.get(1).contains("\"parentSpanId\":\"" + run.spanId() + "\""));
+		Assert.assertTrue(lines.get(1).contains("\"stringValue\":\"default \\\"main\\\"\""));
+		Assert.assertFalse(lines.get(2).contains("parentSpanId"));
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void rejectsMalformedTraceIds() throws Exception {
+		new Tracer(new JsonLinesExporter(new File("target/trace-bad.jsonl"))).start("not-a-trace", "nomad.run");
+	}
+}
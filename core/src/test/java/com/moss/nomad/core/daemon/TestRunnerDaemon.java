@@ -0,0 +1,314 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.packager.ContainerReader;
+
+public class TestRunnerDaemon {
+	
+	@Test
+	public void rejectsClientsWithoutTheToken() throws Exception {
+		
+		File dir = new File("target/daemon-tokens");
+		
+		RunnerDaemon daemon = new RunnerDaemon(0, null, dir);
+		daemon.start();
+		try {
+			File tokenFile = DaemonProtocol.tokenFile(dir, daemon.port());
+			Assert.assertTrue(tokenFile.exists());
+			
+			Socket s = new Socket("127.0.0.1", daemon.port());
+			try {
+				DataOutputStream out = new DataOutputStream(s.getOutputStream());
+				handshake(s, new byte[DaemonProtocol.TOKEN_LENGTH]);
+				out.writeByte(DaemonProtocol.PLAN);
+				out.writeUTF("/some/package.jar");
+				out.writeUTF("default");
+				out.writeInt(0);
+				out.flush();
+				
+				Assert.assertEquals(-1, s.getInputStream().read());
+			}
+			finally {
+				s.close();
+			}
+			
+			/*
+			 * With the token the request gets as far as opening the package.
+			 */
+			
+			try {
+				new RunnerClient(daemon.port(), null, dir).plan(new File("target/no-such-package.jar"), "default", new MigrationHistory());
+				Assert.fail();
+			}
+			catch (RuntimeException ex) {
+				Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("The daemon could not plan the run"));
+			}
+		}
+		finally {
+			daemon.close();
+		}
+		
+		Assert.assertFalse(DaemonProtocol.tokenFile(dir, daemon.port()).exists());
+	}
+	
+	@Test
+	public void refusesOversizedEnvs() throws Exception {
+		
+		File dir = new File("target/daemon-tokens");
+		
+		RunnerDaemon daemon = new RunnerDaemon(0, null, dir);
+		daemon.setMaxEnvSize(1024);
+		daemon.start();
+		try {
+			byte[] token = new byte[DaemonProtocol.TOKEN_LENGTH];
+			DataInputStream tokenIn = new DataInputStream(new FileInputStream(DaemonProtocol.tokenFile(dir, daemon.port())));
+			tokenIn.readFully(token);
+			tokenIn.close();
+			
+			for (int length : new int[] { Integer.MAX_VALUE, 1025, -2 }) {
+				
+				Socket s = new Socket("127.0.0.1", daemon.port());
+				try {
+					DataOutputStream out = new DataOutputStream(s.getOutputStream());
+					Assert.assertTrue(handshake(s, token));
+					out.writeByte(DaemonProtocol.RUN);
+					out.writeUTF("/some/package.jar");
+					out.writeUTF("default");
+					out.writeInt(0);
+					out.writeInt(length);
+					out.flush();
+					
+					Assert.assertEquals(-1, s.getInputStream().read());
+				}
+				finally {
+					s.close();
+				}
+			}
+		}
+		finally {
+			daemon.close();
+		}
+	}
+	
+	/**
+	 * A process that took over the port of a daemon that died, leaving its
+	 * token file behind, can't prove it has the token, so its answers are 
+	 * not used.
+	 */
+	@Test
+	public void doesNotTrustAnImpostor() throws Exception {
+		
+		File dir = new File("target/daemon-tokens");
+		
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final boolean[] trusted = new boolean[1];
+		Thread impostor = new Thread() {
+			public void run() {
+				try {
+					Socket s = server.accept();
+					try {
+						DataInputStream in = new DataInputStream(s.getInputStream());
+						DataOutputStream out = new DataOutputStream(s.getOutputStream());
+						DaemonProtocol.readFully(in, 4 + 2 + DaemonProtocol.NONCE_LENGTH);
+						out.write(DaemonProtocol.nonce());
+						out.write(new byte[DaemonProtocol.PROOF_LENGTH]);
+						out.flush();
+						
+						/*
+						 * Whatever the client sends, the plan is empty.
+						 */
+						if (in.read() != -1) {
+							synchronized (trusted) {
+								trusted[0] = true;
+							}
+							out.writeByte(DaemonProtocol.OK);
+							out.writeInt(0);
+							out.flush();
+						}
+					}
+					finally {
+						s.close();
+					}
+				}
+				catch (Exception ex) {
+					// the test fails on what the client did
+				}
+			}
+		};
+		impostor.start();
+		
+		File tokenFile = DaemonProtocol.tokenFile(dir, server.getLocalPort());
+		tokenFile.getParentFile().mkdirs();
+		FileOutputStream tokenOut = new FileOutputStream(tokenFile);
+		tokenOut.write(new byte[DaemonProtocol.TOKEN_LENGTH]);
+		tokenOut.close();
+		
+		try {
+			new RunnerClient(server.getLocalPort(), null, dir).plan(new File("target/no-such-package.jar"), "default", new MigrationHistory());
+			Assert.fail();
+		}
+		catch (Exception ex) {
+			
+			/*
+			 * Run in process, where the package doesn't exist.
+			 */
+			Assert.assertFalse(String.valueOf(ex.getMessage()).startsWith("The daemon"));
+		}
+		finally {
+			impostor.join(10000);
+			server.close();
+			tokenFile.delete();
+		}
+		
+		synchronized (trusted) {
+			Assert.assertFalse(trusted[0]);
+		}
+	}
+	
+	@Test
+	public void keepsABoundedNumberOfPackagesOpen() throws Exception {
+		
+		File dir = new File("target/daemon-tokens");
+		
+		RunnerDaemon daemon = new RunnerDaemon(0, null, dir);
+		daemon.setMaxPackages(2);
+		daemon.start();
+		try {
+			RunnerClient client = new RunnerClient(daemon.port(), null, dir);
+			
+			File a = emptyPackage("a", 0);
+			plan(client, a);
+			Assert.assertEquals(1, daemon.openPackages());
+			
+			/*
+			 * A rebuilt package replaces the one that was open, rather than
+			 * being opened alongside it.
+			 */
+			
+			a = emptyPackage("a", 1);
+			plan(client, a);
+			Assert.assertEquals(1, daemon.openPackages());
+			
+			plan(client, emptyPackage("b", 0));
+			plan(client, emptyPackage("c", 0));
+			Assert.assertEquals(2, daemon.openPackages());
+		}
+		finally {
+			daemon.close();
+		}
+		
+		Assert.assertEquals(0, daemon.openPackages());
+	}
+	
+	/**
+	 * Does the client's side of the handshake with the given token, returns
+	 * whether the daemon proved it has the same one.
+	 */
+	private static boolean handshake(Socket s, byte[] token) throws Exception {
+		
+		DataOutputStream out = new DataOutputStream(s.getOutputStream());
+		DataInputStream in = new DataInputStream(s.getInputStream());
+		
+		byte[] clientNonce = DaemonProtocol.nonce();
+		out.writeInt(DaemonProtocol.MAGIC);
+		out.writeShort(DaemonProtocol.VERSION);
+		out.write(clientNonce);
+		out.flush();
+		
+		byte[] daemonNonce = DaemonProtocol.readFully(in, DaemonProtocol.NONCE_LENGTH);
+		byte[] proof = DaemonProtocol.readFully(in, DaemonProtocol.PROOF_LENGTH);
+		
+		out.write(DaemonProtocol.proof(token, DaemonProtocol.CLIENT, daemonNonce, clientNonce));
+		
+		return Arrays.equals(proof, DaemonProtocol.proof(token, DaemonProtocol.DAEMON, clientNonce, daemonNonce));
+	}
+	
+	/**
+	 * Plans a path the package doesn't have, which is enough to open it.
+	 */
+	private static void plan(RunnerClient client, File packageJar) throws Exception {
+		try {
+			client.plan(packageJar, "no-such-path", new MigrationHistory());
+		}
+		catch (RuntimeException ex) {
+			// expected
+		}
+	}
+	
+	/**
+	 * A package with an empty container, padded so each version has a 
+	 * different length.
+	 */
+	private static File emptyPackage(String name, int version) throws Exception {
+		
+		File file = new File("target/daemon-packages/" + name + ".jar");
+		file.getParentFile().mkdirs();
+		
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			out.putNextEntry(new JarEntry(ContainerReader.CONTAINER_ENTRY));
+			out.write("<container/>".getBytes("UTF-8"));
+			
+			out.putNextEntry(new JarEntry("padding"));
+			out.write(new byte[version]);
+		}
+		finally {
+			out.close();
+		}
+		
+		return file;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.history;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+
+public class TestFailedAppends {
+	
+	@Test
+	public void aFailedAppendDoesNotCostLaterOnes() throws Exception {
+		
+		File file = new File("target/failed-appends.journal");
+		file.getParentFile().mkdirs();
+		file.delete();
+		new File(file.getPath() + HistoryJournal.SNAPSHOT_SUFFIX).delete();
+		
+		HistoryJournal journal = new HistoryJournal(file);
+		journal.append(migration(0));
+		
+		long length = file.length();
+		
+		journal.failAppendsAfter = 10;
+		try {
+			journal.append(migration(1));
+			Assert.fail("The append should have failed");
+		}
+		catch (IOException ex) {
+			// expected
+		}
+		
+		Assert.assertEquals(length, file.length());
+		
+		journal.failAppendsAfter = -1;
+		journal.append(migration(2));
+		journal.append(migration(3));
+		journal.close();
+		
+		/*
+		 * Everything appended after the failure is still there once the 
+		 * journal is reopened.
+		 */
+		
+		journal = new HistoryJournal(file);
+		MigrationHistory history = journal.read();
+		journal.close();
+		
+		Assert.assertEquals(3, history.migrations().size());
+		Assert.assertTrue(history.contains(migration(0).def()));
+		Assert.assertFalse(history.contains(migration(1).def()));
+		Assert.assertTrue(history.contains(migration(2).def()));
+		Assert.assertTrue(history.contains(migration(3).def()));
+	}
+	
+	private static Migration migration(int i) {
+		return new Migration(new Instant(), new MigrationDef("com.example", "migration-" + i, "1.0", "jar", null));
+	}
+}
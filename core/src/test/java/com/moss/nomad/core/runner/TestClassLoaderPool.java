@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestClassLoaderPool {
+	
+	@Test
+	public void sharesLoadersUntilTheLastMigrationReleasesThem() throws Exception {
+		
+		List<String> classpath = Arrays.asList("lib/a.jar", "lib/b.jar");
+		
+		ClassLoaderPool pool = new ClassLoaderPool(true);
+		pool.expect(classpath);
+		pool.expect(new ArrayList<String>(classpath));
+		
+		Assert.assertNull(pool.acquire(classpath));
+		
+		Loader first = new Loader();
+		Assert.assertSame(first, pool.add(classpath, first));
+		Assert.assertSame(first, pool.acquire(new ArrayList<String>(classpath)));
+		
+		/*
+		 * The same classpath in another order is a different classloader.
+		 */
+		
+		Assert.assertNull(pool.acquire(Arrays.asList("lib/b.jar", "lib/a.jar")));
+		
+		/*
+		 * A loader created in parallel for the same classpath loses out.
+		 */
+		
+		Loader second = new Loader();
+		Assert.assertSame(first, pool.add(classpath, second));
+		Assert.assertEquals(1, second.disposed);
+		
+		pool.release(classpath, first);
+		Assert.assertEquals(0, first.disposed);
+		Assert.assertSame(first, pool.acquire(classpath));
+		
+		pool.release(classpath, first);
+		Assert.assertEquals(1, first.disposed);
+		Assert.assertNull(pool.acquire(classpath));
+	}
+	
+	@Test
+	public void clearDisposesWhatFailedRunsLeftBehind() throws Exception {
+		
+		List<String> classpath = Arrays.asList("lib/a.jar");
+		
+		ClassLoaderPool pool = new ClassLoaderPool(true);
+		pool.expect(classpath);
+		pool.expect(classpath);
+		
+		Loader loader = new Loader();
+		pool.add(classpath, loader);
+		pool.release(classpath, loader);
+		Assert.assertEquals(0, loader.disposed);
+		
+		pool.clear();
+		Assert.assertEquals(1, loader.disposed);
+		Assert.assertNull(pool.acquire(classpath));
+	}
+	
+	@Test
+	public void unsharedLoadersAreDisposedOnRelease() throws Exception {
+		
+		List<String> classpath = Arrays.asList("lib/a.jar");
+		
+		ClassLoaderPool pool = new ClassLoaderPool(false);
+		pool.expect(classpath);
+		pool.expect(classpath);
+		
+		Loader loader = new Loader();
+		Assert.assertSame(loader, pool.add(classpath, loader));
+		Assert.assertNull(pool.acquire(classpath));
+		
+		pool.release(classpath, loader);
+		Assert.assertEquals(1, loader.disposed);
+	}
+	
+	private static class Loader extends MigrationLoader {
+		
+		int disposed;
+		
+		Loader() throws Exception {
+			super(TestClassLoaderPool.class.getClassLoader(), null, null, new ArrayList<File>());
+		}
+		
+		void dispose() {
+			disposed++;
+			super.dispose();
+		}
+	}
+}
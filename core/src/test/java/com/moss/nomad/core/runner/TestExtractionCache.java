@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.util.Digests;
+
+public class TestExtractionCache {
+	
+	private static final int ENTRY_SIZE = 1000;
+	private static final long AN_HOUR_AGO = System.currentTimeMillis() - 1000L * 60 * 60;
+	
+	@Test
+	public void evictsOnlyWhatIsNeitherPinnedNorRecent() throws Exception {
+		
+		File dir = emptyDir("target/extraction-cache");
+		
+		JarFile jar = jar("target/extraction-cache.jar", 3);
+		try {
+			ExtractionCache cache = new ExtractionCache(dir, ENTRY_SIZE * 3 / 2);
+			AtomicLong extracted = new AtomicLong();
+			
+			File first = fetch(cache, jar, 0, extracted);
+			Assert.assertEquals(ENTRY_SIZE, extracted.get());
+			Assert.assertTrue(first.setLastModified(AN_HOUR_AGO));
+			
+			/*
+			 * Over the limit, but the first is pinned and the second is new.
+			 */
+			
+			File second = fetch(cache, jar, 1, extracted);
+			Assert.assertTrue(first.exists());
+			Assert.assertTrue(second.exists());
+			
+			/*
+			 * Released and long unused, the first one goes. The second was
+			 * released too but was used too recently.
+			 */
+			
+			cache.release(first);
+			cache.release(second);
+			Assert.assertTrue(first.setLastModified(AN_HOUR_AGO));
+			
+			File third = fetch(cache, jar, 2, extracted);
+			Assert.assertFalse(first.exists());
+			Assert.assertTrue(second.exists());
+			Assert.assertTrue(third.exists());
+			
+			/*
+			 * Fetching what's cached just touches it.
+			 */
+			
+			Assert.assertTrue(second.setLastModified(AN_HOUR_AGO));
+			Assert.assertEquals(second, fetch(cache, jar, 1, extracted));
+			Assert.assertEquals(ENTRY_SIZE * 3, extracted.get());
+			Assert.assertTrue(second.lastModified() > AN_HOUR_AGO);
+		}
+		finally {
+			jar.close();
+		}
+	}
+	
+	@Test
+	public void rejectsContentNotMatchingItsDigest() throws Exception {
+		
+		File dir = emptyDir("target/extraction-cache-verify");
+		
+		JarFile jar = jar("target/extraction-cache-verify.jar", 2);
+		try {
+			ExtractionCache cache = new ExtractionCache(dir, Long.MAX_VALUE);
+			
+			JarEntry entry = jar.getJarEntry(name(0));
+			String wrong = digest(1);
+			
+			try {
+				cache.fetch(jar, entry, wrong, true, new AtomicLong());
+				Assert.fail("Content that doesn't match its digest was cached");
+			}
+			catch (RuntimeException ex) {
+				Assert.assertTrue(ex.getMessage(), ex.getMessage().contains("does not match its recorded digest"));
+			}
+			
+			Assert.assertEquals(Arrays.asList(new String[0]), Arrays.asList(dir.list()));
+		}
+		finally {
+			jar.close();
+		}
+	}
+	
+	private static File fetch(ExtractionCache cache, JarFile jar, int i, AtomicLong extracted) throws Exception {
+		return cache.fetch(jar, jar.getJarEntry(name(i)), digest(i), true, extracted);
+	}
+	
+	private static String name(int i) {
+		return "lib/entry" + i + ".jar";
+	}
+	
+	private static byte[] content(int i) {
+		byte[] content = new byte[ENTRY_SIZE];
+		Arrays.fill(content, (byte)i);
+		return content;
+	}
+	
+	private static String digest(int i) throws Exception {
+		return Digests.hex(Digests.sha256().digest(content(i)));
+	}
+	
+	private static JarFile jar(String path, int entries) throws Exception {
+		
+		File file = new File(path);
+		file.getParentFile().mkdirs();
+		
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			for (int i = 0; i < entries; i++) {
+				out.putNextEntry(new JarEntry(name(i)));
+				out.write(content(i));
+				out.closeEntry();
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		return new JarFile(file);
+	}
+	
+	private static File emptyDir(String path) {
+		
+		File dir = new File(path);
+		
+		if (dir.exists()) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+		}
+		
+		return dir;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.packager.MigrationPackage;
+
+public class TestMigrationGraph {
+	
+	@Test
+	public void dependentsStartAfterTheirDependencies() throws Exception {
+		
+		MigrationPackage a = pkg("a");
+		MigrationPackage b = pkg("b", a);
+		MigrationPackage c = pkg("c", a);
+		MigrationPackage d = pkg("d", b, c);
+		MigrationPackage e = pkg("e");
+		
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		
+		MigrationGraph graph = new MigrationGraph(Arrays.asList(a, b, c, d, e));
+		Assert.assertTrue(graph.declared());
+		
+		graph.run(new MigrationGraph.Step() {
+			public void execute(MigrationPackage pkg) throws Exception {
+				events.add("start " + pkg.def().artifactId());
+				Thread.sleep(20);
+				events.add("end " + pkg.def().artifactId());
+			}
+		}, 4);
+		
+		Assert.assertEquals(10, events.size());
+		
+		assertBefore(events, "end a", "start b");
+		assertBefore(events, "end a", "start c");
+		assertBefore(events, "end b", "start d");
+		assertBefore(events, "end c", "start d");
+		
+		/*
+		 * Declaring nothing means following everything before.
+		 */
+		
+		assertBefore(events, "end d", "start e");
+	}
+	
+	@Test
+	public void independentMigrationsOverlap() throws Exception {
+		
+		MigrationPackage a = pkg("a");
+		MigrationPackage b = pkg("b", a);
+		MigrationPackage c = pkg("c", a);
+		
+		final CountDownLatch both = new CountDownLatch(2);
+		
+		new MigrationGraph(Arrays.asList(a, b, c)).run(new MigrationGraph.Step() {
+			public void execute(MigrationPackage pkg) throws Exception {
+				if (pkg.def().artifactId().equals("a")) {
+					return;
+				}
+				both.countDown();
+				if (!both.await(10, TimeUnit.SECONDS)) {
+					throw new RuntimeException(pkg.def() + " ran alone");
+				}
+			}
+		}, 2);
+	}
+	
+	@Test
+	public void failureStopsWhatFollows() throws Exception {
+		
+		MigrationPackage a = pkg("a");
+		MigrationPackage b = pkg("b", a);
+		MigrationPackage c = pkg("c", b);
+		MigrationPackage d = pkg("d", a);
+		
+		final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+		
+		try {
+			new MigrationGraph(Arrays.asList(a, b, c, d)).run(new MigrationGraph.Step() {
+				public void execute(MigrationPackage pkg) throws Exception {
+					executed.add(pkg.def().artifactId());
+					if (pkg.def().artifactId().equals("b")) {
+						throw new IllegalStateException("b failed");
+					}
+				}
+			}, 2);
+			Assert.fail("The failure should have been thrown");
+		}
+		catch (IllegalStateException ex) {
+			Assert.assertEquals("b failed", ex.getMessage());
+		}
+		
+		Assert.assertTrue(executed.contains("a"));
+		Assert.assertTrue(executed.contains("b"));
+		Assert.assertFalse("c follows the failure", executed.contains("c"));
+	}
+	
+	private static MigrationPackage pkg(String name, MigrationPackage ... after) {
+		
+		List<MigrationDef> defs = new ArrayList<MigrationDef>();
+		for (MigrationPackage p : after) {
+			defs.add(p.def());
+		}
+		
+		return new MigrationPackage(new MigrationDef("test", name, "1", "jar", null), null, defs);
+	}
+	
+	private static void assertBefore(List<String> events, String first, String second) {
+		Assert.assertTrue(events.toString(), events.indexOf(first) < events.indexOf(second));
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TestNestedJarClassLoader {
+	
+	public static class Greeting {
+		public String toString() {
+			return "hello";
+		}
+	}
+	
+	@Test
+	public void servesClassesAndResourcesFromNestedJars() throws Exception {
+		
+		String className = Greeting.class.getName();
+		String classEntry = className.replace('.', '/') + ".class";
+		
+		byte[] first = jar(new String[] {classEntry, "shared.txt"}, new byte[][] {read(Greeting.class.getResourceAsStream("/" + classEntry)), "first".getBytes("UTF-8")});
+		byte[] second = jar(new String[] {"shared.txt", "second.txt"}, new byte[][] {"second".getBytes("UTF-8"), "only in second".getBytes("UTF-8")});
+		
+		File file = new File("target/nested-loader.jar");
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(jar(new String[] {"lib/first.jar", "lib/second.jar"}, new byte[][] {first, second}));
+		}
+		finally {
+			out.close();
+		}
+		
+		JarFile packageJar = new JarFile(file);
+		try {
+			List<String> classpath = Arrays.asList("lib/first.jar", "lib/second.jar");
+			
+			NestedJarClassLoader cl = NestedJarClassLoader.load(packageJar, classpath, 64 * 1024 * 1024);
+			Assert.assertNotNull(cl);
+			Assert.assertTrue(cl.allocated() > 0);
+			
+			Class<?> c = cl.loadClass(className);
+			Assert.assertSame(cl, c.getClassLoader());
+			Assert.assertNotSame(Greeting.class, c);
+			Assert.assertEquals("hello", c.newInstance().toString());
+			Assert.assertEquals(1, cl.defined());
+			
+			/*
+			 * The first jar on the classpath wins, but every match is listed.
+			 */
+			
+			URL url = cl.getResource("shared.txt");
+			Assert.assertEquals("nomad", url.getProtocol());
+			Assert.assertEquals("first", new String(read(url.openStream()), "UTF-8"));
+			
+			List<String> all = new ArrayList<String>();
+			for (Enumeration<URL> e = cl.getResources("shared.txt"); e.hasMoreElements();) {
+				all.add(new String(read(e.nextElement().openStream()), "UTF-8"));
+			}
+			Assert.assertEquals(Arrays.asList("first", "second"), all);
+			
+			Assert.assertEquals("only in second", new String(read(cl.getResourceAsStream("second.txt")), "UTF-8"));
+			Assert.assertNull(cl.getResource("missing.txt"));
+			
+			try {
+				cl.loadClass("com.example.Missing");
+				Assert.fail("Loaded a class that isn't there");
+			}
+			catch (ClassNotFoundException ex) {
+				// expected
+			}
+			
+			/*
+			 * Content that doesn't fit leaves it to the extracted jars.
+			 */
+			
+			Assert.assertNull(NestedJarClassLoader.load(packageJar, Collections.singletonList("lib/first.jar"), 16));
+		}
+		finally {
+			packageJar.close();
+		}
+	}
+	
+	private static byte[] jar(String[] names, byte[][] contents) throws Exception {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		JarOutputStream out = new JarOutputStream(bytes);
+		for (int i = 0; i < names.length; i++) {
+			out.putNextEntry(new JarEntry(names[i]));
+			out.write(contents[i]);
+			out.closeEntry();
+		}
+		out.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	private static byte[] read(InputStream in) throws Exception {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		final byte[] buffer = new byte[1024 * 10]; //10k buffer
+		try {
+			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+				bytes.write(buffer, 0, numRead);
+			}
+		}
+		finally {
+			in.close();
+		}
+		
+		return bytes.toByteArray();
+	}
+}
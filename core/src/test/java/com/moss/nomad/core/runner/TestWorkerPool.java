@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.core.runner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.api.v1.ClassLoaderBridge;
+import com.moss.nomad.api.v1.MigrationHandler;
+
+public class TestWorkerPool {
+	
+	/**
+	 * Writes the name of the JVM it runs in to the file named by the env, 
+	 * fails when the env is "fail", exits the JVM when it's "exit", and 
+	 * takes a while when it's "slow".
+	 */
+	public static class JvmNameHandler implements MigrationHandler<byte[]> {
+		public void execute(byte[] env) throws Exception {
+			
+			String arg = new String(env, "UTF-8");
+			
+			if (arg.equals("fail")) {
+				throw new RuntimeException("Failing as asked");
+			}
+			
+			if (arg.equals("exit")) {
+				System.exit(3);
+			}
+			
+			if (arg.equals("slow")) {
+				Thread.sleep(2000);
+				return;
+			}
+			
+			FileWriter w = new FileWriter(arg);
+			try {
+				w.write(ManagementFactory.getRuntimeMXBean().getName());
+			}
+			finally {
+				w.close();
+			}
+		}
+	}
+	
+	@Test
+	public void runsMigrationsInWorkersThatAreRecycled() throws Exception {
+		
+		List<File> classpath = Arrays.asList(location(ClassLoaderBridge.class), location(JvmNameHandler.class));
+		String handler = JvmNameHandler.class.getName();
+		
+		File out = new File("target/worker-pool.txt");
+		out.getParentFile().mkdirs();
+		byte[] env = out.getPath().getBytes("UTF-8");
+		
+		WorkerPool pool = new WorkerPool(1, "64m", 2);
+		try {
+			Assert.assertNull(pool.execute(classpath, handler, env));
+			String first = read(out);
+			Assert.assertFalse(first.equals(ManagementFactory.getRuntimeMXBean().getName()));
+			
+			Assert.assertNull(pool.execute(classpath, handler, env));
+			Assert.assertEquals(first, read(out));
+			
+			/*
+			 * Two migrations in, the worker was replaced.
+			 */
+			
+			Assert.assertNull(pool.execute(classpath, handler, env));
+			String second = read(out);
+			Assert.assertFalse(second.equals(first));
+			
+			String stacktrace = pool.execute(classpath, handler, "fail".getBytes("UTF-8"));
+			Assert.assertTrue(stacktrace, stacktrace.contains("Failing as asked"));
+			
+			/*
+			 * A handler that takes its worker down is reported as a failure,
+			 * and the next migration gets a new worker.
+			 */
+			
+			stacktrace = pool.execute(classpath, handler, "exit".getBytes("UTF-8"));
+			Assert.assertNotNull(stacktrace);
+			
+			Assert.assertNull(pool.execute(classpath, handler, env));
+			String third = read(out);
+			Assert.assertFalse(third.equals(second));
+		}
+		finally {
+			pool.close();
+		}
+		
+		try {
+			pool.execute(classpath, handler, env);
+			Assert.fail("A closed pool ran a migration");
+		}
+		catch (IllegalStateException ex) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void closingTurnsAwayMigrationsWaitingForAWorker() throws Exception {
+		
+		final List<File> classpath = Arrays.asList(location(ClassLoaderBridge.class), location(JvmNameHandler.class));
+		final String handler = JvmNameHandler.class.getName();
+		
+		final WorkerPool pool = new WorkerPool(1, "64m", 10);
+		
+		Thread busy = new Thread() {
+			public void run() {
+				try {
+					pool.execute(classpath, handler, "slow".getBytes("UTF-8"));
+				}
+				catch (Exception ex) {
+					// only there to hold the worker
+				}
+			}
+		};
+		busy.start();
+		Thread.sleep(500);
+		
+		final Object[] outcome = new Object[1];
+		Thread waiting = new Thread() {
+			public void run() {
+				try {
+					outcome[0] = pool.execute(classpath, handler, "slow".getBytes("UTF-8"));
+				}
+				catch (Exception ex) {
+					outcome[0] = ex;
+				}
+			}
+		};
+		waiting.start();
+		Thread.sleep(500);
+		
+		pool.close();
+		
+		busy.join(10000);
+		waiting.join(10000);
+		
+		Assert.assertTrue(String.valueOf(outcome[0]), outcome[0] instanceof IllegalStateException);
+	}
+	
+	private static File location(Class<?> c) throws Exception {
+		return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+	}
+	
+	private static String read(File f) throws Exception {
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			return r.readLine();
+		}
+		finally {
+			r.close();
+		}
+	}
+}
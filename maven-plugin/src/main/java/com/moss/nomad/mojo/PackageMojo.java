@@ -71,6 +71,7 @@ import com.moss.nomad.core.packager.Packager;
 import com.moss.nomad.core.packager.PackagerResolver;
 import com.moss.nomad.core.packager.ResolvedDependencyInfo;
 import com.moss.nomad.core.packager.ResolvedMigrationInfo;
+import com.moss.nomad.core.packager.ScanCache;
 
 /**
  * @goal package
@@ -117,11 +118,40 @@ public class PackageMojo extends AbstractMojo {
     
     /** @parameter */
     private String filename;
+    
+    /**
+     * How many migrations to scan for their handlers at a time.
+     * 
+     * @parameter default-value="1"
+     */
+    private Integer parallelism;
+    
+    /**
+     * Where the handlers found in each migration artifact are remembered 
+     * between builds. Set it empty to scan every artifact every time.
+     * 
+     * @parameter expression="${nomad.scanCache}" default-value="${user.home}/.nomad/scan-cache"
+     */
+    private File scanCache;
+    
+    /**
+     * An earlier package, usually the previous release's, to package on top
+     * of. Dependencies it already holds are copied out of it rather than 
+     * read again from the local repository.
+     * 
+     * @parameter expression="${nomad.base}"
+     */
+    private File base;
 
 	public void execute() throws MojoExecutionException, MojoFailureException {
 		
 		try {
 			Packager packager = new Packager(new MojoResolver(), includeMostRecent);
+			packager.setParallelism(parallelism);
+			
+			if (scanCache != null) {
+				packager.setScanCache(new ScanCache(scanCache));
+			}
 
 			for (MigrationPath path : migrationPaths) {
 				MigrationDefs defs = packager.readDefs(path.file);
@@ -142,6 +172,19 @@ public class PackageMojo extends AbstractMojo {
 				getLog().info("Writing migration jar: " + file);
 			}
 			
+			if (base != null) {
+				
+				if (base.getCanonicalFile().equals(file.getCanonicalFile())) {
+					throw new RuntimeException("The base package cannot be the one being written: " + base);
+				}
+				
+				if (getLog().isInfoEnabled()) {
+					getLog().info("Packaging on top of " + base);
+				}
+				
+				packager.setBase(base);
+			}
+			
 			FileOutputStream out = new FileOutputStream(file);
 			packager.write(out);
 			out.close();
@@ -153,8 +196,12 @@ public class PackageMojo extends AbstractMojo {
 		}
 	}
 	
+	/*
+	 * The maven 2 artifact resolver isn't safe to use from several threads,
+	 * so only the handler scanning is done in parallel.
+	 */
 	private class MojoResolver implements PackagerResolver {
-		public ResolvedMigrationInfo resolve(MigrationDef def) throws Exception {
+		public synchronized ResolvedMigrationInfo resolve(MigrationDef def) throws Exception {
 			
 			Artifact migrationArtifact = artifactFactory.createArtifact(
 				def.groupId(), 
@@ -39,9 +39,6 @@ package com.moss.nomad.mojo;
 
 import java.io.File;
 import java.io.FileWriter;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -60,6 +57,7 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 
+import com.moss.nomad.api.scan.HandlerScanner;
 import com.moss.nomad.api.v1.Classpath;
 import com.moss.nomad.api.v1.ClasspathEntry;
 import com.moss.nomad.api.v1.MigrationHandler;
@@ -117,72 +115,17 @@ public class PrepMojo extends AbstractMojo {
 			}
 			
 			/*
-			 * Compile a list of the classes in this project. 
-			 */
-			
-			List<String> classNames;
-			{
-				String root;
-				{
-					File sourceDir = new File(project.getBasedir(), "src");
-					File mainDir = new File(sourceDir, "main");
-					File javaDir = new File(mainDir, "java").getAbsoluteFile();
-
-					if (!javaDir.exists() && !javaDir.mkdirs()) {
-						throw new RuntimeException("Can't create dir: " + javaDir);
-					}
-					
-					root = javaDir.getAbsolutePath();
-				}
-				
-				classNames = new ArrayList<String>();
-				int rootLength = root.length();
-				
-				for (File f : files(new File(root))) {
-					
-					if (!f.isFile() || !f.getName().endsWith(".java")) {
-						continue;
-					}
-					
-					String path = f .getAbsolutePath();
-					path = path.substring(rootLength + 1, path.length() - 5);
-					path = path.replaceAll("\\/", ".");
-					
-					classNames.add(path);
-				}
-			}
-			
-			/*
-			 * Inspect the classes to determine which one is the migration handler.
-			 * This is done purely for some front-end validation.
+			 * Inspect the compiled classes to determine which one is the 
+			 * migration handler. This is done purely for some front-end 
+			 * validation, so the class files are only read, never loaded.
 			 */
 			
 			String handlerClassName;
 			{
-				List<URL> urls = new ArrayList<URL>();
+				HandlerScanner scanner = new HandlerScanner();
+				scanner.scanDirectory(new File(project.getBuild().getDirectory(), "classes"));
 				
-				urls.add(new File(project.getBuild().getDirectory(), "classes").toURL());
-				
-				for (Artifact artifact : artifacts) {
-					urls.add(artifact.getFile().toURL());
-				}
-				
-				URL[] cp = urls.toArray(new URL[0]);
-				ClassLoader cl = new URLClassLoader(cp, null);
-				
-				List<String> handlerClassNames = new ArrayList<String>();
-				
-				for (String className : classNames) {
-					
-					Class clazz = cl.loadClass(className);
-					
-					for (Class iface : clazz.getInterfaces()) {
-						if (iface.getName().equals(MigrationHandler.class.getName())) {
-							handlerClassNames.add(className);
-							break;
-						}
-					}
-				}
+				List<String> handlerClassNames = scanner.handlers();
 				
 				if (handlerClassNames.isEmpty()) {
 					
@@ -257,22 +200,4 @@ public class PrepMojo extends AbstractMojo {
 			throw new MojoExecutionException("Failed to generate classpath.xml", e);
 		}
 	}
-	
-	private List<File> files(File root) {
-		List<File> f = new ArrayList<File>();
-		files(root, f);
-		return f;
-	}
-	
-	private void files(File root, List<File> files) {
-		
-		if (root.isFile()) {
-			files.add(root.getAbsoluteFile());
-		}
-		else {
-			for (File f : root.listFiles()) {
-				files (f, files);
-			}
-		}
-	}
 }
@@ -37,27 +37,13 @@
  */
 package com.moss.nomad.test_migration_support.v1;
 
-import java.io.ByteArrayInputStream;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
-
-import com.moss.nomad.api.v1.EnvReader;
+import com.moss.nomad.api.v1.JaxbEnvReader;
 import com.moss.nomad.test_migration_support.v1.data.ServiceNodeEnvironment;
 
-public class NodeEnvironmentAdapter implements EnvReader<ServiceNodeEnvironment> {
+public class NodeEnvironmentAdapter extends JaxbEnvReader<ServiceNodeEnvironment> {
 	
-
-	public ServiceNodeEnvironment read(byte[] env) throws Exception {
-		
-		try {
-			JAXBContext ctx = JAXBContext.newInstance(ServiceNodeEnvironment.class);
-			Unmarshaller u = ctx.createUnmarshaller();
-			return (ServiceNodeEnvironment) u.unmarshal(new ByteArrayInputStream(env));
-		}
-		catch (Exception ex){
-			throw new RuntimeException(ex);
-		}
+	public NodeEnvironmentAdapter() {
+		super(ServiceNodeEnvironment.class);
 	}
 	
 	public static void main(String[] args) throws Exception {
@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.joda.time.Instant;
+
+import com.moss.nomad.api.v1.ClassLoaderBridge;
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.packager.PackagerResolver;
+import com.moss.nomad.core.packager.ResolvedDependencyInfo;
+import com.moss.nomad.core.packager.ResolvedMigrationInfo;
+
+/**
+ * Generates packages of a given shape, for tests and benchmarks that need
+ * more than a handler or two. Every migration gets the same NoopHandler 
+ * (but for one that can be set to fail) and the nomad api, along with its
+ * dependencies. The dependencies are 
+ * jars of random, incompressible entries, a share of which all the 
+ * migrations have in common and the rest of which are each migration's 
+ * own. The content is seeded, so the same settings give the same package.
+ * 
+ * The jars are generated into the given directory the first time they're
+ * needed, after which the settings can't be changed.
+ */
+public final class PackageGenerator {
+	
+	public static final String PATH = "default";
+	
+	private static final String GROUP_ID = "synthetic";
+	
+	private final File dir;
+	
+	private int migrations = 10;
+	private int dependencies = 4;
+	private double overlap = 0.5;
+	private int dependencySize = 64 * 1024;
+	private int entriesPerDependency = 16;
+	private long seed;
+	private int failing = -1;
+	
+	private Map<MigrationDef, ResolvedMigrationInfo> resolved;
+	private long generatedBytes;
+	
+	public PackageGenerator(File dir) {
+		
+		if (dir == null) {
+			throw new NullPointerException();
+		}
+		
+		this.dir = dir;
+	}
+	
+	public void setMigrations(int migrations) {
+		checkUnset();
+		this.migrations = migrations;
+	}
+	
+	/**
+	 * How many dependency jars each migration has, apart from the api.
+	 */
+	public void setDependencies(int dependencies) {
+		checkUnset();
+		this.dependencies = dependencies;
+	}
+	
+	/**
+	 * The share of each migration's dependencies that every migration has,
+	 * from 0, where none are shared, to 1, where all of them are.
+	 */
+	public void setOverlap(double overlap) {
+		
+		if (overlap < 0 || overlap > 1) {
+			throw new IllegalArgumentException("Overlap must be between 0 and 1: " + overlap);
+		}
+		
+		checkUnset();
+		this.overlap = overlap;
+	}
+	
+	public void setDependencySize(int bytes) {
+		checkUnset();
+		this.dependencySize = bytes;
+	}
+	
+	public void setEntriesPerDependency(int entries) {
+		checkUnset();
+		this.entriesPerDependency = entries;
+	}
+	
+	public void setSeed(long seed) {
+		checkUnset();
+		this.seed = seed;
+	}
+	
+	/**
+	 * Gives the migration at the given index a handler that always fails,
+	 * -1 for none, which is the default.
+	 */
+	public void setFailing(int migration) {
+		checkUnset();
+		this.failing = migration;
+	}
+	
+	public static MigrationDef def(int i) {
+		return new MigrationDef(GROUP_ID, "migration" + i, "1", "jar", null);
+	}
+	
+	/**
+	 * The defs of the migration path, in order.
+	 */
+	public List<MigrationDef> defs() {
+		
+		List<MigrationDef> defs = new ArrayList<MigrationDef>();
+		for (int i = 0; i < migrations; i++) {
+			defs.add(def(i));
+		}
+		
+		return defs;
+	}
+	
+	/**
+	 * A history in which the first applied migrations of the path have 
+	 * been performed.
+	 */
+	public MigrationHistory history(int applied) {
+		
+		MigrationHistory history = new MigrationHistory();
+		
+		Instant when = new Instant(0);
+		for (int i = 0; i < applied; i++) {
+			history.add(new Migration(when, def(i)));
+		}
+		
+		return history;
+	}
+	
+	/**
+	 * Resolves the path's defs to the generated jars, generating them if 
+	 * they haven't been already.
+	 */
+	public synchronized PackagerResolver resolver() throws Exception {
+		
+		if (resolved == null) {
+			resolved = generate();
+		}
+		
+		final Map<MigrationDef, ResolvedMigrationInfo> r = resolved;
+		
+		return new PackagerResolver() {
+			public ResolvedMigrationInfo resolve(MigrationDef def) throws Exception {
+				
+				ResolvedMigrationInfo info = r.get(def);
+				
+				if (info == null) {
+					throw new RuntimeException("Not a generated migration: " + def);
+				}
+				
+				return info;
+			}
+		};
+	}
+	
+	/**
+	 * A packager with the path added to it, ready to write.
+	 */
+	public Packager packager() throws Exception {
+		
+		Packager packager = new Packager(resolver(), -1);
+		packager.add(PATH, defs());
+		
+		return packager;
+	}
+	
+	/**
+	 * Packages the path, returning the package file.
+	 */
+	public File write() throws Exception {
+		
+		Packager packager = packager();
+		
+		File file = new File(dir, "package.jar");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			packager.write(out);
+		}
+		finally {
+			out.close();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * How many bytes of jars have been generated.
+	 */
+	public synchronized long generatedBytes() {
+		return generatedBytes;
+	}
+	
+	private Map<MigrationDef, ResolvedMigrationInfo> generate() throws Exception {
+		
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new RuntimeException("Cannot create directory: " + dir);
+		}
+		
+		Random random = new Random(seed);
+		
+		File handler = classJar(new File(dir, "handler.jar"), NoopHandler.class, NoopHandler.class.getName().replace('.', '/'));
+		File failingHandler = failing < 0 ? null : classJar(new File(dir, "failing-handler.jar"), FailingHandler.class, FailingHandler.class.getName().replace('.', '/'));
+		
+		ResolvedDependencyInfo api = new ResolvedDependencyInfo(
+			"com.moss.nomad", 
+			"nomad-api", 
+			"synthetic", 
+			"jar", 
+			null, 
+			classJar(new File(dir, "api.jar"), ClassLoaderBridge.class, "com/moss/nomad/api/")
+		);
+		
+		int sharedCount = (int)Math.round(dependencies * overlap);
+		
+		List<ResolvedDependencyInfo> shared = new ArrayList<ResolvedDependencyInfo>();
+		for (int i = 0; i < sharedCount; i++) {
+			shared.add(dependency("shared" + i, random));
+		}
+		
+		Map<MigrationDef, ResolvedMigrationInfo> result = new HashMap<MigrationDef, ResolvedMigrationInfo>();
+		
+		for (int m = 0; m < migrations; m++) {
+			
+			List<ResolvedDependencyInfo> deps = new ArrayList<ResolvedDependencyInfo>();
+			deps.add(api);
+			deps.addAll(shared);
+			
+			for (int i = sharedCount; i < dependencies; i++) {
+				deps.add(dependency("migration" + m + "-dep" + i, random));
+			}
+			
+			result.put(def(m), new ResolvedMigrationInfo(m == failing ? failingHandler : handler, deps));
+		}
+		
+		return result;
+	}
+	
+	private ResolvedDependencyInfo dependency(String artifactId, Random random) throws Exception {
+		
+		File file = new File(dir, artifactId + ".jar");
+		
+		byte[] data = new byte[Math.max(1, dependencySize / entriesPerDependency)];
+		
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			for (int i = 0; i < entriesPerDependency; i++) {
+				random.nextBytes(data);
+				out.putNextEntry(new JarEntry(artifactId + "/entry" + i + ".bin"));
+				out.write(data);
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		generatedBytes += file.length();
+		
+		return new ResolvedDependencyInfo(GROUP_ID, artifactId, "1", "jar", null, file);
+	}
+	
+	/**
+	 * A jar of the resources under the given prefix, taken from wherever 
+	 * the anchor class was loaded from, be it a directory or a jar.
+	 */
+	private File classJar(File file, Class anchor, String prefix) throws Exception {
+		
+		File source = new File(anchor.getProtectionDomain().getCodeSource().getLocation().toURI());
+		
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			if (source.isDirectory()) {
+				copyTree(source, "", prefix, out);
+			}
+			else {
+				JarFile jar = new JarFile(source);
+				try {
+					Enumeration<JarEntry> entries = jar.entries();
+					while (entries.hasMoreElements()) {
+						JarEntry e = entries.nextElement();
+						if (!e.isDirectory() && e.getName().startsWith(prefix)) {
+							copy(jar.getInputStream(e), e.getName(), out);
+						}
+					}
+				}
+				finally {
+					jar.close();
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		generatedBytes += file.length();
+		
+		return file;
+	}
+	
+	private static void copyTree(File dir, String path, String prefix, JarOutputStream out) throws Exception {
+		for (File f : dir.listFiles()) {
+			
+			String name = path + f.getName();
+			
+			if (f.isDirectory()) {
+				copyTree(f, name + "/", prefix, out);
+			}
+			else if (name.startsWith(prefix)) {
+				copy(new FileInputStream(f), name, out);
+			}
+		}
+	}
+	
+	private static void copy(InputStream in, String name, JarOutputStream out) throws Exception {
+		try {
+			out.putNextEntry(new JarEntry(name));
+			
+			final byte[] buffer = new byte[1024 * 10]; //10k buffer
+			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+				out.write(buffer, 0, numRead);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private synchronized void checkUnset() {
+		if (resolved != null) {
+			throw new IllegalStateException("The package has already been generated");
+		}
+	}
+}
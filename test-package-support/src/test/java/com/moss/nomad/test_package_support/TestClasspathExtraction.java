@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.runner.ExtractedClasspath;
+import com.moss.nomad.core.runner.Runner;
+
+public class TestClasspathExtraction {
+	
+	@Test
+	public void extractsAMigrationsClasspathWithoutRunningIt() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/classpath-extraction"));
+		generator.setMigrations(2);
+		generator.setDependencies(3);
+		generator.setFailing(1);
+		
+		Runner runner = new Runner(generator.write());
+		try {
+			/*
+			 * The failing migration isn't run, so nothing fails.
+			 */
+			
+			ExtractedClasspath classpath = runner.extractClasspath(PackageGenerator.PATH, PackageGenerator.def(1));
+			try {
+				List<File> files = classpath.files();
+				
+				Assert.assertFalse(files.isEmpty());
+				for (File f : files) {
+					Assert.assertTrue(f + " was not extracted", f.isFile());
+				}
+			}
+			finally {
+				classpath.release();
+			}
+			
+			/*
+			 * Releasing twice is harmless.
+			 */
+			classpath.release();
+			
+			try {
+				runner.extractClasspath(PackageGenerator.PATH, PackageGenerator.def(2));
+				Assert.fail("Extracted a migration that isn't in the path");
+			}
+			catch (RuntimeException ex) {
+				// expected
+			}
+		}
+		finally {
+			runner.close();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.runner.FleetResults;
+import com.moss.nomad.core.runner.FleetTarget;
+import com.moss.nomad.core.runner.Runner;
+
+public class TestFleetRuns {
+	
+	@Test
+	public void continuesPastFailuresUnlessFailingFast() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/fleet-runs"));
+		generator.setMigrations(4);
+		generator.setFailing(1);
+		
+		Runner runner = new Runner(generator.write());
+		try {
+			FleetResults results = runner.runFleet(PackageGenerator.PATH, Arrays.asList(
+				new FleetTarget("failing", generator.history(0), new byte[0]),
+				new FleetTarget("ahead", generator.history(2), new byte[0]),
+				new FleetTarget("current", generator.history(4), new byte[0])
+			).iterator(), 2, false);
+			
+			Assert.assertFalse(results.stopped());
+			Assert.assertEquals(3, results.count());
+			Assert.assertEquals(Collections.singleton("failing"), results.failures().keySet());
+			Assert.assertEquals(2, results.succeeded().size());
+			Assert.assertTrue(results.succeeded().contains("ahead"));
+			Assert.assertTrue(results.succeeded().contains("current"));
+			
+			/*
+			 * One at a time, the failure stops the run before the next
+			 * target is started, and the rest are never taken.
+			 */
+			
+			Iterator<FleetTarget> targets = Arrays.asList(
+				new FleetTarget("failing", generator.history(0), new byte[0]),
+				new FleetTarget("ahead", generator.history(2), new byte[0]),
+				new FleetTarget("current", generator.history(4), new byte[0])
+			).iterator();
+			
+			results = runner.runFleet(PackageGenerator.PATH, targets, 1, true);
+			
+			Assert.assertTrue(results.stopped());
+			Assert.assertEquals(1, results.count());
+			Assert.assertEquals(Collections.singleton("failing"), results.failures().keySet());
+			Assert.assertTrue(results.succeeded().isEmpty());
+			Assert.assertTrue(targets.hasNext());
+		}
+		finally {
+			runner.close();
+		}
+	}
+	
+	@Test
+	public void byMigrationReportsTargetsSkippedByAFailure() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/fleet-runs-failing"));
+		generator.setMigrations(4);
+		generator.setFailing(1);
+		
+		Runner runner = new Runner(generator.write());
+		try {
+			FleetTarget failing = new FleetTarget("failing", generator.history(0), new byte[0]);
+			FleetTarget behind = new FleetTarget("behind", generator.history(0), new byte[0]);
+			FleetTarget ahead = new FleetTarget("ahead", generator.history(2), new byte[0]);
+			FleetTarget current = new FleetTarget("current", generator.history(4), new byte[0]);
+			
+			/*
+			 * One at a time, so the failing target stops the run before 
+			 * the one behind it gets the failing migration.
+			 */
+			
+			FleetResults results = runner.runFleetByMigration(PackageGenerator.PATH, Arrays.asList(failing, behind, ahead, current).iterator(), 1, true);
+			
+			Assert.assertTrue(results.stopped());
+			Assert.assertEquals(Collections.singleton("failing"), results.failures().keySet());
+			Assert.assertEquals(Arrays.asList("current"), results.succeeded());
+			Assert.assertEquals(Arrays.asList("behind", "ahead"), results.skipped());
+			
+			/*
+			 * Without failing fast, only the targets needing the failing
+			 * migration fail.
+			 */
+			
+			failing = new FleetTarget("failing", generator.history(0), new byte[0]);
+			behind = new FleetTarget("behind", generator.history(0), new byte[0]);
+			ahead = new FleetTarget("ahead", generator.history(2), new byte[0]);
+			
+			results = runner.runFleetByMigration(PackageGenerator.PATH, Arrays.asList(failing, behind, ahead).iterator(), 1, false);
+			
+			Assert.assertFalse(results.stopped());
+			Assert.assertEquals(2, results.failures().size());
+			Assert.assertEquals(Arrays.asList("ahead"), results.succeeded());
+			Assert.assertTrue(results.skipped().isEmpty());
+		}
+		finally {
+			runner.close();
+		}
+	}
+}
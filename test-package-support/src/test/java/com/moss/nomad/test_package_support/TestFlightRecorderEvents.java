@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.runner.Runner;
+import com.moss.nomad.core.util.Events;
+
+public class TestFlightRecorderEvents {
+	
+	private static final Events.Type[] TYPES = {
+		Events.RESOLVE, Events.HANDLER_SCAN, Events.JAR_WRITE,
+		Events.PACKAGE_OPEN, Events.CONTAINER_PARSE, Events.EXTRACT, 
+		Events.CLASSLOADER, Events.HANDLER, Events.HISTORY_UPDATE
+	};
+	
+	@Test
+	public void recordsPackagingAndRunning() throws Exception {
+		
+		/*
+		 * JFR is looked up reflectively, just as Events does, since nomad 
+		 * builds for vms that don't have it.
+		 */
+		
+		Class<?> recordingClass;
+		Class<?> recordingFileClass;
+		Class<?> pathClass;
+		try {
+			recordingClass = Class.forName("jdk.jfr.Recording");
+			recordingFileClass = Class.forName("jdk.jfr.consumer.RecordingFile");
+			pathClass = Class.forName("java.nio.file.Path");
+		}
+		catch (ClassNotFoundException ex) {
+			return; // nothing to record with
+		}
+		
+		Object recording = recordingClass.newInstance();
+		for (Events.Type type : TYPES) {
+			recordingClass.getMethod("enable", String.class).invoke(recording, type.name());
+		}
+		
+		recordingClass.getMethod("start").invoke(recording);
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/flight-recorder"));
+		generator.setMigrations(3);
+		
+		Runner runner = new Runner(generator.write());
+		try {
+			runner.run(PackageGenerator.PATH, new MigrationHistory(), new byte[0]);
+		}
+		finally {
+			runner.close();
+		}
+		
+		recordingClass.getMethod("stop").invoke(recording);
+		
+		File file = new File("target/flight-recorder/recording.jfr");
+		Object path = File.class.getMethod("toPath").invoke(file);
+		recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+		recordingClass.getMethod("close").invoke(recording);
+		
+		List<?> events = (List<?>)recordingFileClass.getMethod("readAllEvents", pathClass).invoke(null, path);
+		
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Set<String> handlerDefs = new HashSet<String>();
+		
+		for (Object event : events) {
+			
+			Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+			String name = (String)eventType.getClass().getMethod("getName").invoke(eventType);
+			
+			Integer count = counts.get(name);
+			counts.put(name, count == null ? 1 : count + 1);
+			
+			if (name.equals(Events.HANDLER.name())) {
+				handlerDefs.add((String)event.getClass().getMethod("getString", String.class).invoke(event, "def"));
+			}
+		}
+		
+		for (Events.Type type : TYPES) {
+			Assert.assertTrue("No " + type.name() + " events in " + counts, counts.containsKey(type.name()));
+		}
+		
+		Assert.assertEquals(Integer.valueOf(3), counts.get(Events.HANDLER.name()));
+		Assert.assertEquals(Integer.valueOf(3), counts.get(Events.HISTORY_UPDATE.name()));
+		
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(handlerDefs.toString(), handlerDefs.contains(PackageGenerator.def(i).toString()));
+		}
+	}
+}
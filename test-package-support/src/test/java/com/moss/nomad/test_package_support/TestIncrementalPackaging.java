@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.packager.ContainerEntry;
+import com.moss.nomad.core.packager.ContainerReader;
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.packager.ResolvedDependencyInfo;
+import com.moss.nomad.core.util.Digests;
+
+public class TestIncrementalPackaging {
+	
+	private static final int MIGRATIONS = 20;
+	
+	@Test
+	public void copiesUnchangedEntriesFromTheBase() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/incremental-packaging"));
+		generator.setMigrations(MIGRATIONS);
+		
+		File base = generator.write();
+		int entries = verify(base);
+		
+		/*
+		 * Nothing changed, so everything comes from the base.
+		 */
+		
+		Packager packager = packager(generator, base, -1);
+		File next = write(packager, new File(base.getParentFile(), "next.jar"));
+		
+		Assert.assertEquals(entries, packager.reusedEntries().size());
+		Assert.assertTrue(packager.droppedMigrations().isEmpty());
+		Assert.assertEquals(entries, verify(next));
+		
+		/*
+		 * A dependency modified since the base was written is read again.
+		 */
+		
+		List<ResolvedDependencyInfo> deps = generator.resolver().resolve(PackageGenerator.def(MIGRATIONS - 1)).dependencyArtifacts();
+		File touched = deps.get(deps.size() - 1).file();
+		touched.setLastModified(base.lastModified() + 60 * 1000);
+		
+		packager = packager(generator, base, -1);
+		next = write(packager, new File(base.getParentFile(), "touched.jar"));
+		
+		Assert.assertEquals(entries - 1, packager.reusedEntries().size());
+		Assert.assertEquals(entries, verify(next));
+	}
+	
+	@Test
+	public void readsAChangedDependencyAgainDespiteItsSizeAndTime() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/incremental-changed"));
+		generator.setMigrations(MIGRATIONS);
+		
+		File base = generator.write();
+		int entries = verify(base);
+		
+		/*
+		 * Same size, different content, and backdated to before the base.
+		 */
+		
+		List<ResolvedDependencyInfo> deps = generator.resolver().resolve(PackageGenerator.def(MIGRATIONS - 1)).dependencyArtifacts();
+		File changed = deps.get(deps.size() - 1).file();
+		
+		RandomAccessFile raf = new RandomAccessFile(changed, "rw");
+		try {
+			long position = raf.length() / 2;
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xff);
+		}
+		finally {
+			raf.close();
+		}
+		changed.setLastModified(base.lastModified() - 60 * 1000);
+		
+		Packager packager = packager(generator, base, -1);
+		File next = write(packager, new File(base.getParentFile(), "changed.jar"));
+		
+		Assert.assertEquals(entries - 1, packager.reusedEntries().size());
+		Assert.assertEquals(entries, verify(next));
+	}
+	
+	@Test
+	public void reportsMigrationsOutsideTheWindow() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/incremental-window"));
+		generator.setMigrations(MIGRATIONS);
+		
+		File base = generator.write();
+		
+		Packager packager = packager(generator, base, MIGRATIONS / 2);
+		verify(write(packager, new File(base.getParentFile(), "windowed.jar")));
+		
+		List<MigrationDef> dropped = packager.droppedMigrations();
+		
+		Assert.assertEquals(MIGRATIONS / 2, dropped.size());
+		for (int i = 0; i < dropped.size(); i++) {
+			Assert.assertEquals(PackageGenerator.def(i), dropped.get(i));
+		}
+	}
+	
+	private static Packager packager(PackageGenerator generator, File base, int includeMostRecent) throws Exception {
+		
+		Packager packager = new Packager(generator.resolver(), includeMostRecent);
+		packager.setBase(base);
+		packager.add(PackageGenerator.PATH, generator.defs());
+		
+		return packager;
+	}
+	
+	private static File write(Packager packager, File file) throws Exception {
+		
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			packager.write(out);
+		}
+		finally {
+			out.close();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Checks every entry against its recorded digest, and returns how many 
+	 * there are.
+	 */
+	private static int verify(File file) throws Exception {
+		
+		JarFile jar = new JarFile(file);
+		try {
+			Map<String, ContainerEntry> entries = new ContainerReader(jar).entries();
+			
+			for (ContainerEntry e : entries.values()) {
+				
+				MessageDigest md = Digests.sha256();
+				
+				InputStream in = jar.getInputStream(jar.getJarEntry(e.path()));
+				final byte[] buffer = new byte[1024 * 10]; //10k buffer
+				for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+					md.update(buffer, 0, numRead);
+				}
+				in.close();
+				
+				Assert.assertEquals(e.path(), e.digest(), Digests.hex(md.digest()));
+			}
+			
+			return entries.size();
+		}
+		finally {
+			jar.close();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.runner.PathResults;
+import com.moss.nomad.core.runner.PathRun;
+import com.moss.nomad.core.runner.RunListener;
+import com.moss.nomad.core.runner.Runner;
+
+public class TestMultiPathRuns {
+	
+	@Test
+	public void aFailingPathDoesNotStopTheOthers() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/multi-path-runs"));
+		generator.setMigrations(4);
+		generator.setFailing(2);
+		
+		List<MigrationDef> defs = generator.defs();
+		
+		Packager packager = new Packager(generator.resolver(), -1);
+		packager.add("whole", defs);
+		packager.add("head", defs.subList(0, 2));
+		packager.add("tail", defs.subList(3, 4));
+		
+		File file = new File("target/multi-path-runs/package.jar");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			packager.write(out);
+		}
+		finally {
+			out.close();
+		}
+		
+		Map<String, PathRun> runs = new LinkedHashMap<String, PathRun>();
+		Map<String, MigrationHistory> applied = new LinkedHashMap<String, MigrationHistory>();
+		
+		for (String name : new String[] {"whole", "head", "tail"}) {
+			
+			final MigrationHistory history = new MigrationHistory();
+			
+			PathRun run = new PathRun(new MigrationHistory(), new byte[0]);
+			run.addListener(new RunListener() {
+				
+				public void preMigration(Migration migration) {}
+				
+				public void postMigration(Migration migration) {
+					history.add(migration);
+				}
+				
+				public void migrationFailure(Migration migration, Exception ex) {}
+			});
+			
+			runs.put(name, run);
+			applied.put(name, history);
+		}
+		
+		Runner runner = new Runner(file);
+		try {
+			PathResults results = runner.run(runs, 3);
+			
+			Assert.assertTrue(results.failed());
+			Assert.assertEquals(new HashSet<String>(Arrays.asList("head", "tail")), new HashSet<String>(results.succeeded()));
+			Assert.assertTrue(results.failures().containsKey("whole"));
+		}
+		finally {
+			runner.close();
+		}
+		
+		/*
+		 * Each path's listeners only heard about that path's migrations.
+		 */
+		
+		Assert.assertEquals(2, applied.get("whole").migrations().size());
+		Assert.assertEquals(2, applied.get("head").migrations().size());
+		Assert.assertEquals(1, applied.get("tail").migrations().size());
+		Assert.assertTrue(applied.get("tail").contains(defs.get(3)));
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.packager.ContainerReader;
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.packager.PackagerResolver;
+import com.moss.nomad.core.packager.ResolvedMigrationInfo;
+
+public class TestParallelPackaging {
+	
+	private static final int MIGRATIONS = 40;
+	
+	@Test
+	public void packagesTheSameAsOneAtATime() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/parallel-packaging"));
+		generator.setMigrations(MIGRATIONS);
+		generator.setDependencySize(4 * 1024);
+		
+		final PackagerResolver resolver = generator.resolver();
+		final AtomicInteger resolutions = new AtomicInteger();
+		
+		PackagerResolver counting = new PackagerResolver() {
+			public ResolvedMigrationInfo resolve(MigrationDef def) throws Exception {
+				resolutions.incrementAndGet();
+				return resolver.resolve(def);
+			}
+		};
+		
+		String sequential = container(counting, generator.defs(), 1);
+		
+		Assert.assertEquals(MIGRATIONS, resolutions.get());
+		resolutions.set(0);
+		
+		String parallel = container(counting, generator.defs(), 8);
+		
+		/*
+		 * The second path's defs are all on the first one as well.
+		 */
+		
+		Assert.assertEquals(MIGRATIONS, resolutions.get());
+		Assert.assertEquals(sequential, parallel);
+	}
+	
+	/**
+	 * Packages two paths, the second half the length of the first, and 
+	 * returns the container xml.
+	 */
+	private String container(PackagerResolver resolver, List<MigrationDef> defs, int parallelism) throws Exception {
+		
+		Packager packager = new Packager(resolver, -1);
+		packager.setParallelism(parallelism);
+		packager.add("all", defs);
+		packager.add("half", defs.subList(0, defs.size() / 2));
+		
+		File file = new File("target/parallel-packaging-" + parallelism + ".jar");
+		FileOutputStream out = new FileOutputStream(file);
+		packager.write(out);
+		out.close();
+		
+		JarFile jar = new JarFile(file);
+		try {
+			InputStream in = jar.getInputStream(jar.getJarEntry(ContainerReader.CONTAINER_ENTRY));
+			
+			ByteArrayOutputStream bao = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[1024 * 10]; //10k buffer
+			for(int numRead = in.read(buffer); numRead!=-1; numRead = in.read(buffer)){
+				bao.write(buffer, 0, numRead);
+			}
+			in.close();
+			
+			return bao.toString("UTF-8");
+		}
+		finally {
+			jar.close();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.def.MigrationDependency;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.runner.RunListener;
+import com.moss.nomad.core.runner.Runner;
+
+public class TestParallelRuns {
+	
+	private static final int MIGRATIONS = 8;
+	
+	@Test
+	public void listenersAreCalledOneAtATime() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/parallel-runs"));
+		generator.setMigrations(MIGRATIONS);
+		generator.setDependencies(1);
+		generator.setDependencySize(64 * 1024);
+		
+		/*
+		 * Everything after the first migration depends only on it, so the
+		 * rest can all run at once.
+		 */
+		
+		List<MigrationDef> defs = generator.defs();
+		for (MigrationDef def : defs.subList(1, defs.size())) {
+			MigrationDef first = defs.get(0);
+			def.dependencies().add(new MigrationDependency(first.groupId(), first.artifactId(), first.version()));
+		}
+		
+		Packager packager = new Packager(generator.resolver(), -1);
+		packager.add(PackageGenerator.PATH, defs);
+		
+		File file = new File("target/parallel-runs/package.jar");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			packager.write(out);
+		}
+		finally {
+			out.close();
+		}
+		
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final MigrationHistory history = new MigrationHistory();
+		
+		RunListener l = new RunListener() {
+			
+			public void preMigration(Migration migration) {
+				enter();
+				leave();
+			}
+			
+			public void postMigration(Migration migration) {
+				enter();
+				history.add(migration);
+				leave();
+			}
+			
+			public void migrationFailure(Migration migration, Exception ex) {}
+			
+			private void enter() {
+				if (inside.incrementAndGet() > 1) {
+					overlaps.incrementAndGet();
+				}
+				try {
+					Thread.sleep(5);
+				}
+				catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+			
+			private void leave() {
+				inside.decrementAndGet();
+			}
+		};
+		
+		Runner runner = new Runner(file);
+		try {
+			runner.setParallelism(4);
+			runner.run(PackageGenerator.PATH, new MigrationHistory(), new byte[0], Collections.singletonList(l));
+		}
+		finally {
+			runner.close();
+		}
+		
+		Assert.assertEquals(0, overlaps.get());
+		Assert.assertEquals(MIGRATIONS, history.migrations().size());
+		Assert.assertEquals(defs.get(0), history.migrations().get(0).def());
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.def.MigrationDef;
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.runner.RunListener;
+import com.moss.nomad.core.runner.Runner;
+
+public class TestPrefetching {
+	
+	private static final int MIGRATIONS = 6;
+	
+	@Test
+	public void runnerSurvivesClosingAPrefetchInProgress() throws Exception {
+		
+		/*
+		 * The first migration fails, so the prefetcher is closed while it's
+		 * still copying the next migrations' classpaths, which are large and
+		 * all their own.
+		 */
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/prefetching"));
+		generator.setMigrations(MIGRATIONS);
+		generator.setDependencies(2);
+		generator.setOverlap(0);
+		generator.setDependencySize(16 * 1024 * 1024);
+		generator.setEntriesPerDependency(4);
+		generator.setFailing(0);
+		
+		List<MigrationDef> defs = generator.defs();
+		
+		Packager packager = new Packager(generator.resolver(), -1);
+		packager.add("failing", defs);
+		packager.add("rest", defs.subList(1, defs.size()));
+		
+		File file = new File("target/prefetching/package.jar");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			packager.write(out);
+		}
+		finally {
+			out.close();
+		}
+		
+		Runner runner = new Runner(file);
+		try {
+			runner.setPrefetch(MIGRATIONS, true);
+			
+			try {
+				runner.run("failing", new MigrationHistory(), new byte[0]);
+				Assert.fail("The first migration should have failed");
+			}
+			catch (Exception ex) {
+				// expected
+			}
+			
+			final MigrationHistory history = new MigrationHistory();
+			
+			RunListener l = new RunListener() {
+				
+				public void preMigration(Migration migration) {}
+				
+				public void postMigration(Migration migration) {
+					history.add(migration);
+				}
+				
+				public void migrationFailure(Migration migration, Exception ex) {}
+			};
+			
+			runner.run("rest", new MigrationHistory(), new byte[0], Collections.singletonList(l));
+			
+			Assert.assertEquals(MIGRATIONS - 1, history.migrations().size());
+		}
+		finally {
+			runner.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.runner.Runner;
+import com.moss.nomad.core.runner.RunnerMetrics;
+
+public class TestRunnerMetrics {
+	
+	@Test
+	public void countsMigrationsAndFailures() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/runner-metrics"));
+		generator.setMigrations(3);
+		generator.setFailing(2);
+		
+		RunnerMetrics metrics = new RunnerMetrics();
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = metrics.register("test-runner-metrics");
+		try {
+			Runner runner = new Runner(generator.write());
+			try {
+				runner.addMetricsListener(metrics);
+				
+				try {
+					runner.run(PackageGenerator.PATH, new MigrationHistory(), new byte[0]);
+					Assert.fail("The last migration should have failed");
+				}
+				catch (Exception ex) {
+					// expected
+				}
+			}
+			finally {
+				runner.close();
+			}
+			
+			Assert.assertEquals(3, metrics.getMigrations());
+			Assert.assertEquals(1, metrics.getFailures());
+			Assert.assertTrue(metrics.getExtractedBytes() > 0);
+			Assert.assertTrue(metrics.getClassesLoaded() > 0);
+			Assert.assertTrue(metrics.getTotalMillis() >= metrics.getHandlerMillis());
+			
+			Assert.assertEquals(
+				Arrays.asList(FailingHandler.class.getName(), NoopHandler.class.getName()), 
+				Arrays.asList(metrics.getHandlers())
+			);
+			
+			long noops = 0;
+			for (long count : metrics.histogram(NoopHandler.class.getName())) {
+				noops += count;
+			}
+			Assert.assertEquals(2, noops);
+			
+			Assert.assertEquals(3L, server.getAttribute(name, "Migrations"));
+			Assert.assertEquals(1L, server.getAttribute(name, "Failures"));
+			
+			metrics.reset();
+			Assert.assertEquals(0L, server.getAttribute(name, "Migrations"));
+			Assert.assertNull(metrics.summary(NoopHandler.class.getName()));
+		}
+		finally {
+			server.unregisterMBean(name);
+		}
+	}
+}
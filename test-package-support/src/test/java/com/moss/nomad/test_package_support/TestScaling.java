@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.history.Migration;
+import com.moss.nomad.core.history.MigrationHistory;
+import com.moss.nomad.core.runner.MetricsListener;
+import com.moss.nomad.core.runner.MigrationMetrics;
+import com.moss.nomad.core.runner.RunListener;
+import com.moss.nomad.core.runner.Runner;
+
+/**
+ * Packages and runs paths of growing length, recording what each size 
+ * costs in target/scaling.csv. Sizes are taken from the nomad.scaling.sizes
+ * system property, a comma separated list.
+ * 
+ * Peak heap is the sum of the heap pools' peaks, so it's an upper bound.
+ * Extracted bytes are what the runner's migrations report extracting.
+ */
+public class TestScaling {
+	
+	private static final String DEFAULT_SIZES = "10,100";
+	
+	@Test
+	public void scaling() throws Exception {
+		
+		String[] sizes = System.getProperty("nomad.scaling.sizes", DEFAULT_SIZES).split(",");
+		
+		PrintWriter csv = new PrintWriter(new FileWriter("target/scaling.csv"));
+		try {
+			csv.println("migrations,package bytes,package millis,run millis,peak heap bytes,peak metaspace bytes,extracted bytes");
+			
+			for (String s : sizes) {
+				
+				csv.println(measure(Integer.parseInt(s.trim())));
+				csv.flush();
+			}
+		}
+		finally {
+			csv.close();
+		}
+	}
+	
+	private String measure(int migrations) throws Exception {
+		
+		File dir = new File("target/scaling/" + migrations);
+		delete(dir);
+		
+		PackageGenerator generator = new PackageGenerator(dir);
+		generator.setMigrations(migrations);
+		generator.setDependencies(4);
+		generator.setOverlap(0.5);
+		generator.setDependencySize(64 * 1024);
+		
+		/*
+		 * Generating the dependencies isn't part of what's measured.
+		 */
+		
+		generator.resolver();
+		
+		System.gc();
+		resetPeaks();
+		
+		long start = System.nanoTime();
+		
+		File packageFile = generator.write();
+		
+		long packaged = System.nanoTime();
+		
+		final MigrationHistory history = new MigrationHistory();
+		final AtomicLong extracted = new AtomicLong();
+		
+		Runner runner = new Runner(packageFile);
+		try {
+			runner.addListener(new RunListener() {
+				
+				public void preMigration(Migration migration) {}
+				
+				public void postMigration(Migration migration) {
+					history.add(migration);
+				}
+				
+				public void migrationFailure(Migration migration, Exception ex) {}
+			});
+			
+			runner.addMetricsListener(new MetricsListener() {
+				public void migrationMeasured(MigrationMetrics metrics) {
+					extracted.addAndGet(metrics.extractedBytes());
+				}
+			});
+			
+			runner.run(PackageGenerator.PATH, history, new byte[0]);
+			
+			Assert.assertEquals(migrations, history.migrations().size());
+			Assert.assertTrue(runner.plan(PackageGenerator.PATH, generator.history(migrations)).isEmpty());
+		}
+		finally {
+			runner.close();
+		}
+		
+		long ran = System.nanoTime();
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append(migrations);
+		sb.append(",").append(packageFile.length());
+		sb.append(",").append((packaged - start) / 1000000);
+		sb.append(",").append((ran - packaged) / 1000000);
+		sb.append(",").append(peak(MemoryType.HEAP, null));
+		sb.append(",").append(peak(MemoryType.NON_HEAP, "Metaspace") + peak(MemoryType.NON_HEAP, "Perm Gen"));
+		sb.append(",").append(extracted.get());
+		
+		delete(dir);
+		
+		return sb.toString();
+	}
+	
+	private static void resetPeaks() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+	}
+	
+	/**
+	 * The summed peaks of the pools of the given type, and whose names 
+	 * contain the given string if it isn't null. 
+	 */
+	private static long peak(MemoryType type, String name) {
+		
+		long total = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == type && (name == null || pool.getName().contains(name))) {
+				total += pool.getPeakUsage().getUsed();
+			}
+		}
+		
+		return total;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		file.delete();
+	}
+}
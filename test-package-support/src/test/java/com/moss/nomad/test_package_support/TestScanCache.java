@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2013, Moss Computing Inc.
+ *
+ * This file is part of nomad.
+ *
+ * nomad is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * nomad is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with nomad; see the file COPYING.  If not, write to the
+ * Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301 USA.
+ *
+ * Linking this library statically or dynamically with other modules is
+ * making a combined work based on this library.  Thus, the terms and
+ * conditions of the GNU General Public License cover the whole
+ * combination.
+ *
+ * As a special exception, the copyright holders of this library give you
+ * permission to link this library with independent modules to produce an
+ * executable, regardless of the license terms of these independent
+ * modules, and to copy and distribute the resulting executable under
+ * terms of your choice, provided that you also meet, for each linked
+ * independent module, the terms and conditions of the license of that
+ * module.  An independent module is a module which is not derived from
+ * or based on this library.  If you modify this library, you may extend
+ * this exception to your version of the library, but you are not
+ * obligated to do so.  If you do not wish to do so, delete this
+ * exception statement from your version.
+ */
+package com.moss.nomad.test_package_support;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.moss.nomad.core.packager.Packager;
+import com.moss.nomad.core.packager.ScanCache;
+
+public class TestScanCache {
+	
+	@Test
+	public void reusesScansAcrossPackagers() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/scan-cache-packages"));
+		generator.setMigrations(10);
+		
+		File dir = new File("target/scan-cache");
+		if (dir.exists()) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+		}
+		
+		ScanCache cache = new ScanCache(dir);
+		
+		Packager packager = new Packager(generator.resolver(), -1);
+		packager.setScanCache(cache);
+		packager.add("first", generator.defs());
+		
+		/*
+		 * Every generated migration shares the one handler jar.
+		 */
+		
+		File[] entries = dir.listFiles();
+		Assert.assertEquals(1, entries.length);
+		
+		String digest = entries[0].getName().substring(0, entries[0].getName().indexOf('.'));
+		Assert.assertEquals(Arrays.asList(NoopHandler.class.getName()), cache.get(digest));
+		
+		/*
+		 * A packager that finds no handlers in the cache must not have 
+		 * scanned the jar.
+		 */
+		
+		cache.put(digest, Collections.<String>emptyList());
+		
+		packager = new Packager(generator.resolver(), -1);
+		packager.setScanCache(cache);
+		
+		try {
+			packager.add("second", generator.defs());
+			Assert.fail("The cached scan was not used");
+		}
+		catch (RuntimeException ex) {
+			Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Could not find an implementation"));
+		}
+		
+		/*
+		 * An entry that can't be read is scanned again and replaced.
+		 */
+		
+		FileWriter w = new FileWriter(entries[0]);
+		w.write("garbage\n");
+		w.close();
+		
+		Assert.assertNull(cache.get(digest));
+		
+		packager = new Packager(generator.resolver(), -1);
+		packager.setScanCache(cache);
+		packager.add("third", generator.defs());
+		
+		List<String> handlers = cache.get(digest);
+		Assert.assertEquals(Arrays.asList(NoopHandler.class.getName()), handlers);
+	}
+	
+	@Test
+	public void packagesWithoutACacheThatCannotBeUsed() throws Exception {
+		
+		PackageGenerator generator = new PackageGenerator(new File("target/scan-cache-packages"));
+		generator.setMigrations(2);
+		
+		/*
+		 * A file where the directory should be.
+		 */
+		
+		File notADir = new File("target/scan-cache-file");
+		FileWriter w = new FileWriter(notADir);
+		w.write("not a directory\n");
+		w.close();
+		
+		Packager packager = new Packager(generator.resolver(), -1);
+		packager.setScanCache(new ScanCache(new File(notADir, "scan-cache")));
+		packager.add(PackageGenerator.PATH, generator.defs());
+		
+		packager = new Packager(generator.resolver(), -1);
+		packager.setScanCache(new ScanCache(notADir));
+		packager.add(PackageGenerator.PATH, generator.defs());
+		
+		/*
+		 * A directory that's gone by the time an entry is written.
+		 */
+		
+		File gone = new File("target/scan-cache-gone");
+		ScanCache cache = new ScanCache(gone);
+		Assert.assertTrue(gone.delete());
+		
+		packager = new Packager(generator.resolver(), -1);
+		packager.setScanCache(cache);
+		packager.add(PackageGenerator.PATH, generator.defs());
+		
+		Assert.assertFalse(gone.exists());
+	}
+}